@@ -0,0 +1,360 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package io.netty.handler.codec.http;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link QueryStringDecoder} variant which only decodes the parameters that
+ * are asked for and which can be reused for many URIs, e.g. one instance per
+ * channel:
+ * <pre>
+ * {@link LazyQueryStringDecoder} decoder = new {@link LazyQueryStringDecoder}();
+ * decoder.reset("/hello?recipient=world&x=1;y=2");
+ * assert decoder.getPath().equals("/hello");
+ * assert decoder.parameter("recipient").equals("world");
+ * assert decoder.getParameters().get("y").get(0).equals("2");
+ * </pre>
+ * {@link #reset(String)} only records where each name and value starts and
+ * ends, in an array which is reused for the next URI. A value is decoded the
+ * first time it is requested, and a name only needs to be decoded if it
+ * contains an escape sequence.  The decoded parameters are the same as those
+ * of {@link QueryStringDecoder}.  Iterating over {@link #getParameters()}
+ * decodes all the parameters.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class LazyQueryStringDecoder {
+
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int FIELDS = 4;
+
+    private final Charset charset;
+    private final Map<String, List<String>> parameterMap = new ParameterMap();
+    private String uri;
+    private int pathEnd;
+    private String path;
+
+    /**
+     * Boundaries of each parameter, {@link #FIELDS} per parameter. A
+     * parameter without a value has a value start of {@code -1}.
+     */
+    private int[] index = new int[FIELDS * 8];
+    private int count;
+    private String[] names = new String[8];
+    private String[] values = new String[8];
+    private Map<String, List<String>> decoded;
+
+    /**
+     * Creates a new decoder which will assume that the query strings are
+     * encoded in UTF-8.  {@link #reset(String)} must be called before use.
+     */
+    public LazyQueryStringDecoder() {
+        this(HttpCodecUtil.DEFAULT_CHARSET);
+    }
+
+    /**
+     * Creates a new decoder which will assume that the query strings are
+     * encoded in the specified charset.  {@link #reset(String)} must be
+     * called before use.
+     */
+    public LazyQueryStringDecoder(Charset charset) {
+        if (charset == null) {
+            throw new NullPointerException("charset");
+        }
+        this.charset = charset;
+    }
+
+    /**
+     * Creates a new decoder that decodes the specified URI. The decoder will
+     * assume that the query string is encoded in UTF-8.
+     */
+    public LazyQueryStringDecoder(String uri) {
+        this(uri, HttpCodecUtil.DEFAULT_CHARSET);
+    }
+
+    /**
+     * Creates a new decoder that decodes the specified URI encoded in the
+     * specified charset.
+     */
+    public LazyQueryStringDecoder(String uri, Charset charset) {
+        this(charset);
+        reset(uri);
+    }
+
+    /**
+     * Discards the state of the previous URI and indexes the parameters of
+     * the specified URI.
+     */
+    public void reset(String uri) {
+        if (uri == null) {
+            throw new NullPointerException("uri");
+        }
+        for (int i = 0; i < count; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        count = 0;
+        path = null;
+        decoded = null;
+        this.uri = uri;
+
+        int queryStart = uri.indexOf('?');
+        if (queryStart < 0) {
+            pathEnd = uri.length();
+            return;
+        }
+        pathEnd = queryStart;
+
+        // Same rules as QueryStringDecoder.decodeParams(), with ';' handled
+        // as '&'
+        int nameStart = -1;
+        int nameEnd = -1;
+        int pos = queryStart + 1; // Beginning of the unprocessed region
+        int i;                    // End of the unprocessed region
+        for (i = pos; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '=' && nameStart < 0) {
+                if (pos != i) {
+                    nameStart = pos;
+                    nameEnd = i;
+                }
+                pos = i + 1;
+            } else if (c == '&' || c == ';') {
+                if (nameStart < 0 && pos != i) {
+                    // A param of the form '&a&' has an empty value.
+                    addParam(pos, i, -1, -1);
+                } else if (nameStart >= 0) {
+                    addParam(nameStart, nameEnd, pos, i);
+                    nameStart = -1;
+                }
+                pos = i + 1;
+            }
+        }
+
+        if (pos != i) {
+            if (nameStart < 0) {
+                addParam(pos, i, -1, -1);
+            } else {
+                addParam(nameStart, nameEnd, pos, i);
+            }
+        } else if (nameStart >= 0) {
+            addParam(nameStart, nameEnd, -1, -1);
+        }
+    }
+
+    /**
+     * Returns the URI passed to the last call of {@link #reset(String)}.
+     */
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the decoded path string of the URI.
+     */
+    public String getPath() {
+        if (path == null) {
+            path = uri.substring(0, pathEnd);
+            if (path.indexOf(';') >= 0) {
+                // As QueryStringDecoder does
+                path = path.replace(';', '&');
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Returns the first value of the specified parameter, or {@code null} if
+     * there is no such parameter.
+     */
+    public String parameter(String name) {
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all the values of the specified parameter, or {@code null} if
+     * there is no such parameter.
+     */
+    public List<String> parameters(String name) {
+        List<String> result = null;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                if (result == null) {
+                    result = new ArrayList<String>(1);
+                }
+                result.add(value(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the decoded key-value parameter pairs of the URI. The returned
+     * map is a read-only view: {@link Map#get(Object)} and
+     * {@link Map#containsKey(Object)} only decode the requested parameter.
+     */
+    public Map<String, List<String>> getParameters() {
+        return parameterMap;
+    }
+
+    private void addParam(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (count == names.length) {
+            int newLength = count << 1;
+            int[] newIndex = new int[FIELDS * newLength];
+            System.arraycopy(index, 0, newIndex, 0, FIELDS * count);
+            index = newIndex;
+            String[] newNames = new String[newLength];
+            System.arraycopy(names, 0, newNames, 0, count);
+            names = newNames;
+            String[] newValues = new String[newLength];
+            System.arraycopy(values, 0, newValues, 0, count);
+            values = newValues;
+        }
+        int base = FIELDS * count;
+        index[base + NAME_START] = nameStart;
+        index[base + NAME_END] = nameEnd;
+        index[base + VALUE_START] = valueStart;
+        index[base + VALUE_END] = valueEnd;
+        count++;
+    }
+
+    private boolean nameEquals(int i, String name) {
+        if (names[i] != null) {
+            return names[i].equals(name);
+        }
+        int start = index[FIELDS * i + NAME_START];
+        int end = index[FIELDS * i + NAME_END];
+        if (!needsDecoding(start, end)) {
+            return name.length() == end - start && uri.regionMatches(start, name, 0, end - start);
+        }
+        return name(i).equals(name);
+    }
+
+    private String name(int i) {
+        String name = names[i];
+        if (name == null) {
+            int base = FIELDS * i;
+            name = QueryStringDecoder.decodeComponent(
+                    uri.substring(index[base + NAME_START], index[base + NAME_END]), charset);
+            names[i] = name;
+        }
+        return name;
+    }
+
+    private String value(int i) {
+        String value = values[i];
+        if (value == null) {
+            int base = FIELDS * i;
+            int start = index[base + VALUE_START];
+            if (start < 0) {
+                value = "";
+            } else {
+                value = QueryStringDecoder.decodeComponent(
+                        uri.substring(start, index[base + VALUE_END]), charset);
+            }
+            values[i] = value;
+        }
+        return value;
+    }
+
+    private boolean needsDecoding(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes all the parameters, in the same order as
+     * {@link QueryStringDecoder#getParameters()}.
+     */
+    private Map<String, List<String>> decodeAll() {
+        if (decoded == null) {
+            if (count == 0) {
+                decoded = Collections.emptyMap();
+            } else {
+                Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+                for (int i = 0; i < count; i++) {
+                    String name = name(i);
+                    List<String> values = params.get(name);
+                    if (values == null) {
+                        values = new ArrayList<String>(1);  // Often there's only 1 value.
+                        params.put(name, values);
+                    }
+                    values.add(value(i));
+                }
+                decoded = Collections.unmodifiableMap(params);
+            }
+        }
+        return decoded;
+    }
+
+    private final class ParameterMap extends AbstractMap<String, List<String>> {
+
+        @Override
+        public List<String> get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            if (decoded != null) {
+                return decoded.get(key);
+            }
+            return parameters((String) key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (nameEquals(i, (String) key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override
+        public Set<Entry<String, List<String>>> entrySet() {
+            return decodeAll().entrySet();
+        }
+    }
+}
@@ -229,6 +229,13 @@ public class MultipartStream {
      */
     private final byte[] boundary;
 
+    /**
+     * The Boyer-Moore-Horspool bad character table of the current
+     * <code>boundary</code>: how far the search may advance when the byte
+     * aligned with the last byte of the boundary has the given value.
+     */
+    private final int[] boundaryTable = new int[256];
+
     /**
      * The length of the buffer used for processing the request.
      */
@@ -345,6 +352,7 @@ public class MultipartStream {
                 BOUNDARY_PREFIX.length);
         System.arraycopy(boundary, 0, this.boundary, BOUNDARY_PREFIX.length,
                 boundary.length);
+        computeBoundaryTable();
 
         head = 0;
         tail = 0;
@@ -506,6 +514,7 @@ public class MultipartStream {
         }
         System.arraycopy(boundary, 0, this.boundary, BOUNDARY_PREFIX.length,
                 boundary.length);
+        computeBoundaryTable();
     }
 
     /**
@@ -628,6 +637,7 @@ public class MultipartStream {
         // First delimiter may be not preceeded with a CRLF.
         System.arraycopy(boundary, 2, boundary, 0, boundary.length - 2);
         boundaryLength = boundary.length - 2;
+        computeBoundaryTable();
         try {
             // Discard all data up to the delimiter.
             discardBodyData();
@@ -643,6 +653,20 @@ public class MultipartStream {
             boundaryLength = boundary.length;
             boundary[0] = CR;
             boundary[1] = LF;
+            computeBoundaryTable();
+        }
+    }
+
+    /**
+     * Computes the {@link #boundaryTable} of the first
+     * <code>boundaryLength</code> bytes of the <code>boundary</code>.
+     */
+    private void computeBoundaryTable() {
+        for (int i = 0; i < boundaryTable.length; i++) {
+            boundaryTable[i] = boundaryLength;
+        }
+        for (int i = 0; i < boundaryLength - 1; i++) {
+            boundaryTable[boundary[i] & 0xFF] = boundaryLength - 1 - i;
         }
     }
 
@@ -693,27 +717,32 @@ public class MultipartStream {
      * Searches for the <code>boundary</code> in the <code>buffer</code>
      * region delimited by <code>head</code> and <code>tail</code>.
      *
+     * <p>Uses the Boyer-Moore-Horspool algorithm: the byte of the buffer
+     * aligned with the last byte of the boundary determines how far the
+     * boundary can be moved, so that most of the body data is skipped
+     * rather than compared.
+     *
      * @return The position of the boundary found, counting from the
      *         beginning of the <code>buffer</code>, or <code>-1</code> if
      *         not found.
      */
     protected int findSeparator() {
-        int first;
-        int match = 0;
-        int maxpos = tail - boundaryLength;
-        for (first = head; first <= maxpos && match != boundaryLength; first++) {
-            first = findByte(boundary[0], first);
-            if (first == -1 || first > maxpos) {
-                return -1;
-            }
-            for (match = 1; match < boundaryLength; match++) {
-                if (buffer[first + match] != boundary[match]) {
-                    break;
+        final int last = boundaryLength - 1;
+        final byte lastByte = boundary[last];
+        final int maxpos = tail - boundaryLength;
+        int first = head;
+        while (first <= maxpos) {
+            byte b = buffer[first + last];
+            if (b == lastByte) {
+                int match = 0;
+                while (match < last && buffer[first + match] == boundary[match]) {
+                    match++;
+                }
+                if (match == last) {
+                    return first;
                 }
             }
-        }
-        if (match == boundaryLength) {
-            return first - 1;
+            first += boundaryTable[b & 0xFF];
         }
         return -1;
     }
@@ -0,0 +1,935 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.fileupload.disk;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.ParameterParser;
+import org.apache.commons.fileupload.util.Streams;
+
+/**
+ * <p> A {@link org.apache.commons.fileupload.FileItem FileItem} which, like
+ * {@link DiskFileItem}, keeps small items in memory, but writes items
+ * exceeding the size threshold straight to a {@link FileChannel} instead of
+ * going through a stream. Writes can be staged in a direct buffer, so that
+ * many small writes result in few large ones without an additional copy by
+ * the channel.
+ *
+ * <p> Besides the {@link FileItem} accessors, the contents can be read
+ * through a {@link ReadableByteChannel} with {@link #getReadableChannel()}
+ * or as memory-mapped regions with {@link #map(long, long)}, which avoids
+ * copying large uploads into the heap.
+ *
+ * <p> Instances are normally created by a {@link ChannelFileItemFactory}.
+ * Temporary files are handled as for {@link DiskFileItem}.
+ *
+ * @since FileUpload 1.4
+ *
+ * @version $Id$
+ */
+public class ChannelFileItem
+    implements FileItem {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The UID to use when serializing this instance.
+     */
+    private static final long serialVersionUID = -3418723562904618543L;
+
+    /**
+     * Default content charset to be used when no explicit charset
+     * parameter is provided by the sender.
+     */
+    public static final String DEFAULT_CHARSET = DiskFileItem.DEFAULT_CHARSET;
+
+    // ----------------------------------------------------------- Data members
+
+    /**
+     * UID used in unique file name generation.
+     */
+    private static final String UID =
+            UUID.randomUUID().toString().replace('-', '_');
+
+    /**
+     * Counter used in unique identifier generation.
+     */
+    private static final AtomicInteger COUNTER = new AtomicInteger(0);
+
+    /**
+     * The name of the form field as provided by the browser.
+     */
+    private String fieldName;
+
+    /**
+     * The content type passed by the browser, or <code>null</code> if
+     * not defined.
+     */
+    private final String contentType;
+
+    /**
+     * Whether or not this item is a simple form field.
+     */
+    private boolean isFormField;
+
+    /**
+     * The original filename in the user's filesystem.
+     */
+    private final String fileName;
+
+    /**
+     * The threshold above which uploads will be stored on disk.
+     */
+    private final int sizeThreshold;
+
+    /**
+     * The directory in which uploaded files will be stored, if stored on disk.
+     */
+    private final File repository;
+
+    /**
+     * The size of the direct buffer used to stage writes to the file, or
+     * <code>0</code> to write directly to the channel.
+     */
+    private final int stagingBufferSize;
+
+    /**
+     * Contents of the item while it is stored in memory.
+     */
+    private byte[] memoryContent;
+
+    /**
+     * The number of bytes written to the item.
+     */
+    private long size;
+
+    /**
+     * The file holding the contents of the item, once it exceeds the size
+     * threshold.
+     */
+    private File storeFile;
+
+    /**
+     * Output stream for this item.
+     */
+    private transient ChannelOutputStream output;
+
+    /**
+     * The temporary file to use.
+     */
+    private transient File tempFile;
+
+    /**
+     * The file items headers.
+     */
+    private FileItemHeaders headers;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs a new <code>ChannelFileItem</code> instance.
+     *
+     * @param fieldName     The name of the form field.
+     * @param contentType   The content type passed by the browser or
+     *                      <code>null</code> if not specified.
+     * @param isFormField   Whether or not this item is a plain form field, as
+     *                      opposed to a file upload.
+     * @param fileName      The original filename in the user's filesystem, or
+     *                      <code>null</code> if not specified.
+     * @param sizeThreshold The threshold, in bytes, below which items will be
+     *                      retained in memory and above which they will be
+     *                      stored as a file.
+     * @param repository    The data repository, which is the directory in
+     *                      which files will be created, should the item size
+     *                      exceed the threshold.
+     * @param stagingBufferSize The size of the direct buffer in which writes
+     *                      to the file are staged, or <code>0</code> to write
+     *                      to the file channel directly.
+     */
+    public ChannelFileItem(String fieldName,
+            String contentType, boolean isFormField, String fileName,
+            int sizeThreshold, File repository, int stagingBufferSize) {
+        this.fieldName = fieldName;
+        this.contentType = contentType;
+        this.isFormField = isFormField;
+        this.fileName = fileName;
+        this.sizeThreshold = sizeThreshold;
+        this.repository = repository;
+        this.stagingBufferSize = stagingBufferSize;
+    }
+
+    // ------------------------------- Methods from javax.activation.DataSource
+
+    /**
+     * Returns an {@link java.io.InputStream InputStream} that can be
+     * used to retrieve the contents of the file.
+     *
+     * @return An {@link java.io.InputStream InputStream} that can be
+     *         used to retrieve the contents of the file.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public InputStream getInputStream()
+        throws IOException {
+        if (isInMemory()) {
+            return new ByteArrayInputStream(get());
+        }
+        return Channels.newInputStream(getReadableChannel());
+    }
+
+    /**
+     * Returns the content type passed by the agent or <code>null</code> if
+     * not defined.
+     *
+     * @return The content type passed by the agent or <code>null</code> if
+     *         not defined.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the content charset passed by the agent or <code>null</code> if
+     * not defined.
+     *
+     * @return The content charset passed by the agent or <code>null</code> if
+     *         not defined.
+     */
+    public String getCharSet() {
+        ParameterParser parser = new ParameterParser();
+        parser.setLowerCaseNames(true);
+        // Parameter parser can handle null input
+        Map<String, String> params = parser.parse(getContentType(), ';');
+        return params.get("charset");
+    }
+
+    /**
+     * Returns the original filename in the client's filesystem.
+     *
+     * @return The original filename in the client's filesystem.
+     * @throws org.apache.commons.fileupload.InvalidFileNameException The file name contains a NUL character,
+     *   which might be an indicator of a security attack. If you intend to
+     *   use the file name anyways, catch the exception and use
+     *   {@link org.apache.commons.fileupload.InvalidFileNameException#getName()}.
+     */
+    public String getName() {
+        return Streams.checkFileName(fileName);
+    }
+
+    // ------------------------------------------------------- FileItem methods
+
+    /**
+     * Provides a hint as to whether or not the file contents will be read
+     * from memory.
+     *
+     * @return <code>true</code> if the file contents will be read
+     *         from memory; <code>false</code> otherwise.
+     */
+    public boolean isInMemory() {
+        return storeFile == null;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return The size of the file, in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the contents of the file as an array of bytes. Items stored on
+     * disk are read each time, use {@link #getReadableChannel()} or
+     * {@link #map()} for large items.
+     *
+     * @return The contents of the file as an array of bytes, or
+     *         <code>null</code> if they could not be read.
+     */
+    public byte[] get() {
+        if (isInMemory()) {
+            if (memoryContent == null) {
+                memoryContent = new byte[0];
+            } else if (memoryContent.length != size) {
+                byte[] content = new byte[(int) size];
+                System.arraycopy(memoryContent, 0, content, 0, (int) size);
+                memoryContent = content;
+            }
+            return memoryContent;
+        }
+
+        byte[] fileData = new byte[(int) size];
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(storeFile, "r").getChannel();
+            ByteBuffer dst = ByteBuffer.wrap(fileData);
+            while (dst.hasRemaining() && channel.read(dst) != -1) {
+                // Keep reading
+            }
+        } catch (IOException e) {
+            fileData = null;
+        } finally {
+            closeQuietly(channel);
+        }
+        return fileData;
+    }
+
+    /**
+     * Returns the contents of the file as a String, using the specified
+     * encoding.  This method uses {@link #get()} to retrieve the
+     * contents of the file.
+     *
+     * @param charset The charset to use.
+     *
+     * @return The contents of the file, as a string.
+     *
+     * @throws UnsupportedEncodingException if the requested character
+     *                                      encoding is not available.
+     */
+    public String getString(final String charset)
+        throws UnsupportedEncodingException {
+        return new String(get(), charset);
+    }
+
+    /**
+     * Returns the contents of the file as a String, using the default
+     * character encoding.  This method uses {@link #get()} to retrieve the
+     * contents of the file.
+     *
+     * @return The contents of the file, as a string.
+     */
+    public String getString() {
+        byte[] rawdata = get();
+        String charset = getCharSet();
+        if (charset == null) {
+            charset = DEFAULT_CHARSET;
+        }
+        try {
+            return new String(rawdata, charset);
+        } catch (UnsupportedEncodingException e) {
+            return new String(rawdata);
+        }
+    }
+
+    /**
+     * A convenience method to write an uploaded item to disk.
+     * <p>
+     * Items stored on disk are first renamed to the specified destination
+     * file. If that fails, the data is transferred between the file channels,
+     * which lets the operating system copy it without passing through the
+     * heap.
+     * <p>
+     * This method is only guaranteed to work <em>once</em>, the first time it
+     * is invoked for a particular item.
+     *
+     * @param file The <code>File</code> into which the uploaded item should
+     *             be stored.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void write(File file) throws Exception {
+        FileChannel out = null;
+        if (isInMemory()) {
+            try {
+                out = new RandomAccessFile(file, "rw").getChannel();
+                out.truncate(0);
+                ByteBuffer src = ByteBuffer.wrap(get());
+                while (src.hasRemaining()) {
+                    out.write(src);
+                }
+            } finally {
+                closeQuietly(out);
+            }
+            return;
+        }
+        if (!storeFile.exists()) {
+            /*
+             * For whatever reason we cannot write the
+             * file to disk.
+             */
+            throw new FileUploadException(
+                "Cannot write uploaded file to disk!");
+        }
+        if (storeFile.renameTo(file)) {
+            return;
+        }
+        FileChannel in = null;
+        try {
+            in = new RandomAccessFile(storeFile, "r").getChannel();
+            out = new RandomAccessFile(file, "rw").getChannel();
+            out.truncate(0);
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Deletes the underlying storage for a file item, including deleting any
+     * associated temporary disk file.
+     */
+    public void delete() {
+        memoryContent = null;
+        File outputFile = getStoreLocation();
+        if (outputFile != null && outputFile.exists()) {
+            outputFile.delete();
+        }
+    }
+
+    /**
+     * Returns the name of the field in the multipart form corresponding to
+     * this file item.
+     *
+     * @return The name of the form field.
+     *
+     * @see #setFieldName(java.lang.String)
+     *
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Sets the field name used to reference this file item.
+     *
+     * @param fieldName The name of the form field.
+     *
+     * @see #getFieldName()
+     *
+     */
+    public void setFieldName(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * Determines whether or not a <code>FileItem</code> instance represents
+     * a simple form field.
+     *
+     * @return <code>true</code> if the instance represents a simple form
+     *         field; <code>false</code> if it represents an uploaded file.
+     *
+     * @see #setFormField(boolean)
+     *
+     */
+    public boolean isFormField() {
+        return isFormField;
+    }
+
+    /**
+     * Specifies whether or not a <code>FileItem</code> instance represents
+     * a simple form field.
+     *
+     * @param state <code>true</code> if the instance represents a simple form
+     *              field; <code>false</code> if it represents an uploaded file.
+     *
+     * @see #isFormField()
+     *
+     */
+    public void setFormField(boolean state) {
+        isFormField = state;
+    }
+
+    /**
+     * Returns an {@link java.io.OutputStream OutputStream} that can
+     * be used for storing the contents of the file.
+     *
+     * @return An {@link java.io.OutputStream OutputStream} that can be used
+     *         for storing the contents of the file.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public OutputStream getOutputStream()
+        throws IOException {
+        if (output == null) {
+            output = new ChannelOutputStream();
+        }
+        return output;
+    }
+
+    // --------------------------------------------------------- Public methods
+
+    /**
+     * Returns a channel from which the contents of the item can be read. The
+     * caller is responsible for closing the channel.
+     *
+     * @return A {@link FileChannel} if the item is stored on disk.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public ReadableByteChannel getReadableChannel() throws IOException {
+        if (isInMemory()) {
+            return Channels.newChannel(new ByteArrayInputStream(get()));
+        }
+        return new RandomAccessFile(storeFile, "r").getChannel();
+    }
+
+    /**
+     * Returns the contents of the item as a read-only buffer. Items stored on
+     * disk are memory-mapped, so that their contents are paged in on demand
+     * rather than copied into the heap. The mapping remains valid until the
+     * buffer is garbage collected, even if the item is deleted.
+     * <p>
+     * A buffer cannot hold more than <code>Integer.MAX_VALUE</code> bytes,
+     * larger items must be mapped in regions with
+     * {@link #map(long, long)}.
+     *
+     * @return A read-only buffer holding the contents of the item.
+     *
+     * @throws IOException if an error occurs, or if the item is too large to
+     *         be mapped at once.
+     */
+    public ByteBuffer map() throws IOException {
+        return map(0, size);
+    }
+
+    /**
+     * Returns a region of the contents of the item as a read-only buffer,
+     * memory-mapped as for {@link #map()} if the item is stored on disk.
+     *
+     * @param position The position of the region in the contents.
+     * @param length The length of the region, at most
+     *               <code>Integer.MAX_VALUE</code>.
+     *
+     * @return A read-only buffer holding the region of the contents.
+     *
+     * @throws IOException if an error occurs, or if the region is too large
+     *         to be mapped or does not lie within the contents.
+     */
+    public ByteBuffer map(long position, long length) throws IOException {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IOException(format(
+                    "The region [%s, %s] is not within the %s bytes of the item",
+                    Long.valueOf(position), Long.valueOf(position + length),
+                    Long.valueOf(size)));
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(format(
+                    "The region of %s bytes is too large to be mapped at once",
+                    Long.valueOf(length)));
+        }
+        if (isInMemory()) {
+            return ByteBuffer.wrap(get(), (int) position, (int) length)
+                    .slice().asReadOnlyBuffer();
+        }
+        FileChannel channel = new RandomAccessFile(storeFile, "r").getChannel();
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the {@link java.io.File} object for the <code>FileItem</code>'s
+     * data's location on the disk. Note that for <code>FileItem</code>s that
+     * have their data stored in memory, this method will return
+     * <code>null</code>.
+     *
+     * @return The data file, or <code>null</code> if the data is stored in
+     *         memory.
+     */
+    public File getStoreLocation() {
+        return storeFile;
+    }
+
+    // ------------------------------------------------------ Protected methods
+
+    /**
+     * Removes the file contents from the temporary storage.
+     */
+    @Override
+    protected void finalize() {
+        if (storeFile != null && storeFile.exists()) {
+            storeFile.delete();
+        }
+    }
+
+    /**
+     * Creates and returns a {@link java.io.File File} representing a uniquely
+     * named temporary file in the configured repository path. The lifetime of
+     * the file is tied to the lifetime of the <code>FileItem</code> instance;
+     * the file will be deleted when the instance is garbage collected.
+     *
+     * @return The {@link java.io.File File} to be used for temporary storage.
+     */
+    protected File getTempFile() {
+        if (tempFile == null) {
+            File tempDir = repository;
+            if (tempDir == null) {
+                tempDir = new File(System.getProperty("java.io.tmpdir"));
+            }
+
+            String tempFileName = format("upload_%s_%s.tmp", UID, getUniqueId());
+
+            tempFile = new File(tempDir, tempFileName);
+        }
+        return tempFile;
+    }
+
+    // -------------------------------------------------------- Private methods
+
+    /**
+     * Returns an identifier that is unique within the class loader used to
+     * load this class, but does not have random-like apearance.
+     *
+     * @return A String with the non-random looking instance identifier.
+     */
+    private static String getUniqueId() {
+        final int limit = 100000000;
+        int current = COUNTER.getAndIncrement();
+        String id = Integer.toString(current);
+
+        // If you manage to get more than 100 million of ids, you'll
+        // start getting ids longer than 8 characters.
+        if (current < limit) {
+            id = ("00000000" + id).substring(id.length());
+        }
+        return id;
+    }
+
+    /**
+     * Closes the given channel, ignoring any error.
+     *
+     * @param channel The channel to close, may be <code>null</code>.
+     */
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object.
+     */
+    @Override
+    public String toString() {
+        return format("name=%s, StoreLocation=%s, size=%s bytes, isFormField=%s, FieldName=%s",
+                      getName(), getStoreLocation(), Long.valueOf(getSize()),
+                      Boolean.valueOf(isFormField()), getFieldName());
+    }
+
+    // -------------------------------------------------- Serialization methods
+
+    /**
+     * Writes the state of this object during serialization.
+     *
+     * @param out The stream to which the state should be written.
+     *
+     * @throws IOException if an error occurs.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (isInMemory()) {
+            get();
+        }
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Reads the state of this object during deserialization. The contents of
+     * the item are copied into a new temporary file owned by this instance,
+     * the file referred to by the serialized state is deleted afterwards.
+     *
+     * @param in The stream from which the state should be read.
+     *
+     * @throws IOException if an error occurs.
+     * @throws ClassNotFoundException if class cannot be found.
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        /* One expected use of serialization is to migrate HTTP sessions
+         * containing a ChannelFileItem between JVMs. Particularly if the JVMs
+         * are on different machines It is possible that the repository
+         * location is not valid so validate it.
+         */
+        if (repository != null) {
+            if (repository.isDirectory()) {
+                // Check path for nulls
+                if (repository.getPath().contains("\0")) {
+                    throw new IOException(format(
+                            "The repository [%s] contains a null character",
+                            repository.getPath()));
+                }
+            } else {
+                throw new IOException(format(
+                        "The repository [%s] is not a directory",
+                        repository.getAbsolutePath()));
+            }
+        }
+
+        File serializedFile = storeFile;
+        byte[] serializedContent = memoryContent;
+        storeFile = null;
+        memoryContent = null;
+        long serializedSize = size;
+        size = 0;
+
+        if (serializedFile != null) {
+            checkStoreLocation(serializedFile);
+        }
+
+        OutputStream stream = getOutputStream();
+        try {
+            if (serializedFile == null) {
+                if (serializedContent != null) {
+                    stream.write(serializedContent, 0,
+                            (int) Math.min(serializedSize, serializedContent.length));
+                }
+            } else {
+                FileChannel channel = new RandomAccessFile(serializedFile, "r").getChannel();
+                try {
+                    byte[] buffer = new byte[8192];
+                    ByteBuffer dst = ByteBuffer.wrap(buffer);
+                    int n;
+                    while ((n = channel.read(dst)) != -1) {
+                        stream.write(buffer, 0, n);
+                        dst.clear();
+                    }
+                } finally {
+                    closeQuietly(channel);
+                }
+                serializedFile.delete();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Checks that a deserialized store location is a file in the directory in
+     * which this item creates its temporary files, so that a crafted stream
+     * cannot make the item read or delete an arbitrary file.
+     *
+     * @param file The store location to check.
+     *
+     * @throws IOException if the store location is not acceptable.
+     */
+    private void checkStoreLocation(File file) throws IOException {
+        if (file.getPath().contains("\0")) {
+            throw new IOException(format(
+                    "The store location [%s] contains a null character",
+                    file.getPath()));
+        }
+        if (!file.isFile()) {
+            throw new IOException(format(
+                    "The store location [%s] is not a file",
+                    file.getAbsolutePath()));
+        }
+        File tempDir = repository;
+        if (tempDir == null) {
+            tempDir = new File(System.getProperty("java.io.tmpdir"));
+        }
+        File parent = file.getCanonicalFile().getParentFile();
+        if (parent == null || !parent.equals(tempDir.getCanonicalFile())) {
+            throw new IOException(format(
+                    "The store location [%s] is not in the repository [%s]",
+                    file.getAbsolutePath(), tempDir.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Returns the file item headers.
+     * @return The file items headers.
+     */
+    public FileItemHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Sets the file item headers.
+     * @param pHeaders The file items headers.
+     */
+    public void setHeaders(FileItemHeaders pHeaders) {
+        headers = pHeaders;
+    }
+
+    /**
+     * The output stream of an item: writes to memory up to the size threshold
+     * and to the channel of the temporary file beyond it.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        /**
+         * The channel of the temporary file, once the threshold is exceeded.
+         */
+        private FileChannel channel;
+
+        /**
+         * The direct buffer in which writes are staged, if any.
+         */
+        private ByteBuffer staging;
+
+        /**
+         * Whether the stream is already closed.
+         */
+        private boolean closed;
+
+        /**
+         * Writes the specified byte.
+         *
+         * @param b The byte to write.
+         * @throws IOException An I/O error occurred.
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /**
+         * Writes <code>len</code> bytes of the given array.
+         *
+         * @param b The data.
+         * @param off Offset of the first byte to write.
+         * @param len Number of bytes to write.
+         * @throws IOException An I/O error occurred.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (channel == null) {
+                if (size + len <= sizeThreshold) {
+                    writeToMemory(b, off, len);
+                    return;
+                }
+                openChannel();
+            }
+            size += len;
+            if (staging == null) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+            } else {
+                while (len > 0) {
+                    int n = Math.min(staging.remaining(), len);
+                    staging.put(b, off, n);
+                    off += n;
+                    len -= n;
+                    if (!staging.hasRemaining()) {
+                        flushStaging();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes any staged data and closes the file channel.
+         *
+         * @throws IOException An I/O error occurred.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (channel != null) {
+                try {
+                    if (staging != null) {
+                        flushStaging();
+                        staging = null;
+                    }
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Appends the given bytes to the in-memory content.
+         */
+        private void writeToMemory(byte[] b, int off, int len) {
+            int newSize = (int) size + len;
+            if (memoryContent == null || memoryContent.length < newSize) {
+                int capacity = memoryContent == null ? 256 : memoryContent.length << 1;
+                byte[] content = new byte[Math.min(Math.max(capacity, newSize),
+                        Math.max(sizeThreshold, newSize))];
+                if (memoryContent != null) {
+                    System.arraycopy(memoryContent, 0, content, 0, (int) size);
+                }
+                memoryContent = content;
+            }
+            System.arraycopy(b, off, memoryContent, (int) size, len);
+            size = newSize;
+        }
+
+        /**
+         * Opens the temporary file and moves the in-memory content to it.
+         */
+        private void openChannel() throws IOException {
+            storeFile = getTempFile();
+            channel = new RandomAccessFile(storeFile, "rw").getChannel();
+            if (stagingBufferSize > 0) {
+                staging = ByteBuffer.allocateDirect(stagingBufferSize);
+            }
+            if (size > 0) {
+                writeFully(ByteBuffer.wrap(memoryContent, 0, (int) size));
+            }
+            memoryContent = null;
+        }
+
+        /**
+         * Writes the staged data to the channel.
+         */
+        private void flushStaging() throws IOException {
+            staging.flip();
+            writeFully(staging);
+            staging.clear();
+        }
+
+        /**
+         * Writes all the remaining bytes of the given buffer to the channel.
+         */
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.fileupload.disk;
+
+import java.io.File;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.FileCleaningTracker;
+
+/**
+ * <p>A {@link DiskFileItemFactory} which creates {@link ChannelFileItem}
+ * instances, so that uploads exceeding the size threshold are written
+ * straight to a file channel. The size threshold, the repository and the
+ * file cleaning tracker are configured as for {@link DiskFileItemFactory}.
+ *
+ * @since FileUpload 1.4
+ *
+ * @version $Id$
+ */
+public class ChannelFileItemFactory extends DiskFileItemFactory {
+
+    // ----------------------------------------------------- Manifest constants
+
+    /**
+     * The default size of the direct buffer in which writes are staged.
+     */
+    public static final int DEFAULT_STAGING_BUFFER_SIZE = 64 * 1024;
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * The size of the direct buffer in which writes of each item are staged.
+     */
+    private int stagingBufferSize = DEFAULT_STAGING_BUFFER_SIZE;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Constructs an unconfigured instance of this class. The resulting factory
+     * may be configured by calling the appropriate setter methods.
+     */
+    public ChannelFileItemFactory() {
+        super();
+    }
+
+    /**
+     * Constructs a preconfigured instance of this class.
+     *
+     * @param sizeThreshold The threshold, in bytes, below which items will be
+     *                      retained in memory and above which they will be
+     *                      stored as a file.
+     * @param repository    The data repository, which is the directory in
+     *                      which files will be created, should the item size
+     *                      exceed the threshold.
+     */
+    public ChannelFileItemFactory(int sizeThreshold, File repository) {
+        super(sizeThreshold, repository);
+    }
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * Returns the size of the direct buffer in which the writes of each item
+     * are staged.
+     *
+     * @return The size of the staging buffer, in bytes, or <code>0</code> if
+     *         writes are not staged.
+     *
+     * @see #setStagingBufferSize(int)
+     */
+    public int getStagingBufferSize() {
+        return stagingBufferSize;
+    }
+
+    /**
+     * Sets the size of the direct buffer in which the writes of each item are
+     * staged once it exceeds the size threshold. The buffer is allocated for
+     * each such item, so the size should be chosen with the number of
+     * concurrent uploads in mind.
+     *
+     * @param stagingBufferSize The size of the staging buffer, in bytes, or
+     *                          <code>0</code> to write directly to the file
+     *                          channel.
+     *
+     * @see #getStagingBufferSize()
+     */
+    public void setStagingBufferSize(int stagingBufferSize) {
+        if (stagingBufferSize < 0) {
+            throw new IllegalArgumentException("stagingBufferSize may not be negative");
+        }
+        this.stagingBufferSize = stagingBufferSize;
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Create a new {@link ChannelFileItem} instance from the supplied
+     * parameters and the local factory configuration.
+     *
+     * @param fieldName   The name of the form field.
+     * @param contentType The content type of the form field.
+     * @param isFormField <code>true</code> if this is a plain form field;
+     *                    <code>false</code> otherwise.
+     * @param fileName    The name of the uploaded file, if any, as supplied
+     *                    by the browser or other client.
+     *
+     * @return The newly created file item.
+     */
+    @Override
+    public FileItem createItem(String fieldName, String contentType,
+            boolean isFormField, String fileName) {
+        ChannelFileItem result = new ChannelFileItem(fieldName, contentType,
+                isFormField, fileName, getSizeThreshold(), getRepository(),
+                stagingBufferSize);
+        FileCleaningTracker tracker = getFileCleaningTracker();
+        if (tracker != null) {
+            tracker.track(result.getTempFile(), result);
+        }
+        return result;
+    }
+
+}
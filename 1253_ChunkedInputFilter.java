@@ -19,6 +19,8 @@ package org.apache.coyote.http11.filters;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 
 import org.apache.coyote.InputBuffer;
@@ -56,6 +58,17 @@ public class ChunkedInputFilter implements InputFilter {
     }
 
 
+    /*
+     * Constants used to scan eight bytes at a time for the CR, LF or ';' that
+     * terminates the size in a chunk header.
+     */
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long CR_WORD = ONES * Constants.CR;
+    private static final long LF_WORD = ONES * Constants.LF;
+    private static final long SEMI_COLON_WORD = ONES * Constants.SEMI_COLON;
+
+
     // ----------------------------------------------------- Instance Variables
 
 
@@ -95,6 +108,12 @@ public class ChunkedInputFilter implements InputFilter {
     protected final ByteChunk readChunk = new ByteChunk();
 
 
+    /**
+     * Little endian view of {@link #buf} used to read it a word at a time.
+     */
+    private ByteBuffer words = null;
+
+
     /**
      * Flag set to true when the end chunk has been read.
      */
@@ -311,6 +330,10 @@ public class ChunkedInputFilter implements InputFilter {
     protected boolean parseChunkHeader()
         throws IOException {
 
+        if (parseChunkHeaderFast()) {
+            return true;
+        }
+
         int result = 0;
         boolean eol = false;
         boolean readDigit = false;
@@ -371,6 +394,73 @@ public class ChunkedInputFilter implements InputFilter {
     }
 
 
+    /**
+     * Parse the common form of a chunk header, hex digits followed by CRLF,
+     * when it is entirely available in the current buffer. The buffer is
+     * scanned eight bytes at a time for the end of the chunk size.
+     *
+     * @return <code>true</code> if the header was parsed, <code>false</code>
+     *         if nothing was consumed and the header must be parsed by
+     *         {@link #parseChunkHeader()}: the header is incomplete, invalid
+     *         or has an extension
+     */
+    private boolean parseChunkHeaderFast() {
+
+        int limit = lastValid - 8;
+        if (pos > limit) {
+            return false;
+        }
+        if (words == null || words.array() != buf) {
+            words = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int eol = -1;
+        for (int i = pos; i <= limit; i += 8) {
+            long word = words.getLong(i);
+            long found = zeroBytes(word ^ CR_WORD) | zeroBytes(word ^ LF_WORD)
+                    | zeroBytes(word ^ SEMI_COLON_WORD);
+            if (found != 0) {
+                eol = i + (Long.numberOfTrailingZeros(found) >>> 3);
+                break;
+            }
+        }
+
+        // At most 7 digits so that the size cannot overflow
+        int digits = eol - pos;
+        if (digits <= 0 || digits > 7 || eol + 1 >= lastValid
+                || buf[eol] != Constants.CR || buf[eol + 1] != Constants.LF) {
+            return false;
+        }
+
+        int result = 0;
+        for (int i = pos; i < eol; i++) {
+            int charValue = HexUtils.getDec(buf[i]);
+            if (charValue == -1) {
+                return false;
+            }
+            result = (result << 4) + charValue;
+        }
+
+        if (result == 0) {
+            endChunk = true;
+        }
+        remaining = result;
+        pos = eol + 2;
+        return true;
+
+    }
+
+
+    /**
+     * Returns a word with the high bit set in the lowest byte of the given
+     * word that is zero. Higher bytes may also be flagged, so only the lowest
+     * flagged byte is meaningful.
+     */
+    private static long zeroBytes(long word) {
+        return (word - ONES) & ~word & HIGH_BITS;
+    }
+
+
     /**
      * Parse CRLF at end of chunk.
      *
@@ -380,6 +470,13 @@ public class ChunkedInputFilter implements InputFilter {
      */
     protected void parseCRLF(boolean tolerant) throws IOException {
 
+        // Fast path for the usual case of a complete CRLF in the buffer
+        if (pos + 1 < lastValid && buf[pos] == Constants.CR
+                && buf[pos + 1] == Constants.LF) {
+            pos += 2;
+            return;
+        }
+
         boolean eol = false;
         boolean crfound = false;
 
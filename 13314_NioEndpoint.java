@@ -20,6 +20,7 @@ package org.apache.tomcat.util.net;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -38,10 +39,14 @@ import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
@@ -215,6 +220,29 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     private long selectorTimeout = 1000;
     public void setSelectorTimeout(long timeout){ this.selectorTimeout = timeout;}
     public long getSelectorTimeout(){ return this.selectorTimeout; }
+
+    /**
+     * Process each socket on a new virtual thread rather than on a worker of
+     * the executor. Requires Java 21. Ignored if an external executor is
+     * configured.
+     */
+    private boolean useVirtualThreads = false;
+    public void setUseVirtualThreads(boolean useVirtualThreads) { this.useVirtualThreads = useVirtualThreads; }
+    public boolean getUseVirtualThreads() { return useVirtualThreads; }
+
+    /**
+     * The thread per task executor used when {@link #useVirtualThreads} is
+     * set, if the virtual threads are available.
+     */
+    private volatile ExecutorService virtualThreadExecutor = null;
+
+    /**
+     * Serialize the processing of a socket with its processor lock rather
+     * than its monitor. Decided when the endpoint is bound, so that it does
+     * not change while processors run, when the executor is shut down in
+     * particular.
+     */
+    private volatile boolean useProcessorLock = false;
     /**
      * The socket poller.
      */
@@ -382,6 +410,16 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         }
 
         if (oomParachute>0) reclaimParachute(true);
+        // The lock is harmless on platform threads, should virtual threads be
+        // unavailable when the endpoint starts
+        useProcessorLock = useVirtualThreads && getExecutor() == null;
+        if (useVirtualThreads && !selectorPool.isShared()) {
+            // Blocking on a per thread selector would block the carrier
+            // thread, whereas waiting for the shared selector parks the
+            // virtual thread
+            log.warn(sm.getString("endpoint.nio.virtualThreads.sharedSelector", getName()));
+            selectorPool.setShared(true);
+        }
         selectorPool.open();
     }
 
@@ -423,7 +461,14 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
 
             // Create worker collection
             if ( getExecutor() == null ) {
-                createExecutor();
+                if (useVirtualThreads) {
+                    virtualThreadExecutor = createVirtualThreadExecutor();
+                }
+                if (virtualThreadExecutor != null) {
+                    setExecutor(virtualThreadExecutor);
+                } else {
+                    createExecutor();
+                }
             }
 
             initializeConnectionLatch();
@@ -497,9 +542,48 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
     }
 
 
+    @Override
+    public void shutdownExecutor() {
+        ExecutorService executor = virtualThreadExecutor;
+        if (executor != null) {
+            virtualThreadExecutor = null;
+            setExecutor(null);
+            // Running tasks are not waited for, as for the internal executor
+            executor.shutdown();
+        }
+        super.shutdownExecutor();
+    }
+
+
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Create an executor which starts a new virtual thread for each task.
+     * Virtual threads are only available from Java 21, so the executor is
+     * created by reflection.
+     *
+     * @return the executor, or <code>null</code> if virtual threads are not
+     *         available
+     */
+    protected ExecutorService createVirtualThreadExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(
+                    builder, getName() + "-virt-", Long.valueOf(0));
+            ThreadFactory threadFactory =
+                    (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor =
+                    Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (Exception e) {
+            log.warn(sm.getString("endpoint.nio.virtualThreads.unavailable", getName()), e);
+            return null;
+        }
+    }
+
+
     public int getWriteBufSize() {
         return socketProperties.getTxBufSize();
     }
@@ -1383,6 +1467,12 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         public void awaitReadLatch(long timeout, TimeUnit unit) throws InterruptedException { awaitLatch(readLatch,timeout,unit);}
         public void awaitWriteLatch(long timeout, TimeUnit unit) throws InterruptedException { awaitLatch(writeLatch,timeout,unit);}
 
+        /**
+         * Serializes the processing of this socket when the sockets are
+         * processed on virtual threads, instead of the socket's monitor.
+         */
+        public ReentrantLock getProcessorLock() { return processorLock; }
+
         public void setSendfileData(SendfileData sf) { this.sendfileData = sf;}
         public SendfileData getSendfileData() { return this.sendfileData;}
 
@@ -1397,6 +1487,7 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
         private CountDownLatch writeLatch = null;
         private volatile SendfileData sendfileData = null;
         private long writeTimeout = -1;
+        private final ReentrantLock processorLock = new ReentrantLock();
 
     }
 
@@ -1471,6 +1562,16 @@ public class NioEndpoint extends AbstractEndpoint<NioChannel> {
                 synchronized (ka.getWriteThreadLock()) {
                     doRun();
                 }
+            } else if (useProcessorLock) {
+                // A virtual thread which blocks while holding a monitor stays
+                // pinned to its carrier thread, a lock lets it unmount
+                ReentrantLock lock = ka.getProcessorLock();
+                lock.lock();
+                try {
+                    doRun();
+                } finally {
+                    lock.unlock();
+                }
             } else {
                 synchronized (socket) {
                     doRun();
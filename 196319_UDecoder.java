@@ -18,6 +18,8 @@ package org.apache.tomcat.util.buf;
 
 import java.io.CharConversionException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  *  All URL decoding happens here. This way we can reuse, review, optimize
@@ -56,6 +58,13 @@ public final class UDecoder {
     private static final IOException EXCEPTION_SLASH = new DecodeException(
             "noSlash");
 
+    /*
+     * Constants used to look for '%' and '+' eight bytes at a time.
+     */
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long PERCENT_WORD = 0x2525252525252525L;
+    private static final long PLUS_WORD = 0x2B2B2B2B2B2B2B2BL;
+
     public UDecoder()
     {
     }
@@ -78,18 +87,11 @@ public final class UDecoder {
         byte buff[]=mb.getBytes();
         int end=mb.getEnd();
 
-        int idx= ByteChunk.findByte( buff, start, end, (byte) '%' );
-        int idx2=-1;
-        if( query ) {
-            idx2= ByteChunk.findByte( buff, start, (idx >= 0 ? idx : end), (byte) '+' );
-        }
-        if( idx<0 && idx2<0 ) {
-            return;
-        }
-
         // idx will be the smallest positive index ( first % or + )
-        if( (idx2 >= 0 && idx2 < idx) || idx < 0 ) {
-            idx=idx2;
+        int idx = findEscape(buff, start, end, query);
+        if( idx<0 ) {
+            // Nothing to decode, the chunk is left untouched
+            return;
         }
 
         boolean noSlash = !(ALLOW_ENCODED_SLASH || query);
@@ -146,20 +148,19 @@ public final class UDecoder {
         char buff[]=mb.getBuffer();
         int cend=mb.getEnd();
 
-        int idx= CharChunk.indexOf( buff, start, cend, '%' );
-        int idx2=-1;
-        if( query ) {
-            idx2= CharChunk.indexOf( buff, start, (idx >= 0 ? idx : cend), '+' );
+        // idx will be the smallest positive index ( first % or + )
+        int idx=-1;
+        for( int i=start; i<cend; i++ ) {
+            char c=buff[i];
+            if( c=='%' || (c=='+' && query) ) {
+                idx=i;
+                break;
+            }
         }
-        if( idx<0 && idx2<0 ) {
+        if( idx<0 ) {
             return;
         }
 
-        // idx will be the smallest positive index ( first % or + )
-        if( (idx2 >= 0 && idx2 < idx) || idx < 0 ) {
-            idx=idx2;
-        }
-
         for( int j=idx; j<cend; j++, idx++ ) {
             if( buff[ j ] == '+' && query ) {
                 buff[idx]=( ' ' );
@@ -185,6 +186,62 @@ public final class UDecoder {
         mb.setEnd( idx );
     }
 
+    /** URLDecode the bytes between the position and the limit of the
+     *  buffer, which may be direct. The buffer is modified in place and its
+     *  limit is moved to the end of the decoded bytes; it is left untouched
+     *  if there is nothing to decode.
+     */
+    public void convert( ByteBuffer bb, boolean query )
+        throws IOException
+    {
+        int start=bb.position();
+        int end=bb.limit();
+
+        int idx;
+        if( bb.hasArray() ) {
+            int offset=bb.arrayOffset();
+            idx=findEscape( bb.array(), offset + start, offset + end, query );
+            if( idx>=0 ) {
+                idx-=offset;
+            }
+        } else {
+            idx=findEscape( bb, start, end, query );
+        }
+        if( idx<0 ) {
+            return;
+        }
+
+        boolean noSlash = !(ALLOW_ENCODED_SLASH || query);
+
+        for( int j=idx; j<end; j++, idx++ ) {
+            byte b=bb.get( j );
+            if( b == '+' && query) {
+                bb.put( idx, (byte) ' ' );
+            } else if( b != '%' ) {
+                bb.put( idx, b );
+            } else {
+                // read next 2 digits
+                if( j+2 >= end ) {
+                    throw EXCEPTION_EOF;
+                }
+                byte b1=bb.get( j+1 );
+                byte b2=bb.get( j+2 );
+                if( !isHexDigit( b1 ) || ! isHexDigit(b2 )) {
+                    throw EXCEPTION_NOT_HEX_DIGIT;
+                }
+
+                j+=2;
+                int res=x2c( b1, b2 );
+                if (noSlash && (res == '/')) {
+                    throw EXCEPTION_SLASH;
+                }
+                bb.put( idx, (byte) res );
+            }
+        }
+
+        bb.limit( idx );
+    }
+
     /** URLDecode, will modify the source
      *  Includes converting  '+' to ' '.
      */
@@ -254,7 +311,7 @@ public final class UDecoder {
 
             // if there were non-metacharacters, copy them all as a block
             if (laPos > strPos) {
-                dec.append(str.substring(strPos,laPos));
+                dec.append(str, strPos, laPos);
                 strPos = laPos;
             }
 
@@ -270,11 +327,16 @@ public final class UDecoder {
                 strPos++;
                 continue;
             } else if (metaChar == '%') {
-                // We throw the original exception - the super will deal with
-                // it
-                //                try {
-                dec.append((char)Integer.
-                           parseInt(str.substring(strPos + 1, strPos + 3),16));
+                if (strPos + 2 < strLen && isHexDigit(str.charAt(strPos + 1))
+                        && isHexDigit(str.charAt(strPos + 2))) {
+                    dec.append((char) x2c(str.charAt(strPos + 1),
+                            str.charAt(strPos + 2)));
+                } else {
+                    // We throw the original exception - the super will deal
+                    // with it
+                    dec.append((char)Integer.
+                            parseInt(str.substring(strPos + 1, strPos + 3),16));
+                }
                 strPos += 3;
             }
         }
@@ -284,6 +346,75 @@ public final class UDecoder {
 
 
 
+    /**
+     * Find the first '%', or '+' if <code>query</code> is set, in the given
+     * range, looking at eight bytes at a time.
+     *
+     * @return the index of the first escape or -1 if there is none
+     */
+    private static int findEscape( byte buff[], int start, int end,
+            boolean query ) {
+        int i=start;
+        if( end-start>=8 ) {
+            // Little endian, so that the first byte is the lowest one
+            ByteBuffer words=ByteBuffer.wrap( buff ).order( ByteOrder.LITTLE_ENDIAN );
+            for( ; i+8<=end; i+=8 ) {
+                long found=escapes( words.getLong( i ), query );
+                if( found!=0 ) {
+                    return i + (Long.numberOfTrailingZeros( found ) >>> 3);
+                }
+            }
+        }
+        for( ; i<end; i++ ) {
+            if( buff[i]=='%' || (buff[i]=='+' && query) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first '%', or '+' if <code>query</code> is set, between the
+     * given absolute positions of a buffer without a backing array.
+     */
+    private static int findEscape( ByteBuffer bb, int start, int end,
+            boolean query ) {
+        boolean littleEndian=(bb.order() == ByteOrder.LITTLE_ENDIAN);
+        int i=start;
+        for( ; i+8<=end; i+=8 ) {
+            long found=escapes( bb.getLong( i ), query );
+            if( found!=0 ) {
+                int zeros=littleEndian ? Long.numberOfTrailingZeros( found )
+                        : Long.numberOfLeadingZeros( found );
+                return i + (zeros >>> 3);
+            }
+        }
+        for( ; i<end; i++ ) {
+            byte b=bb.get( i );
+            if( b=='%' || (b=='+' && query) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a word with the high bit set in exactly those bytes of the
+     * given word that are '%', or '+' if <code>query</code> is set.
+     */
+    private static long escapes( long word, boolean query ) {
+        long found=zeroBytes( word ^ PERCENT_WORD );
+        if( query ) {
+            found|=zeroBytes( word ^ PLUS_WORD );
+        }
+        return found;
+    }
+
+    private static long zeroBytes( long word ) {
+        long t=(word & LOW_BITS) + LOW_BITS;
+        return ~(t | word | LOW_BITS);
+    }
+
     private static boolean isHexDigit( int c ) {
         return ( ( c>='0' && c<='9' ) ||
                  ( c>='a' && c<='f' ) ||
@@ -33,6 +33,7 @@ import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.AccessController;
@@ -42,7 +43,13 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
@@ -70,6 +77,7 @@ import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
 import org.apache.catalina.WebResource;
 import org.apache.catalina.WebResourceRoot;
+import org.apache.catalina.connector.CoyoteOutputStream;
 import org.apache.catalina.connector.RequestFacade;
 import org.apache.catalina.connector.ResponseFacade;
 import org.apache.catalina.util.RequestUtil;
@@ -155,6 +163,11 @@ public class DefaultServlet extends HttpServlet {
      */
     protected static final int BUFFER_SIZE = 4096;
 
+    /**
+     * Format of the resources compressed in memory.
+     */
+    private static final CompressionFormat GZIP_FORMAT = new CompressionFormat(".gz", "gzip");
+
 
     // ----------------------------------------------------- Static Initializer
 
@@ -255,6 +268,39 @@ public class DefaultServlet extends HttpServlet {
      */
     protected boolean showServerInfo = true;
 
+    /**
+     * Maximum total size in bytes of the resources held in memory by this
+     * servlet, 0 to disable the cache.
+     */
+    protected long resourceCacheSize = 0;
+
+    /**
+     * Maximum size in bytes of a resource held in memory by this servlet.
+     */
+    protected int resourceCacheObjectMaxSize = 64 * 1024;
+
+    /**
+     * Should text resources be held in memory gzip-compressed, and served
+     * compressed to the clients which accept it?
+     */
+    protected boolean resourceCacheGzip = false;
+
+    /**
+     * The resources held in memory, keyed by web application path and
+     * encoding.
+     */
+    private final transient ConcurrentHashMap<String, CachedResource> resourceCache =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The resources held in memory, least recently added first, scanned as a
+     * clock to find the resources to evict.
+     */
+    private final transient Queue<CachedResource> resourceCacheOrder =
+            new ConcurrentLinkedQueue<>();
+    private final transient AtomicLong resourceCacheUsed = new AtomicLong();
+    private final transient AtomicBoolean resourceCacheEvicting = new AtomicBoolean();
+
 
     // --------------------------------------------------------- Public Methods
 
@@ -263,7 +309,9 @@ public class DefaultServlet extends HttpServlet {
      */
     @Override
     public void destroy() {
-        // NOOP
+        resourceCache.clear();
+        resourceCacheOrder.clear();
+        resourceCacheUsed.set(0);
     }
 
 
@@ -341,6 +389,16 @@ public class DefaultServlet extends HttpServlet {
         if (getServletConfig().getInitParameter("showServerInfo") != null) {
             showServerInfo = Boolean.parseBoolean(getServletConfig().getInitParameter("showServerInfo"));
         }
+
+        if (getServletConfig().getInitParameter("resourceCacheSize") != null)
+            resourceCacheSize =
+                Long.parseLong(getServletConfig().getInitParameter("resourceCacheSize")) * 1024;
+
+        if (getServletConfig().getInitParameter("resourceCacheObjectMaxSize") != null)
+            resourceCacheObjectMaxSize =
+                Integer.parseInt(getServletConfig().getInitParameter("resourceCacheObjectMaxSize")) * 1024;
+
+        resourceCacheGzip = Boolean.parseBoolean(getServletConfig().getInitParameter("resourceCacheGzip"));
     }
 
     private CompressionFormat[] parseCompressionFormats(String precompressed, String gzip) {
@@ -871,18 +929,7 @@ public class DefaultServlet extends HttpServlet {
             List<PrecompressedResource> precompressedResources =
                     getAvailablePrecompressedResources(path);
             if (!precompressedResources.isEmpty()) {
-                Collection<String> varyHeaders = response.getHeaders("Vary");
-                boolean addRequired = true;
-                for (String varyHeader : varyHeaders) {
-                    if ("*".equals(varyHeader) ||
-                            "accept-encoding".equalsIgnoreCase(varyHeader)) {
-                        addRequired = false;
-                        break;
-                    }
-                }
-                if (addRequired) {
-                    response.addHeader("Vary", "accept-encoding");
-                }
+                addVaryAcceptEncoding(response);
                 PrecompressedResource bestResource =
                         getBestPrecompressedResource(request, precompressedResources);
                 if (bestResource != null) {
@@ -893,6 +940,23 @@ public class DefaultServlet extends HttpServlet {
             }
         }
 
+        // Otherwise serve a text resource compressed in memory if the cache
+        // holds it, or can hold it, and the client accepts it. Ranges of the
+        // compressed content are not served.
+        CachedResource gzippedResource = null;
+        if (!usingPrecompressedVersion && resourceCacheSize > 0 && resourceCacheGzip &&
+                !included && !isError && resource.isFile() && isText(contentType) &&
+                !pathEndsWithCompressedExtension(path)) {
+            addVaryAcceptEncoding(response);
+            if (request.getHeader("Range") == null && acceptsGzip(request)) {
+                gzippedResource = getCachedResource(resource, true);
+                if (gzippedResource != null) {
+                    response.addHeader("Content-Encoding", "gzip");
+                    usingPrecompressedVersion = true;
+                }
+            }
+        }
+
         ArrayList<Range> ranges = null;
         long contentLength = -1L;
 
@@ -928,7 +992,11 @@ public class DefaultServlet extends HttpServlet {
             }
 
             // Get content length
-            contentLength = resource.getContentLength();
+            if (gzippedResource != null) {
+                contentLength = gzippedResource.content.remaining();
+            } else {
+                contentLength = resource.getContentLength();
+            }
             // Special case for zero length files, which would cause a
             // (silent) ISE when setting the output buffer size
             if (contentLength == 0L) {
@@ -1079,18 +1147,25 @@ public class DefaultServlet extends HttpServlet {
                                 // Just included but no conversion
                                 renderResult = source;
                             }
+                        } else if (gzippedResource != null) {
+                            write(gzippedResource.content, ostream);
                         } else {
                             if (!checkSendfile(request, response, resource, contentLength, null)) {
                                 // sendfile not possible so check if resource
-                                // content is available directly
-                                byte[] resourceBody = resource.getContent();
-                                if (resourceBody == null) {
-                                    // Resource content not available, use
-                                    // inputstream
-                                    renderResult = resource.getInputStream();
+                                // content is held in memory
+                                CachedResource cachedResource = getCachedResource(resource, false);
+                                if (cachedResource != null) {
+                                    write(cachedResource.content, ostream);
                                 } else {
-                                    // Use the resource content directly
-                                    ostream.write(resourceBody);
+                                    byte[] resourceBody = resource.getContent();
+                                    if (resourceBody == null) {
+                                        // Resource content not available, use
+                                        // inputstream
+                                        renderResult = resource.getInputStream();
+                                    } else {
+                                        // Use the resource content directly
+                                        ostream.write(resourceBody);
+                                    }
                                 }
                             }
                         }
@@ -1239,6 +1314,25 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    private static void addVaryAcceptEncoding(HttpServletResponse response) {
+        Collection<String> varyHeaders = response.getHeaders("Vary");
+        for (String varyHeader : varyHeaders) {
+            if ("*".equals(varyHeader) ||
+                    "accept-encoding".equalsIgnoreCase(varyHeader)) {
+                return;
+            }
+        }
+        response.addHeader("Vary", "accept-encoding");
+    }
+
+
+    private boolean acceptsGzip(HttpServletRequest request) {
+        List<PrecompressedResource> gzip = new ArrayList<>(1);
+        gzip.add(new PrecompressedResource(null, GZIP_FORMAT));
+        return getBestPrecompressedResource(request, gzip) != null;
+    }
+
+
     private boolean pathEndsWithCompressedExtension(String path) {
         for (CompressionFormat format : compressionFormats) {
             if (path.endsWith(format.extension)) {
@@ -2316,6 +2410,12 @@ public class DefaultServlet extends HttpServlet {
                       Range range)
         throws IOException {
 
+        CachedResource cachedResource = getCachedResource(resource, false);
+        if (cachedResource != null) {
+            write(cachedResource.slice(range), ostream);
+            return;
+        }
+
         IOException exception = null;
 
         InputStream resourceInputStream = resource.getInputStream();
@@ -2351,6 +2451,25 @@ public class DefaultServlet extends HttpServlet {
 
         IOException exception = null;
 
+        CachedResource cachedResource = getCachedResource(resource, false);
+        while (cachedResource != null && ranges.hasNext()) {
+
+            Range currentRange = ranges.next();
+
+            // Writing MIME header.
+            ostream.println();
+            ostream.println("--" + mimeSeparation);
+            if (contentType != null)
+                ostream.println("Content-Type: " + contentType);
+            ostream.println("Content-Range: bytes " + currentRange.start
+                           + "-" + currentRange.end + "/"
+                           + currentRange.length);
+            ostream.println();
+
+            // Printing content
+            write(cachedResource.slice(currentRange), ostream);
+        }
+
         while ( (exception == null) && (ranges.hasNext()) ) {
 
             InputStream resourceInputStream = resource.getInputStream();
@@ -2384,6 +2503,159 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * Write the remaining content of the specified buffer to the specified
+     * output stream, without modifying the buffer.
+     *
+     * @param content   The content to write
+     * @param ostream   The output stream to write to
+     * @exception IOException if an input/output error occurs
+     */
+    protected void write(ByteBuffer content, ServletOutputStream ostream)
+        throws IOException {
+
+        ByteBuffer source = content.duplicate();
+        if (ostream instanceof CoyoteOutputStream) {
+            ((CoyoteOutputStream) ostream).write(source);
+            return;
+        }
+        byte buffer[] = new byte[Math.min(output, source.remaining())];
+        while (source.hasRemaining()) {
+            int len = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, len);
+            ostream.write(buffer, 0, len);
+        }
+    }
+
+
+    /**
+     * Get the content of the specified resource from the in-memory cache,
+     * loading it if the resource is small enough.
+     *
+     * @param resource  The resource, which must be a file
+     * @param gzip      Should the content be gzip-compressed?
+     * @return the cached content, or <code>null</code> if the cache is
+     *  disabled or cannot hold the content
+     * @exception IOException if an input/output error occurs
+     */
+    private CachedResource getCachedResource(WebResource resource, boolean gzip)
+        throws IOException {
+
+        if (resourceCacheSize <= 0) {
+            return null;
+        }
+        long sourceLength = resource.getContentLength();
+        if (sourceLength < 0 || sourceLength > resourceCacheObjectMaxSize) {
+            return null;
+        }
+
+        String key = gzip ? "gzip:" + resource.getWebappPath() : resource.getWebappPath();
+        long lastModified = resource.getLastModified();
+        CachedResource cachedResource = resourceCache.get(key);
+        if (cachedResource != null) {
+            if (cachedResource.lastModified == lastModified &&
+                    cachedResource.sourceLength == sourceLength) {
+                if (!cachedResource.accessed) {
+                    cachedResource.accessed = true;
+                }
+                return cachedResource;
+            }
+            // The resource has changed
+            if (resourceCache.remove(key, cachedResource)) {
+                resourceCacheOrder.remove(cachedResource);
+                resourceCacheUsed.addAndGet(-cachedResource.size());
+            }
+        }
+
+        byte[] content = resource.getContent();
+        if (content == null) {
+            try (InputStream is = resource.getInputStream()) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream((int) sourceLength);
+                readFully(is, baos);
+                content = baos.toByteArray();
+            }
+        }
+        if (content.length != sourceLength) {
+            // The resource is being modified
+            return null;
+        }
+        if (gzip) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length);
+            try (GZIPOutputStream gzos = new GZIPOutputStream(baos)) {
+                gzos.write(content);
+            }
+            if (baos.size() >= content.length) {
+                // Not worth compressing
+                return null;
+            }
+            content = baos.toByteArray();
+        }
+
+        cachedResource = new CachedResource(key, ByteBuffer.wrap(content).asReadOnlyBuffer(),
+                lastModified, sourceLength);
+        CachedResource previous = resourceCache.putIfAbsent(key, cachedResource);
+        if (previous != null) {
+            return previous;
+        }
+        resourceCacheOrder.offer(cachedResource);
+        if (resourceCacheUsed.addAndGet(cachedResource.size()) > resourceCacheSize) {
+            evictCachedResources();
+        }
+        return cachedResource;
+    }
+
+
+    /**
+     * Remove resources which have not been used recently from the in-memory
+     * cache until it uses no more than 95% of its maximum size. The resources
+     * are visited in the order they were added and a resource used since it
+     * was last visited is given a second chance. Only one thread evicts at a
+     * time, others return immediately.
+     */
+    private void evictCachedResources() {
+        if (!resourceCacheEvicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long target = resourceCacheSize * 95 / 100;
+            int secondChances = resourceCache.size();
+            while (resourceCacheUsed.get() > target) {
+                CachedResource cachedResource = resourceCacheOrder.poll();
+                if (cachedResource == null) {
+                    break;
+                }
+                if (cachedResource.accessed && secondChances-- > 0) {
+                    cachedResource.accessed = false;
+                    resourceCacheOrder.offer(cachedResource);
+                } else if (resourceCache.remove(cachedResource.key, cachedResource)) {
+                    resourceCacheUsed.addAndGet(-cachedResource.size());
+                }
+            }
+        } finally {
+            resourceCacheEvicting.set(false);
+        }
+    }
+
+
+    /**
+     * Read the whole of the specified input stream into the specified
+     * output stream.
+     *
+     * @param istream The input stream to read from
+     * @param ostream The output stream to write to
+     * @exception IOException if an input/output error occurs
+     */
+    private void readFully(InputStream istream, ByteArrayOutputStream ostream)
+        throws IOException {
+
+        byte buffer[] = new byte[input];
+        int len;
+        while ((len = istream.read(buffer)) != -1) {
+            ostream.write(buffer, 0, len);
+        }
+    }
+
+
     /**
      * Copy the contents of the specified input stream to the specified
      * output stream, and ensure that both streams are closed before returning
@@ -2535,6 +2807,37 @@ public class DefaultServlet extends HttpServlet {
         }
     }
 
+    /**
+     * The content of a resource held in memory, with what is needed to check
+     * that the resource has not changed since.
+     */
+    private static class CachedResource {
+        public final String key;
+        public final ByteBuffer content;
+        public final long lastModified;
+        public final long sourceLength;
+        public volatile boolean accessed = false;
+
+        private CachedResource(String key, ByteBuffer content, long lastModified,
+                long sourceLength) {
+            this.key = key;
+            this.content = content;
+            this.lastModified = lastModified;
+            this.sourceLength = sourceLength;
+        }
+
+        public long size() {
+            return content.capacity();
+        }
+
+        public ByteBuffer slice(Range range) {
+            ByteBuffer slice = content.duplicate();
+            slice.position((int) range.start);
+            slice.limit((int) range.end + 1);
+            return slice;
+        }
+    }
+
     private static class PrecompressedResource {
         public final WebResource resource;
         public final CompressionFormat format;
@@ -17,6 +17,7 @@
 package org.apache.tomcat.websocket;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
@@ -67,6 +68,10 @@ public class Utf8Decoder extends CharsetDecoder {
     };
     private static final int lowerEncodingLimit[] = {-1, 0x80, 0x800, 0x10000};
 
+    // High bit of each byte of a long. A word of input with none of these
+    // bits set is eight ASCII characters.
+    private static final long NON_ASCII_MASK = 0x8080808080808080L;
+
 
     public Utf8Decoder() {
         super(B2CConverter.UTF_8, 1.0f, 1.0f);
@@ -78,6 +83,9 @@ public class Utf8Decoder extends CharsetDecoder {
         if (in.hasArray() && out.hasArray()) {
             return decodeHasArray(in, out);
         }
+        if (in.isDirect() && out.hasArray()) {
+            return decodeDirect(in, out);
+        }
         return decodeNotHasArray(in, out);
     }
 
@@ -156,9 +164,23 @@ public class Utf8Decoder extends CharsetDecoder {
         final int inIndexLimit = limit + in.arrayOffset();
         int inIndex = pos + in.arrayOffset();
         int outIndex = out.position() + out.arrayOffset();
+        final int inOffset = in.arrayOffset();
         // if someone would change the limit in process,
         // he would face consequences
         for (; inIndex < inIndexLimit && outRemaining > 0; inIndex++) {
+            // Copy runs of ASCII eight bytes at a time
+            while (outRemaining >= 8 && inIndexLimit - inIndex >= 8 &&
+                    (in.getLong(inIndex - inOffset) & NON_ASCII_MASK) == 0) {
+                for (int i = 0; i < 8; i++) {
+                    cArr[outIndex + i] = (char) bArr[inIndex + i];
+                }
+                inIndex += 8;
+                outIndex += 8;
+                outRemaining -= 8;
+            }
+            if (inIndex == inIndexLimit || outRemaining == 0) {
+                break;
+            }
             int jchar = bArr[inIndex];
             if (jchar < 0) {
                 jchar = jchar & 0x7F;
@@ -209,6 +231,10 @@ public class Utf8Decoder extends CharsetDecoder {
                 outRemaining--;
             } else {
                 if (outRemaining < 2) {
+                    // Leave the four byte sequence to be decoded by the next
+                    // call and keep what has been decoded so far
+                    in.position(inIndex - 3 - in.arrayOffset());
+                    out.position(outIndex - out.arrayOffset());
                     return CoderResult.OVERFLOW;
                 }
                 cArr[outIndex++] = (char) ((jchar >> 0xA) + 0xD7C0);
@@ -221,4 +247,111 @@ public class Utf8Decoder extends CharsetDecoder {
         return (outRemaining == 0 && inIndex < inIndexLimit) ? CoderResult.OVERFLOW
                 : CoderResult.UNDERFLOW;
     }
+
+
+    /**
+     * Decodes from a direct buffer using absolute reads, copying runs of
+     * ASCII eight bytes at a time. Malformed and unmappable input is reported
+     * as it is by {@link #decodeHasArray(ByteBuffer, CharBuffer)}.
+     */
+    private CoderResult decodeDirect(ByteBuffer in, CharBuffer out) {
+        int outRemaining = out.remaining();
+        int pos = in.position();
+        final int limit = in.limit();
+        final char[] cArr = out.array();
+        int outIndex = out.position() + out.arrayOffset();
+        CoderResult result = null;
+        // getLong() follows the buffer's byte order, so the first byte is
+        // either the most or the least significant one of the word
+        final boolean bigEndian = in.order() == ByteOrder.BIG_ENDIAN;
+        final int firstShift = bigEndian ? 56 : 0;
+        final int shiftStep = bigEndian ? -8 : 8;
+        for (; pos < limit && outRemaining > 0; pos++) {
+            while (outRemaining >= 8 && limit - pos >= 8) {
+                long word = in.getLong(pos);
+                if ((word & NON_ASCII_MASK) != 0) {
+                    break;
+                }
+                // Widen the bytes from the word already read
+                int shift = firstShift;
+                for (int i = 0; i < 8; i++) {
+                    cArr[outIndex + i] = (char) ((word >>> shift) & 0x7F);
+                    shift += shiftStep;
+                }
+                pos += 8;
+                outIndex += 8;
+                outRemaining -= 8;
+            }
+            if (pos == limit || outRemaining == 0) {
+                break;
+            }
+            int jchar = in.get(pos);
+            if (jchar < 0) {
+                jchar = jchar & 0x7F;
+                int tail = remainingBytes[jchar];
+                if (tail == -1) {
+                    result = CoderResult.malformedForLength(1);
+                    break;
+                }
+                if (limit - pos < 1 + tail) {
+                    // Apache Tomcat added test - detects invalid sequence as
+                    // early as possible
+                    if (jchar == 0x74 && limit > pos + 1) {
+                        if ((in.get(pos + 1) & 0xFF) > 0x8F) {
+                            result = CoderResult.unmappableForLength(4);
+                        }
+                    }
+                    break;
+                }
+                for (int i = 0; i < tail; i++) {
+                    int nextByte = in.get(pos + i + 1) & 0xFF;
+                    if ((nextByte & 0xC0) != 0x80) {
+                        result = CoderResult.malformedForLength(1 + i);
+                        break;
+                    }
+                    jchar = (jchar << 6) + nextByte;
+                }
+                if (result != null) {
+                    break;
+                }
+                jchar -= remainingNumbers[tail];
+                if (jchar < lowerEncodingLimit[tail]) {
+                    // Should have been encoded in fewer octets
+                    result = CoderResult.malformedForLength(1);
+                    break;
+                }
+                // Apache Tomcat added test
+                if (jchar >= 0xD800 && jchar <= 0xDFFF) {
+                    result = CoderResult.unmappableForLength(3);
+                    break;
+                }
+                // Apache Tomcat added test
+                if (jchar > 0x10FFFF) {
+                    result = CoderResult.unmappableForLength(4);
+                    break;
+                }
+                if (jchar > 0xffff) {
+                    if (outRemaining < 2) {
+                        result = CoderResult.OVERFLOW;
+                        break;
+                    }
+                    cArr[outIndex++] = (char) ((jchar >> 0xA) + 0xD7C0);
+                    cArr[outIndex++] = (char) ((jchar & 0x3FF) + 0xDC00);
+                    outRemaining -= 2;
+                    pos += tail;
+                    continue;
+                }
+                pos += tail;
+            }
+            cArr[outIndex++] = (char) jchar;
+            outRemaining--;
+        }
+        in.position(pos);
+        out.position(outIndex - out.arrayOffset());
+        if (result != null) {
+            return result;
+        }
+        return (outRemaining == 0 && pos < limit) ? CoderResult.OVERFLOW
+                : CoderResult.UNDERFLOW;
+    }
 }
@@ -23,12 +23,21 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import javax.servlet.annotation.ServletSecurity.TransportGuarantee;
 import javax.servlet.http.HttpServletResponse;
@@ -53,6 +62,7 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.IntrospectionUtils;
 import org.apache.tomcat.util.buf.B2CConverter;
+import org.apache.tomcat.util.buf.HexUtils;
 import org.apache.tomcat.util.descriptor.web.SecurityCollection;
 import org.apache.tomcat.util.descriptor.web.SecurityConstraint;
 import org.apache.tomcat.util.res.StringManager;
@@ -147,6 +157,30 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
     private int transportGuaranteeRedirectStatus = HttpServletResponse.SC_FOUND;
 
 
+    /**
+     * The maximum number of successful username and password authentications
+     * to cache. <code>0</code> disables the cache.
+     */
+    private int authenticationCacheMaxSize = 0;
+
+
+    /**
+     * The time, in milliseconds, a successful authentication is cached for.
+     */
+    private long authenticationCacheTtl = 60 * 1000;
+
+
+    /**
+     * The cached successful authentications. Created on start when
+     * {@link #authenticationCacheMaxSize} is positive.
+     */
+    private volatile AuthenticationCache authenticationCache = null;
+
+
+    private final AtomicLong authenticationCacheHitCount = new AtomicLong();
+    private final AtomicLong authenticationCacheMissCount = new AtomicLong();
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -181,6 +215,81 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
     @Override
     public void setCredentialHandler(CredentialHandler credentialHandler) {
         this.credentialHandler = credentialHandler;
+        clearAuthenticationCache();
+    }
+
+
+    /**
+     * @return The maximum number of successful username and password
+     *         authentications which are cached, or <code>0</code> if they are
+     *         not cached.
+     */
+    public int getAuthenticationCacheMaxSize() {
+        return authenticationCacheMaxSize;
+    }
+
+
+    /**
+     * Set the maximum number of successful username and password
+     * authentications to cache, so that repeated authentications of the same
+     * user with the same credentials, e.g. by clients using BASIC
+     * authentication, skip the password lookup and the credential handler.
+     * The Principal is cached too, so changes to the user, including its
+     * password and roles, are only seen once the entry expires or the cache is
+     * cleared. Takes effect on the next start.
+     *
+     * @param authenticationCacheMaxSize The maximum number of entries, or
+     *                                   <code>0</code> to disable the cache
+     */
+    public void setAuthenticationCacheMaxSize(int authenticationCacheMaxSize) {
+        this.authenticationCacheMaxSize = authenticationCacheMaxSize;
+    }
+
+
+    /**
+     * @return The time, in milliseconds, a successful authentication is cached
+     *         for.
+     */
+    public long getAuthenticationCacheTtl() {
+        return authenticationCacheTtl;
+    }
+
+
+    /**
+     * Set the time, in milliseconds, a successful authentication is cached
+     * for.
+     *
+     * @param authenticationCacheTtl The time to live of the cached entries
+     */
+    public void setAuthenticationCacheTtl(long authenticationCacheTtl) {
+        this.authenticationCacheTtl = authenticationCacheTtl;
+    }
+
+
+    /**
+     * @return The number of username and password authentications which were
+     *         answered from the cache.
+     */
+    public long getAuthenticationCacheHitCount() {
+        return authenticationCacheHitCount.get();
+    }
+
+
+    /**
+     * @return The number of username and password authentications which were
+     *         not found in the cache, when it is enabled.
+     */
+    public long getAuthenticationCacheMissCount() {
+        return authenticationCacheMissCount.get();
+    }
+
+
+    /**
+     * @return The number of authentications currently cached.
+     */
+    public int getAuthenticationCacheEntryCount() {
+        AuthenticationCache cache = authenticationCache;
+        return cache == null ? 0 : cache.entries.size();
     }
 
 
@@ -336,6 +445,27 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
             return null;
         }
 
+        // Has the same user recently been authenticated with the same
+        // credentials?
+        AuthenticationCache cache = authenticationCache;
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.getKey(username, credentials);
+            CachedAuthentication cached = cache.entries.get(cacheKey);
+            if (cached != null) {
+                if (cached.expiry - System.currentTimeMillis() > 0) {
+                    authenticationCacheHitCount.incrementAndGet();
+                    if (containerLog.isTraceEnabled()) {
+                        containerLog.trace(sm.getString("realmBase.authenticateSuccess",
+                                                        username));
+                    }
+                    return cached.principal;
+                }
+                cache.entries.remove(cacheKey, cached);
+            }
+            authenticationCacheMissCount.incrementAndGet();
+        }
+
         // Look up the user's credentials
         String serverCredentials = getPassword(username);
 
@@ -358,7 +488,11 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
                 containerLog.trace(sm.getString("realmBase.authenticateSuccess",
                                                 username));
             }
-            return getPrincipal(username);
+            Principal principal = getPrincipal(username);
+            if (cacheKey != null && principal != null) {
+                cacheAuthentication(cache.entries, cacheKey, principal);
+            }
+            return principal;
         } else {
             if (containerLog.isTraceEnabled()) {
                 containerLog.trace(sm.getString("realmBase.authenticateFailure",
@@ -1101,6 +1235,13 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
             credentialHandler = new MessageDigestCredentialHandler();
         }
 
+        if (authenticationCacheMaxSize > 0) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            authenticationCache = new AuthenticationCache(
+                    new SecretKeySpec(key, "HmacSHA256"));
+        }
+
         setState(LifecycleState.STARTING);
     }
 
@@ -1116,6 +1257,8 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
     @Override
     protected void stopInternal() throws LifecycleException {
         setState(LifecycleState.STOPPING);
+
+        authenticationCache = null;
     }
 
 
@@ -1130,6 +1273,41 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
 
     // ------------------------------------------------------ Protected Methods
 
+    /**
+     * Remove all the cached authentications, if any. Realms should call this
+     * whenever they reload their users.
+     */
+    protected void clearAuthenticationCache() {
+        AuthenticationCache cache = authenticationCache;
+        if (cache != null) {
+            cache.entries.clear();
+        }
+    }
+
+
+    private void cacheAuthentication(Map<String,CachedAuthentication> cache,
+            String cacheKey, Principal principal) {
+        long now = System.currentTimeMillis();
+        if (cache.size() >= authenticationCacheMaxSize) {
+            // Drop the expired entries first, then enough others to leave
+            // some room
+            int target = authenticationCacheMaxSize - Math.max(1, authenticationCacheMaxSize / 10);
+            Iterator<CachedAuthentication> iter = cache.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().expiry - now <= 0) {
+                    iter.remove();
+                }
+            }
+            iter = cache.values().iterator();
+            while (cache.size() > target && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        cache.put(cacheKey, new CachedAuthentication(principal, now + authenticationCacheTtl));
+    }
+
+
     protected boolean hasMessageDigest() {
         CredentialHandler ch = credentialHandler;
         if (ch instanceof MessageDigestCredentialHandler) {
@@ -1411,6 +1589,64 @@ public abstract class RealmBase extends LifecycleMBeanBase implements Realm {
     }
 
 
+    /**
+     * The cached successful authentications of a started realm, keyed by the
+     * HMAC of the username and credentials so that no credentials are kept in
+     * memory, together with the random key of that HMAC. Both are replaced at
+     * once on start and stop, so that an authentication in progress keeps
+     * using the ones it started with.
+     */
+    private static class AuthenticationCache {
+
+        private final Map<String,CachedAuthentication> entries =
+                new ConcurrentHashMap<>();
+        private final ThreadLocal<Mac> macs;
+
+        AuthenticationCache(final SecretKeySpec key) {
+            macs = new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    try {
+                        Mac mac = Mac.getInstance("HmacSHA256");
+                        mac.init(key);
+                        return mac;
+                    } catch (GeneralSecurityException e) {
+                        // HmacSHA256 is required to be supported by every JRE
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+
+        String getKey(String username, String credentials) {
+            Mac mac = macs.get();
+            byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+            // Prefix the length so that the boundary between the username and
+            // the credentials is part of the key
+            mac.update((byte) (usernameBytes.length >>> 24));
+            mac.update((byte) (usernameBytes.length >>> 16));
+            mac.update((byte) (usernameBytes.length >>> 8));
+            mac.update((byte) usernameBytes.length);
+            mac.update(usernameBytes);
+            mac.update(credentials.getBytes(StandardCharsets.UTF_8));
+            // doFinal() resets the Mac for the next key
+            return HexUtils.toHexString(mac.doFinal());
+        }
+    }
+
+
+    private static class CachedAuthentication {
+
+        private final Principal principal;
+        private final long expiry;
+
+        CachedAuthentication(Principal principal, long expiry) {
+            this.principal = principal;
+            this.expiry = expiry;
+        }
+    }
+
+
     // -------------------- JMX and Registration  --------------------
 
     @Override
@@ -27,8 +27,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -49,6 +64,7 @@ import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.res.StringManager;
 import org.apache.tomcat.util.digester.Digester;
 import org.apache.tomcat.util.modeler.Registry;
+import org.xml.sax.SAXException;
 
 
 /**
@@ -124,7 +140,8 @@ public class HostConfig
 
 
     /**
-     * Map of deployed applications.
+     * Map of deployed applications. Applications may be deployed concurrently,
+     * so all accesses synchronize on the map.
      */
     protected HashMap<String, DeployedApplication> deployed =
         new HashMap<String, DeployedApplication>();
@@ -151,10 +168,63 @@ public class HostConfig
 
     /**
      * The <code>Digester</code> instance used to parse context descriptors.
+     * @deprecated Deployment now uses the digester of the current thread, see
+     *  {@link #parseContext(File)}
      */
+    @Deprecated
     protected static Digester digester = createDigester();
 
 
+    /**
+     * The <code>Digester</code> instances used to parse context descriptors,
+     * one per deploying thread, so that descriptors may be parsed
+     * concurrently.
+     */
+    protected static final ThreadLocal<Digester> digesters =
+        new ThreadLocal<Digester>() {
+            @Override
+            protected Digester initialValue() {
+                return createDigester();
+            }
+        };
+
+
+    /**
+     * The number of threads used to deploy the applications of the Host. A
+     * value of 1 deploys them one at a time on the calling thread, zero uses
+     * one thread per available processor and a negative value leaves that
+     * many processors unused.
+     */
+    protected int deploymentThreads = Integer.getInteger(
+            "org.apache.catalina.startup.HostConfig.DEPLOYMENT_THREADS",
+            1).intValue();
+
+
+    /**
+     * Comma separated context paths of the applications which other
+     * applications of the Host depend on. They are deployed first, one at a
+     * time and in this order, before the remaining applications are deployed
+     * concurrently. Use <code>/</code> or <code>ROOT</code> for the root
+     * context.
+     */
+    protected String deploymentOrder = null;
+
+
+    /**
+     * The executor used to deploy applications concurrently, or
+     * <code>null</code> if they are deployed on the calling thread.
+     */
+    protected ExecutorService deploymentExecutor = null;
+
+
+    /**
+     * Time taken by the last deployment of each application, in
+     * milliseconds, keyed by context path.
+     */
+    protected Map<String, Long> deploymentDurations =
+        new ConcurrentHashMap<String, Long>();
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -284,6 +354,55 @@ public class HostConfig
     }    
 
 
+    /**
+     * Return the number of threads used to deploy applications.
+     */
+    public int getDeploymentThreads() {
+
+        return (this.deploymentThreads);
+
+    }
+
+
+    /**
+     * Set the number of threads used to deploy applications. The new value
+     * takes effect the next time the Host is started.
+     *
+     * @param deploymentThreads The number of threads, zero for one per
+     *  available processor, or a negative value for all but that many
+     *  processors
+     */
+    public void setDeploymentThreads(int deploymentThreads) {
+
+        this.deploymentThreads = deploymentThreads;
+
+    }
+
+
+    /**
+     * Return the context paths of the applications deployed first, in order.
+     */
+    public String getDeploymentOrder() {
+
+        return (this.deploymentOrder);
+
+    }
+
+
+    /**
+     * Set the context paths of the applications which are deployed first,
+     * one at a time and in the given order, because other applications of
+     * the Host depend on them.
+     *
+     * @param deploymentOrder Comma separated context paths
+     */
+    public void setDeploymentOrder(String deploymentOrder) {
+
+        this.deploymentOrder = deploymentOrder;
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -351,7 +470,10 @@ public class HostConfig
      * on which the application was deployed
      */
     public long getDeploymentTime(String name) {
-    	DeployedApplication app = deployed.get(name);
+    	DeployedApplication app;
+    	synchronized (deployed) {
+    	    app = deployed.get(name);
+    	}
     	if (app == null) {
     		return 0L;
     	} else {
@@ -368,13 +490,58 @@ public class HostConfig
      * exist
      */
     public boolean isDeployed(String name) {
-        DeployedApplication app = deployed.get(name);
+        DeployedApplication app;
+        synchronized (deployed) {
+            app = deployed.get(name);
+        }
         if (app == null) {
             return false;
         } else {
             return true;
         }
     }
+
+
+    /**
+     * Get the time taken by the last deployment of an application, from the
+     * start of its deployment until it had been added to the Host.
+     * @return the duration in milliseconds, or -1L if the application has not
+     * been deployed by this component
+     */
+    public long getDeploymentDuration(String name) {
+        Long duration = deploymentDurations.get(name);
+        if (duration == null) {
+            return -1L;
+        } else {
+            return duration.longValue();
+        }
+    }
+
+
+    /**
+     * Get the time taken by the last deployment of each application deployed
+     * by this component, slowest first, for use with JMX management.
+     * @return one "<code>contextPath: duration ms</code>" entry per
+     * application
+     */
+    public String[] getDeploymentReport() {
+        Map.Entry<?, ?>[] entries =
+            deploymentDurations.entrySet().toArray(new Map.Entry<?, ?>[0]);
+        Arrays.sort(entries, new Comparator<Map.Entry<?, ?>>() {
+            public int compare(Map.Entry<?, ?> e1, Map.Entry<?, ?> e2) {
+                long d1 = ((Long) e1.getValue()).longValue();
+                long d2 = ((Long) e2.getValue()).longValue();
+                return (d1 < d2 ? 1 : (d1 == d2 ? 0 : -1));
+            }
+        });
+        String[] report = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String name = (String) entries[i].getKey();
+            report[i] = (name.equals("") ? "/" : name) + ": "
+                + entries[i].getValue() + " ms";
+        }
+        return report;
+    }
     
     
     // ------------------------------------------------------ Protected Methods
@@ -394,6 +561,22 @@ public class HostConfig
         digester.addSetProperties("Context");
         return (digester);
     }
+
+
+    /**
+     * Parse a context descriptor with the digester of the current thread.
+     *
+     * @param xml The context descriptor
+     * @return the Context, or <code>null</code> if none was defined
+     */
+    protected Context parseContext(File xml) throws IOException, SAXException {
+        Digester digester = digesters.get();
+        try {
+            return (Context) digester.parse(xml);
+        } finally {
+            digester.reset();
+        }
+    }
     
     protected File returnCanonicalPath(String path) {
         File file = new File(path);
@@ -495,6 +678,15 @@ public class HostConfig
 
         File appBase = appBase();
         File configBase = configBase();
+        // Deploy the applications others depend on first, whatever their type
+        String[] orderedPaths = getOrderedContextPaths();
+        for (int i = 0; i < orderedPaths.length; i++) {
+            if (!isServiced(orderedPaths[i]))
+                deployApps(orderedPaths[i]);
+        }
+        // Each of the following completes before the next one starts, so that
+        // a descriptor takes precedence over a WAR, and a WAR over a folder,
+        // for the same context path
         // Deploy XML descriptors from configBase
         deployDescriptors(configBase, configBase.list());
         // Deploy WARs, and loop if additional descriptors are found
@@ -532,6 +724,33 @@ public class HostConfig
     }
 
 
+    /**
+     * Return the context paths listed in {@link #deploymentOrder}, in order.
+     */
+    protected String[] getOrderedContextPaths() {
+
+        String order = deploymentOrder;
+        if (order == null)
+            return new String[0];
+        List<String> contextPaths = new ArrayList<String>();
+        String[] names = order.split(",");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim();
+            if (name.length() == 0)
+                continue;
+            if (name.equals("/") || name.equals("ROOT")) {
+                name = "";
+            } else if (!name.startsWith("/")) {
+                name = "/" + name;
+            }
+            if (!contextPaths.contains(name))
+                contextPaths.add(name);
+        }
+        return contextPaths.toArray(new String[contextPaths.size()]);
+
+    }
+
+
     /**
      * Deploy XML context descriptors.
      */
@@ -540,6 +759,9 @@ public class HostConfig
         if (files == null)
             return;
         
+        Set<String> contextPaths = new HashSet<String>();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -556,17 +778,20 @@ public class HostConfig
                     contextPath = "";
                 }
 
-                if (isServiced(contextPath))
+                if (isServiced(contextPath) || !contextPaths.add(contextPath))
                     continue;
                 
                 String file = files[i];
 
-                deployDescriptor(contextPath, contextXml, file);
+                results.add(submitDeployment
+                        (new DeployDescriptor(contextPath, contextXml, file)));
                 
             }
 
         }
 
+        waitForDeployments(results);
+
     }
 
 
@@ -580,6 +805,7 @@ public class HostConfig
             return;
         }
         
+        long t1 = System.currentTimeMillis();
         DeployedApplication deployedApp = new DeployedApplication(contextPath);
 
         // Assume this is a configuration descriptor and deploy it
@@ -589,17 +815,11 @@ public class HostConfig
 
         Context context = null;
         try {
-            synchronized (digester) {
-                try {
-                    context = (Context) digester.parse(contextXml);
-                    if (context == null) {
-                        log.error(sm.getString("hostConfig.deployDescriptor.error",
-                                file));
-                        return;
-                    }
-                } finally {
-                    digester.reset();
-                }
+            context = parseContext(contextXml);
+            if (context == null) {
+                log.error(sm.getString("hostConfig.deployDescriptor.error",
+                        file));
+                return;
             }
             if (context instanceof Lifecycle) {
                 Class<?> clazz = Class.forName(host.getConfigClass());
@@ -695,7 +915,7 @@ public class HostConfig
         }
 
         if (context != null && host.findChild(context.getName()) != null) {
-            deployed.put(contextPath, deployedApp);
+            addDeployed(deployedApp, t1);
         }
     }
 
@@ -708,6 +928,9 @@ public class HostConfig
         if (files == null)
             return;
         
+        Set<String> contextPaths = new HashSet<String>();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+
         for (int i = 0; i < files.length; i++) {
             
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -725,17 +948,20 @@ public class HostConfig
                 if (contextPath.equals("/ROOT"))
                     contextPath = "";
                 
-                if (isServiced(contextPath))
+                if (isServiced(contextPath) || !contextPaths.add(contextPath))
                     continue;
                 
                 String file = files[i];
                 
-                deployWAR(contextPath, dir, file);
+                results.add(submitDeployment
+                        (new DeployWar(contextPath, dir, file)));
                 
             }
             
         }
         
+        waitForDeployments(results);
+
     }
 
 
@@ -749,6 +975,8 @@ public class HostConfig
         if (deploymentExists(contextPath))
             return;
         
+        long t1 = System.currentTimeMillis();
+
         // Checking for a nested /META-INF/context.xml
         JarFile jar = null;
         JarEntry entry = null;
@@ -823,17 +1051,11 @@ public class HostConfig
         try {
             Context context = null;
             if (deployXML && xml.exists()) {
-                synchronized (digester) {
-                    try {
-                        context = (Context) digester.parse(xml);
-                        if (context == null) {
-                            log.error(sm.getString("hostConfig.deployDescriptor.error",
-                                    file));
-                            return;
-                        }
-                    } finally {
-                        digester.reset();
-                    }
+                context = parseContext(xml);
+                if (context == null) {
+                    log.error(sm.getString("hostConfig.deployDescriptor.error",
+                            file));
+                    return;
                 }
                 context.setConfigFile(xml.getAbsolutePath());
             } else {
@@ -887,7 +1109,7 @@ public class HostConfig
             log.error(sm.getString("hostConfig.deployJar.error", file), t);
         }
         
-        deployed.put(contextPath, deployedApp);
+        addDeployed(deployedApp, t1);
     }
 
 
@@ -899,6 +1121,9 @@ public class HostConfig
         if (files == null)
             return;
         
+        Set<String> contextPaths = new HashSet<String>();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+
         for (int i = 0; i < files.length; i++) {
 
             if (files[i].equalsIgnoreCase("META-INF"))
@@ -913,15 +1138,18 @@ public class HostConfig
                 if (files[i].equals("ROOT"))
                     contextPath = "";
 
-                if (isServiced(contextPath))
+                if (isServiced(contextPath) || !contextPaths.add(contextPath))
                     continue;
 
-                deployDirectory(contextPath, dir, files[i]);
+                results.add(submitDeployment
+                        (new DeployDirectory(contextPath, dir, files[i])));
             
             }
 
         }
 
+        waitForDeployments(results);
+
     }
 
     
@@ -936,6 +1164,8 @@ public class HostConfig
         if (deploymentExists(contextPath))
             return;
 
+        long t1 = System.currentTimeMillis();
+
         // Deploy the application in this directory
         if( log.isInfoEnabled() ) 
             log.info(sm.getString("hostConfig.deployDir", file));
@@ -947,17 +1177,11 @@ public class HostConfig
                 // Will only do this on initial deployment. On subsequent
                 // deployments the copied xml file means we'll use
                 // deployDescriptor() instead
-                synchronized (digester) {
-                    try {
-                        context = (Context) digester.parse(xml);
-                        if (context == null) {
-                            log.error(sm.getString("hostConfig.deployDescriptor.error",
-                                    xml));
-                            return;
-                        }
-                    } finally {
-                        digester.reset();
-                    }
+                context = parseContext(xml);
+                if (context == null) {
+                    log.error(sm.getString("hostConfig.deployDescriptor.error",
+                            xml));
+                    return;
                 }
                 xmlCopy = new File(configBase(), file + ".xml");
                 InputStream is = null;
@@ -1004,7 +1228,7 @@ public class HostConfig
             log.error(sm.getString("hostConfig.deployDir.error", file), t);
         }
 
-        deployed.put(contextPath, deployedApp);
+        addDeployed(deployedApp, t1);
     }
 
     
@@ -1014,7 +1238,87 @@ public class HostConfig
      * @param contextPath of the context which will be checked
      */
     protected boolean deploymentExists(String contextPath) {
-        return (deployed.containsKey(contextPath) || (host.findChild(contextPath) != null));
+        synchronized (deployed) {
+            return (deployed.containsKey(contextPath) || (host.findChild(contextPath) != null));
+        }
+    }
+    
+
+    /**
+     * Record a newly deployed application, and the time taken to deploy it.
+     *
+     * @param app HostConfig deployed app
+     * @param start Instant at which the deployment started
+     */
+    protected void addDeployed(DeployedApplication app, long start) {
+        synchronized (deployed) {
+            deployed.put(app.name, app);
+        }
+        deploymentDurations.put(app.name,
+                new Long(System.currentTimeMillis() - start));
+    }
+
+
+    /**
+     * Run a deployment with the deployment executor, or on the calling
+     * thread if applications are deployed one at a time.
+     *
+     * @param deployment The deployment to run
+     * @return the pending result, or <code>null</code> if the deployment has
+     *  already been run
+     */
+    protected Future<?> submitDeployment(Runnable deployment) {
+        ExecutorService executor = deploymentExecutor;
+        if (executor == null) {
+            deployment.run();
+            return null;
+        }
+        return executor.submit(deployment);
+    }
+
+
+    /**
+     * Wait for the completion of deployments returned by
+     * {@link #submitDeployment(Runnable)}.
+     */
+    protected void waitForDeployments(List<Future<?>> results) {
+        for (Future<?> result : results) {
+            if (result == null) {
+                continue;
+            }
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.error(sm.getString("hostConfig.deploy.error"), e.getCause());
+            }
+        }
+    }
+
+
+    /**
+     * Create the executor used to deploy applications concurrently.
+     *
+     * @return the executor, or <code>null</code> if applications should be
+     *  deployed one at a time
+     */
+    protected ExecutorService createDeploymentExecutor() {
+        int threads = deploymentThreads;
+        if (threads <= 0) {
+            threads = Math.max(1,
+                    Runtime.getRuntime().availableProcessors() + threads);
+        }
+        if (threads == 1) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DeploymentThreadFactory(host.getName()));
+        // Let the threads go once the Host has been deployed
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
     
 
@@ -1057,17 +1361,73 @@ public class HostConfig
     /**
      * Check resources for redeployment and reloading.
      */
-    protected synchronized void checkResources(DeployedApplication app) {
-        String[] resources =
-            app.redeployResources.keySet().toArray(new String[0]);
-        for (int i = 0; i < resources.length; i++) {
-            File resource = new File(resources[i]);
-            if (log.isDebugEnabled())
-                log.debug("Checking context[" + app.name + "] redeploy resource " + resource);
-            if (resource.exists()) {
-                long lastModified =
-                    app.redeployResources.get(resources[i]).longValue();
-                if ((!resource.isDirectory()) && resource.lastModified() > lastModified) {
+    protected void checkResources(DeployedApplication app) {
+        // Only one check of the same application at a time
+        synchronized (app) {
+            String[] resources =
+                app.redeployResources.keySet().toArray(new String[0]);
+            for (int i = 0; i < resources.length; i++) {
+                File resource = new File(resources[i]);
+                if (log.isDebugEnabled())
+                    log.debug("Checking context[" + app.name + "] redeploy resource " + resource);
+                if (resource.exists()) {
+                    long lastModified =
+                        app.redeployResources.get(resources[i]).longValue();
+                    if ((!resource.isDirectory()) && resource.lastModified() > lastModified) {
+                        // Undeploy application
+                        if (log.isInfoEnabled())
+                            log.info(sm.getString("hostConfig.undeploy", app.name));
+                        ContainerBase context = (ContainerBase) host.findChild(app.name);
+                        try {
+                            host.removeChild(context);
+                        } catch (Throwable t) {
+                            log.warn(sm.getString
+                                     ("hostConfig.context.remove", app.name), t);
+                        }
+                        try {
+                            context.destroy();
+                        } catch (Throwable t) {
+                            log.warn(sm.getString
+                                     ("hostConfig.context.destroy", app.name), t);
+                        }
+                        // Delete other redeploy resources
+                        for (int j = i + 1; j < resources.length; j++) {
+                            try {
+                                File current = new File(resources[j]);
+                                current = current.getCanonicalFile();
+                                if ((current.getAbsolutePath().startsWith(appBase().getAbsolutePath() + File.separator))
+                                        || (current.getAbsolutePath().startsWith(configBase().getAbsolutePath()))) {
+                                    if (log.isDebugEnabled())
+                                        log.debug("Delete " + current);
+                                    ExpandWar.delete(current);
+                                }
+                            } catch (IOException e) {
+                                log.warn(sm.getString
+                                        ("hostConfig.canonicalizing", app.name), e);
+                            }
+                        }
+                        synchronized (deployed) {
+                            deployed.remove(app.name);
+                        }
+                        return;
+                    }
+                } else {
+                    // There is a chance the the resource was only missing
+                    // temporarily eg renamed during a text editor save
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e1) {
+                        // Ignore
+                    }
+                    // Recheck the resource to see if it was really deleted
+                    if (resource.exists()) {
+                        continue;
+                    }
+                    long lastModified =
+                        app.redeployResources.get(resources[i]).longValue();
+                    if (lastModified == 0L) {
+                        continue;
+                    }
                     // Undeploy application
                     if (log.isInfoEnabled())
                         log.info(sm.getString("hostConfig.undeploy", app.name));
@@ -1084,13 +1444,32 @@ public class HostConfig
                         log.warn(sm.getString
                                  ("hostConfig.context.destroy", app.name), t);
                     }
-                    // Delete other redeploy resources
+                    // Delete all redeploy resources
                     for (int j = i + 1; j < resources.length; j++) {
                         try {
                             File current = new File(resources[j]);
                             current = current.getCanonicalFile();
                             if ((current.getAbsolutePath().startsWith(appBase().getAbsolutePath() + File.separator))
-                                    || (current.getAbsolutePath().startsWith(configBase().getAbsolutePath()))) {
+                                || (current.getAbsolutePath().startsWith(configBase().getAbsolutePath()))) {
+                                if (log.isDebugEnabled())
+                                    log.debug("Delete " + current);
+                                ExpandWar.delete(current);
+                            }
+                        } catch (IOException e) {
+                            log.warn(sm.getString
+                                    ("hostConfig.canonicalizing", app.name), e);
+                        }
+                    }
+                    // Delete reload resources as well (to remove any remaining .xml descriptor)
+                    String[] resources2 =
+                        app.reloadResources.keySet().toArray(new String[0]);
+                    for (int j = 0; j < resources2.length; j++) {
+                        try {
+                            File current = new File(resources2[j]);
+                            current = current.getCanonicalFile();
+                            if ((current.getAbsolutePath().startsWith(appBase().getAbsolutePath() + File.separator))
+                                || ((current.getAbsolutePath().startsWith(configBase().getAbsolutePath())
+                                     && (current.getAbsolutePath().endsWith(".xml"))))) {
                                 if (log.isDebugEnabled())
                                     log.debug("Delete " + current);
                                 ExpandWar.delete(current);
@@ -1100,111 +1479,43 @@ public class HostConfig
                                     ("hostConfig.canonicalizing", app.name), e);
                         }
                     }
-                    deployed.remove(app.name);
+                    synchronized (deployed) {
+                        deployed.remove(app.name);
+                    }
                     return;
                 }
-            } else {
-                // There is a chance the the resource was only missing
-                // temporarily eg renamed during a text editor save
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e1) {
-                    // Ignore
-                }
-                // Recheck the resource to see if it was really deleted
-                if (resource.exists()) {
-                    continue;
-                }
-                long lastModified =
-                    app.redeployResources.get(resources[i]).longValue();
-                if (lastModified == 0L) {
-                    continue;
-                }
-                // Undeploy application
-                if (log.isInfoEnabled())
-                    log.info(sm.getString("hostConfig.undeploy", app.name));
-                ContainerBase context = (ContainerBase) host.findChild(app.name);
-                try {
-                    host.removeChild(context);
-                } catch (Throwable t) {
-                    log.warn(sm.getString
-                             ("hostConfig.context.remove", app.name), t);
-                }
-                try {
-                    context.destroy();
-                } catch (Throwable t) {
-                    log.warn(sm.getString
-                             ("hostConfig.context.destroy", app.name), t);
-                }
-                // Delete all redeploy resources
-                for (int j = i + 1; j < resources.length; j++) {
+            }
+            resources = app.reloadResources.keySet().toArray(new String[0]);
+            for (int i = 0; i < resources.length; i++) {
+                File resource = new File(resources[i]);
+                if (log.isDebugEnabled())
+                    log.debug("Checking context[" + app.name + "] reload resource " + resource);
+                long lastModified = app.reloadResources.get(resources[i]).longValue();
+                if ((!resource.exists() && lastModified != 0L) 
+                    || (resource.lastModified() != lastModified)) {
+                    // Reload application
+                    if(log.isInfoEnabled())
+                        log.info(sm.getString("hostConfig.reload", app.name));
+                    Container context = host.findChild(app.name);
                     try {
-                        File current = new File(resources[j]);
-                        current = current.getCanonicalFile();
-                        if ((current.getAbsolutePath().startsWith(appBase().getAbsolutePath() + File.separator))
-                            || (current.getAbsolutePath().startsWith(configBase().getAbsolutePath()))) {
-                            if (log.isDebugEnabled())
-                                log.debug("Delete " + current);
-                            ExpandWar.delete(current);
-                        }
-                    } catch (IOException e) {
+                        ((Lifecycle) context).stop();
+                    } catch (Exception e) {
                         log.warn(sm.getString
-                                ("hostConfig.canonicalizing", app.name), e);
+                                 ("hostConfig.context.restart", app.name), e);
                     }
-                }
-                // Delete reload resources as well (to remove any remaining .xml descriptor)
-                String[] resources2 =
-                    app.reloadResources.keySet().toArray(new String[0]);
-                for (int j = 0; j < resources2.length; j++) {
+                    // If the context was not started (for example an error 
+                    // in web.xml) we'll still get to try to start
                     try {
-                        File current = new File(resources2[j]);
-                        current = current.getCanonicalFile();
-                        if ((current.getAbsolutePath().startsWith(appBase().getAbsolutePath() + File.separator))
-                            || ((current.getAbsolutePath().startsWith(configBase().getAbsolutePath())
-                                 && (current.getAbsolutePath().endsWith(".xml"))))) {
-                            if (log.isDebugEnabled())
-                                log.debug("Delete " + current);
-                            ExpandWar.delete(current);
-                        }
-                    } catch (IOException e) {
+                        ((Lifecycle) context).start();
+                    } catch (Exception e) {
                         log.warn(sm.getString
-                                ("hostConfig.canonicalizing", app.name), e);
+                                 ("hostConfig.context.restart", app.name), e);
                     }
+                    // Update times
+                    app.reloadResources.put(resources[i], new Long(resource.lastModified()));
+                    app.timestamp = System.currentTimeMillis();
+                    return;
                 }
-                deployed.remove(app.name);
-                return;
-            }
-        }
-        resources = app.reloadResources.keySet().toArray(new String[0]);
-        for (int i = 0; i < resources.length; i++) {
-            File resource = new File(resources[i]);
-            if (log.isDebugEnabled())
-                log.debug("Checking context[" + app.name + "] reload resource " + resource);
-            long lastModified = app.reloadResources.get(resources[i]).longValue();
-            if ((!resource.exists() && lastModified != 0L) 
-                || (resource.lastModified() != lastModified)) {
-                // Reload application
-                if(log.isInfoEnabled())
-                    log.info(sm.getString("hostConfig.reload", app.name));
-                Container context = host.findChild(app.name);
-                try {
-                    ((Lifecycle) context).stop();
-                } catch (Exception e) {
-                    log.warn(sm.getString
-                             ("hostConfig.context.restart", app.name), e);
-                }
-                // If the context was not started (for example an error 
-                // in web.xml) we'll still get to try to start
-                try {
-                    ((Lifecycle) context).start();
-                } catch (Exception e) {
-                    log.warn(sm.getString
-                             ("hostConfig.context.restart", app.name), e);
-                }
-                // Update times
-                app.reloadResources.put(resources[i], new Long(resource.lastModified()));
-                app.timestamp = System.currentTimeMillis();
-                return;
             }
         }
     }
@@ -1237,6 +1548,8 @@ public class HostConfig
             }
         }
 
+        deploymentExecutor = createDeploymentExecutor();
+
         if (host.getDeployOnStartup())
             deployApps();
         
@@ -1253,6 +1566,11 @@ public class HostConfig
 
         undeployApps();
 
+        if (deploymentExecutor != null) {
+            deploymentExecutor.shutdownNow();
+            deploymentExecutor = null;
+        }
+
         if (oname != null) {
             try {
                 Registry.getRegistry(null, null).unregisterComponent(oname);
@@ -1276,8 +1594,10 @@ public class HostConfig
             log.debug(sm.getString("hostConfig.undeploying"));
 
         // Soft undeploy all contexts we have deployed
-        DeployedApplication[] apps =
-            deployed.values().toArray(new DeployedApplication[0]);
+        DeployedApplication[] apps;
+        synchronized (deployed) {
+            apps = deployed.values().toArray(new DeployedApplication[0]);
+        }
         for (int i = 0; i < apps.length; i++) {
             try {
                 host.removeChild(host.findChild(apps[i].name));
@@ -1287,7 +1607,10 @@ public class HostConfig
             }
         }
         
-        deployed.clear();
+        synchronized (deployed) {
+            deployed.clear();
+        }
+        deploymentDurations.clear();
 
     }
 
@@ -1299,8 +1622,10 @@ public class HostConfig
 
         if (host.getAutoDeploy()) {
             // Check for resources modification to trigger redeployment
-            DeployedApplication[] apps = 
-                deployed.values().toArray(new DeployedApplication[0]);
+            DeployedApplication[] apps;
+            synchronized (deployed) {
+                apps = deployed.values().toArray(new DeployedApplication[0]);
+            }
             for (int i = 0; i < apps.length; i++) {
                 if (!isServiced(apps[i].name))
                     checkResources(apps[i]);
@@ -1316,7 +1641,10 @@ public class HostConfig
      * Check status of a specific webapp, for use with stuff like management webapps.
      */
     public void check(String name) {
-        DeployedApplication app = deployed.get(name);
+        DeployedApplication app;
+        synchronized (deployed) {
+            app = deployed.get(name);
+        }
         if (app != null) {
             checkResources(app);
         } else {
@@ -1332,8 +1660,10 @@ public class HostConfig
 
         String contextPath = context.getPath();
         
-        if (deployed.containsKey(contextPath))
-            return;
+        synchronized (deployed) {
+            if (deployed.containsKey(contextPath))
+                return;
+        }
 
         DeployedApplication deployedApp = new DeployedApplication(contextPath);
         
@@ -1375,7 +1705,9 @@ public class HostConfig
         } else {
             addWatchedResources(deployedApp, null, context);
         }
-        deployed.put(contextPath, deployedApp);
+        synchronized (deployed) {
+            deployed.put(contextPath, deployedApp);
+        }
     }
 
     /**
@@ -1384,7 +1716,9 @@ public class HostConfig
      */
     public void unmanageApp(String contextPath) {
         if(isServiced(contextPath)) {
-            deployed.remove(contextPath);
+            synchronized (deployed) {
+                deployed.remove(contextPath);
+            }
             host.removeChild(host.findChild(contextPath));
         }
     }
@@ -1433,4 +1767,87 @@ public class HostConfig
     	public long timestamp = System.currentTimeMillis();
     }
 
+
+    /**
+     * Deployment of a context descriptor.
+     */
+    protected class DeployDescriptor implements Runnable {
+
+        private final String contextPath;
+        private final File contextXml;
+        private final String file;
+
+        public DeployDescriptor(String contextPath, File contextXml, String file) {
+            this.contextPath = contextPath;
+            this.contextXml = contextXml;
+            this.file = file;
+        }
+
+        public void run() {
+            deployDescriptor(contextPath, contextXml, file);
+        }
+    }
+
+
+    /**
+     * Deployment of a WAR file.
+     */
+    protected class DeployWar implements Runnable {
+
+        private final String contextPath;
+        private final File war;
+        private final String file;
+
+        public DeployWar(String contextPath, File war, String file) {
+            this.contextPath = contextPath;
+            this.war = war;
+            this.file = file;
+        }
+
+        public void run() {
+            deployWAR(contextPath, war, file);
+        }
+    }
+
+
+    /**
+     * Deployment of an expanded folder.
+     */
+    protected class DeployDirectory implements Runnable {
+
+        private final String contextPath;
+        private final File dir;
+        private final String file;
+
+        public DeployDirectory(String contextPath, File dir, String file) {
+            this.contextPath = contextPath;
+            this.dir = dir;
+            this.file = file;
+        }
+
+        public void run() {
+            deployDirectory(contextPath, dir, file);
+        }
+    }
+
+
+    /**
+     * Names the daemon threads which deploy the applications of a Host.
+     */
+    private static class DeploymentThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public DeploymentThreadFactory(String hostName) {
+            this.namePrefix = hostName + "-deploy-";
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
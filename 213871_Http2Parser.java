@@ -16,6 +16,7 @@
  */
 package org.apache.coyote.http2;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -36,6 +37,7 @@ class Http2Parser {
 
     private final String connectionId;
     private final Input input;
+    private final BufferedInput bufferedInput;
     private final Output output;
     private final byte[] frameHeaderBuffer = new byte[9];
 
@@ -46,8 +48,31 @@ class Http2Parser {
 
 
     Http2Parser(String connectionId, Input input, Output output) {
+        this(connectionId, input, output, 0);
+    }
+
+
+    /**
+     * Create a parser that reads from the given input through a buffer of the
+     * given size, so that a single read may obtain several frames. Requires
+     * an {@link Input} that implements
+     * {@link Input#fillAvailable(boolean, ByteBuffer)}.
+     *
+     * @param connectionId      The connection identifier used in messages
+     * @param input             The source of the frames
+     * @param output            The destination of the parsed frames
+     * @param readBufferSize    The size of the read buffer or zero to read
+     *                          each part of a frame directly from the input
+     */
+    Http2Parser(String connectionId, Input input, Output output, int readBufferSize) {
         this.connectionId = connectionId;
-        this.input = input;
+        if (readBufferSize > 0) {
+            bufferedInput = new BufferedInput(input, readBufferSize);
+            this.input = bufferedInput;
+        } else {
+            bufferedInput = null;
+            this.input = input;
+        }
         this.output = output;
     }
 
@@ -69,6 +94,35 @@ class Http2Parser {
     }
 
 
+    /**
+     * Read and process a frame as {@link #readFrame(boolean)} does and then
+     * process any further frames that have already been completely read into
+     * the read buffer. Subsequent frames are only processed if the parser was
+     * created with a read buffer.
+     *
+     * @param block Should this method block until a frame is available if no
+     *              frame is available immediately?
+     *
+     * @return The number of frames processed
+     *
+     * @throws IOException If an IO error occurs while trying to read a frame
+     */
+    int readFrames(boolean block) throws Http2Exception, IOException {
+        if (!readFrame(block, null)) {
+            return 0;
+        }
+        int count = 1;
+        if (bufferedInput != null) {
+            // No I/O is required to process a complete buffered frame
+            while (bufferedInput.hasCompleteFrame()) {
+                readFrame(false, null);
+                count++;
+            }
+        }
+        return count;
+    }
+
+
     private boolean readFrame(boolean block, FrameType expected)
             throws IOException, Http2Exception {
 
@@ -567,10 +621,110 @@ class Http2Parser {
             return result;
         }
 
+        /**
+         * Read the data that is available into the given buffer, up to its
+         * remaining capacity. Used by parsers created with a read buffer.
+         *
+         * @param block Should the read block until at least one byte is
+         *              available?
+         * @param data  Heap buffer, in write mode, to read into
+         *
+         * @return The number of bytes read, which may be zero for a
+         *         non-blocking read, or -1 if this input does not support
+         *         reading whatever data is available
+         *
+         * @throws IOException If an I/O occurred while obtaining data with
+         *                     which to fill the buffer
+         */
+        default int fillAvailable(boolean block, ByteBuffer data) throws IOException {
+            return -1;
+        }
+
         int getMaxFrameSize();
     }
 
 
+    /**
+     * Input that serves the parser from a buffer that is filled with all the
+     * data available from the underlying input, so that a single read may
+     * provide several frames. Reads of at least the size of the buffer bypass
+     * it. If the underlying input cannot read the data available, every read
+     * is passed straight through.
+     */
+    private static class BufferedInput implements Input {
+
+        private final Input input;
+        // Always in read mode
+        private final ByteBuffer buffer;
+        private boolean supported = true;
+
+        BufferedInput(Input input, int size) {
+            this.input = input;
+            buffer = ByteBuffer.allocate(size);
+            buffer.flip();
+        }
+
+
+        @Override
+        public boolean fill(boolean block, byte[] data, int offset, int length) throws IOException {
+            int read = 0;
+            boolean first = true;
+            while (read < length) {
+                if (!buffer.hasRemaining()) {
+                    if (!supported || length - read >= buffer.capacity()) {
+                        return input.fill(block || !first, data, offset + read, length - read);
+                    }
+                    if (!refill(block || !first)) {
+                        if (!supported) {
+                            return input.fill(block || !first, data, offset + read, length - read);
+                        }
+                        if (first) {
+                            return false;
+                        }
+                        throw new EOFException();
+                    }
+                }
+                int n = Math.min(buffer.remaining(), length - read);
+                buffer.get(data, offset + read, n);
+                read += n;
+                first = false;
+            }
+            return true;
+        }
+
+
+        @Override
+        public int getMaxFrameSize() {
+            return input.getMaxFrameSize();
+        }
+
+
+        boolean hasCompleteFrame() {
+            if (buffer.remaining() < 9) {
+                return false;
+            }
+            int pos = buffer.position();
+            int payloadSize = ((buffer.get(pos) & 0xFF) << 16) +
+                    ((buffer.get(pos + 1) & 0xFF) << 8) + (buffer.get(pos + 2) & 0xFF);
+            return buffer.remaining() >= 9 + payloadSize;
+        }
+
+
+        /*
+         * Only called once the buffer is empty.
+         */
+        private boolean refill(boolean block) throws IOException {
+            buffer.clear();
+            int read = input.fillAvailable(block, buffer);
+            buffer.flip();
+            if (read < 0) {
+                supported = false;
+            }
+            return read > 0;
+        }
+    }
+
+
     /**
      * Interface that must be implemented to receive notifications from the
      * parser as it processes incoming frames.
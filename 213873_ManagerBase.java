@@ -30,8 +30,12 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -133,12 +137,28 @@ public abstract class ManagerBase extends LifecycleMBeanBase
 
     protected static final int TIMING_STATS_CACHE_SIZE = 100;
 
+    /**
+     * @deprecated Unused. Timings are recorded in
+     *             {@link #sessionCreationTimings}.
+     */
+    @Deprecated
     protected final Deque<SessionTiming> sessionCreationTiming =
             new LinkedList<>();
 
+    /**
+     * @deprecated Unused. Timings are recorded in
+     *             {@link #sessionExpirationTimings}.
+     */
+    @Deprecated
     protected final Deque<SessionTiming> sessionExpirationTiming =
             new LinkedList<>();
 
+    protected final SessionTimingRing sessionCreationTimings =
+            new SessionTimingRing(TIMING_STATS_CACHE_SIZE);
+
+    protected final SessionTimingRing sessionExpirationTimings =
+            new SessionTimingRing(TIMING_STATS_CACHE_SIZE);
+
     /**
      * Number of sessions that have expired.
      */
@@ -190,6 +210,31 @@ public abstract class ManagerBase extends LifecycleMBeanBase
      */
     protected int processExpiresFrequency = 6;
 
+    /**
+     * Should sessions be expired using an index of their expiry deadlines,
+     * so that each expiry pass only checks the sessions which may have
+     * expired, rather than every session?
+     */
+    protected boolean expiryIndexEnabled = false;
+
+    /**
+     * The expiry entry of each session, keyed by session identifier, if
+     * {@link #expiryIndexEnabled} is set.
+     */
+    private final Map<String, ExpiryEntry> expiryIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Expiry entries created since the last expiry pass, which have not been
+     * added to the wheel yet.
+     */
+    private final Queue<ExpiryEntry> expiryQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The expiry deadlines. Only used by one expiry pass at a time.
+     */
+    private ExpiryWheel expiryWheel = null;
+    private final Object expiryWheelLock = new Object();
+
     /**
      * The string manager for this package.
      */
@@ -481,6 +526,36 @@ public abstract class ManagerBase extends LifecycleMBeanBase
                                    Integer.valueOf(this.processExpiresFrequency));
 
     }
+
+    /**
+     * @return <code>true</code> if sessions are expired using an index of
+     *         their expiry deadlines.
+     */
+    public boolean getExpiryIndexEnabled() {
+        return expiryIndexEnabled;
+    }
+
+    /**
+     * Set whether sessions should be expired using an index of their expiry
+     * deadlines. Each expiry pass then only checks the sessions whose
+     * deadline, computed from their last access time and their maximum
+     * inactive interval, has passed, instead of every session. A session
+     * whose maximum inactive interval is reduced after its last access is
+     * expired by the expiry pass no earlier than its previous deadline, and
+     * at the latest 72 hours after it was last checked.
+     *
+     * @param expiryIndexEnabled <code>true</code> to use the index
+     */
+    public void setExpiryIndexEnabled(boolean expiryIndexEnabled) {
+        boolean oldExpiryIndexEnabled = this.expiryIndexEnabled;
+        this.expiryIndexEnabled = expiryIndexEnabled;
+        if (!expiryIndexEnabled) {
+            clearExpiryIndex();
+        }
+        support.firePropertyChange("expiryIndexEnabled",
+                                   Boolean.valueOf(oldExpiryIndexEnabled),
+                                   Boolean.valueOf(this.expiryIndexEnabled));
+    }
     // --------------------------------------------------------- Public Methods
 
 
@@ -501,6 +576,11 @@ public abstract class ManagerBase extends LifecycleMBeanBase
      */
     public void processExpires() {
 
+        if (expiryIndexEnabled) {
+            processExpiresIndexed();
+            return;
+        }
+
         long timeNow = System.currentTimeMillis();
         Session sessions[] = findSessions();
         int expireHere = 0 ;
@@ -519,6 +599,122 @@ public abstract class ManagerBase extends LifecycleMBeanBase
 
     }
 
+    /**
+     * Invalidate the sessions that have expired, only checking those whose
+     * expiry deadline has passed.
+     */
+    protected void processExpiresIndexed() {
+
+        long timeNow = System.currentTimeMillis();
+        int expireHere = 0;
+        int checked = 0;
+
+        if(log.isDebugEnabled())
+            log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.size());
+        synchronized (expiryWheelLock) {
+            if (expiryWheel == null) {
+                expiryWheel = new ExpiryWheel(timeNow);
+            }
+            if (expiryIndex.size() < sessions.size()) {
+                // Sessions may have been added without add(), for example
+                // when they are loaded from persistent storage
+                for (Session session : sessions.values()) {
+                    String id = session.getIdInternal();
+                    if (id != null && !expiryIndex.containsKey(id)) {
+                        addExpiryEntry(session);
+                    }
+                }
+            }
+
+            List<ExpiryEntry> due = new ArrayList<>();
+            ExpiryEntry entry;
+            while ((entry = expiryQueue.poll()) != null) {
+                if (entry.session != null) {
+                    expiryWheel.schedule(entry, due);
+                }
+            }
+            expiryWheel.advance(timeNow, due);
+
+            for (int i = 0; i < due.size(); i++) {
+                entry = due.get(i);
+                Session session = entry.session;
+                if (session == null) {
+                    // Removed from this manager
+                    continue;
+                }
+                String id = session.getIdInternal();
+                if (id == null || sessions.get(id) != session) {
+                    // Removed without remove()
+                    if (id != null) {
+                        expiryIndex.remove(id, entry);
+                    }
+                    continue;
+                }
+                checked++;
+                if (!session.isValid()) {
+                    expireHere++;
+                    continue;
+                }
+                // Accessed since it was scheduled, or in use
+                entry.deadline = Math.max(getExpiryDeadline(session),
+                        timeNow + ExpiryWheel.TICK);
+                expiryWheel.schedule(entry, null);
+            }
+        }
+        long timeEnd = System.currentTimeMillis();
+        if(log.isDebugEnabled())
+             log.debug("End expire sessions " + getName() + " processingTime " + (timeEnd - timeNow) + " checked sessions: " + checked + " expired sessions: " + expireHere);
+        processingTime += ( timeEnd - timeNow );
+
+    }
+
+    /**
+     * @param session The session
+     * @return the time, in milliseconds, from which the session may have
+     *         expired, or {@link Long#MAX_VALUE} if it never expires
+     */
+    protected long getExpiryDeadline(Session session) {
+        int maxInactiveInterval = session.getMaxInactiveInterval();
+        if (maxInactiveInterval <= 0) {
+            return Long.MAX_VALUE;
+        }
+        // The last access time is never later than the time the idle time of
+        // the session is measured from
+        return session.getLastAccessedTimeInternal() + maxInactiveInterval * 1000L;
+    }
+
+    private void addExpiryEntry(Session session) {
+        String id = session.getIdInternal();
+        if (id == null) {
+            return;
+        }
+        ExpiryEntry entry = new ExpiryEntry(session, getExpiryDeadline(session));
+        ExpiryEntry previous = expiryIndex.put(id, entry);
+        if (previous != null) {
+            previous.session = null;
+        }
+        expiryQueue.add(entry);
+    }
+
+    private void removeExpiryEntry(Session session) {
+        String id = session.getIdInternal();
+        if (id == null) {
+            return;
+        }
+        ExpiryEntry entry = expiryIndex.get(id);
+        if (entry != null && entry.session == session && expiryIndex.remove(id, entry)) {
+            entry.session = null;
+        }
+    }
+
+    private void clearExpiryIndex() {
+        synchronized (expiryWheelLock) {
+            expiryIndex.clear();
+            expiryQueue.clear();
+            expiryWheel = null;
+        }
+    }
+
     @Override
     protected void initInternal() throws LifecycleException {
 
@@ -530,15 +726,6 @@ public abstract class ManagerBase extends LifecycleMBeanBase
     @Override
     protected void startInternal() throws LifecycleException {
 
-        // Ensure caches for timing stats are the right size by filling with
-        // nulls.
-        while (sessionCreationTiming.size() < TIMING_STATS_CACHE_SIZE) {
-            sessionCreationTiming.add(null);
-        }
-        while (sessionExpirationTiming.size() < TIMING_STATS_CACHE_SIZE) {
-            sessionExpirationTiming.add(null);
-        }
-
         /* Create sessionIdGenerator if not explicitly configured */
         SessionIdGenerator sessionIdGenerator = getSessionIdGenerator();
         if (sessionIdGenerator == null) {
@@ -571,12 +758,16 @@ public abstract class ManagerBase extends LifecycleMBeanBase
         if (sessionIdGenerator instanceof Lifecycle) {
             ((Lifecycle) sessionIdGenerator).stop();
         }
+        clearExpiryIndex();
     }
 
 
     @Override
     public void add(Session session) {
         sessions.put(session.getIdInternal(), session);
+        if (expiryIndexEnabled) {
+            addExpiryEntry(session);
+        }
         int size = getActiveSessions();
         if( size > maxActive ) {
             synchronized(maxActiveUpdateLock) {
@@ -621,10 +812,7 @@ public abstract class ManagerBase extends LifecycleMBeanBase
         sessionCounter++;
 
         SessionTiming timing = new SessionTiming(session.getCreationTime(), 0);
-        synchronized (sessionCreationTiming) {
-            sessionCreationTiming.add(timing);
-            sessionCreationTiming.poll();
-        }
+        sessionCreationTimings.add(timing);
         return (session);
 
     }
@@ -668,12 +856,12 @@ public abstract class ManagerBase extends LifecycleMBeanBase
             updateSessionMaxAliveTime(timeAlive);
             expiredSessions.incrementAndGet();
             SessionTiming timing = new SessionTiming(timeNow, timeAlive);
-            synchronized (sessionExpirationTiming) {
-                sessionExpirationTiming.add(timing);
-                sessionExpirationTiming.poll();
-            }
+            sessionExpirationTimings.add(timing);
         }
 
+        if (expiryIndexEnabled) {
+            removeExpiryEntry(session);
+        }
         if (session.getIdInternal() != null) {
             sessions.remove(session.getIdInternal());
         }
@@ -910,10 +1098,7 @@ public abstract class ManagerBase extends LifecycleMBeanBase
     @Override
     public int getSessionAverageAliveTime() {
         // Copy current stats
-        List<SessionTiming> copy = new ArrayList<>();
-        synchronized (sessionExpirationTiming) {
-            copy.addAll(sessionExpirationTiming);
-        }
+        List<SessionTiming> copy = sessionExpirationTimings.toList();
 
         // Init
         int counter = 0;
@@ -944,10 +1129,7 @@ public abstract class ManagerBase extends LifecycleMBeanBase
     public int getSessionCreateRate() {
         long now = System.currentTimeMillis();
         // Copy current stats
-        List<SessionTiming> copy = new ArrayList<>();
-        synchronized (sessionCreationTiming) {
-            copy.addAll(sessionCreationTiming);
-        }
+        List<SessionTiming> copy = sessionCreationTimings.toList();
 
         // Init
         long oldest = now;
@@ -988,10 +1170,7 @@ public abstract class ManagerBase extends LifecycleMBeanBase
     public int getSessionExpireRate() {
         long now = System.currentTimeMillis();
         // Copy current stats
-        List<SessionTiming> copy = new ArrayList<>();
-        synchronized (sessionExpirationTiming) {
-            copy.addAll(sessionExpirationTiming);
-        }
+        List<SessionTiming> copy = sessionExpirationTimings.toList();
 
         // Init
         long oldest = now;
@@ -1244,4 +1423,159 @@ public abstract class ManagerBase extends LifecycleMBeanBase
             return duration;
         }
     }
+
+    /**
+     * The most recent pieces of timing information, in a fixed size ring
+     * which may be updated concurrently without locking.
+     */
+    protected static final class SessionTimingRing {
+        private final AtomicReferenceArray<SessionTiming> timings;
+        private final AtomicInteger next = new AtomicInteger();
+
+        public SessionTimingRing(int size) {
+            timings = new AtomicReferenceArray<>(size);
+        }
+
+        /**
+         * Add a piece of timing information, replacing the oldest one if the
+         * ring is full.
+         *
+         * @param timing The timing information
+         */
+        public void add(SessionTiming timing) {
+            int index = (next.getAndIncrement() & Integer.MAX_VALUE) % timings.length();
+            timings.set(index, timing);
+        }
+
+        /**
+         * @return A copy of the timing information currently in the ring, in
+         *         no particular order, with <code>null</code> for each unused
+         *         slot
+         */
+        public List<SessionTiming> toList() {
+            List<SessionTiming> copy = new ArrayList<>(timings.length());
+            for (int i = 0; i < timings.length(); i++) {
+                copy.add(timings.get(i));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * The expiry deadline of a session, as scheduled in the expiry wheel.
+     */
+    private static final class ExpiryEntry {
+        /**
+         * <code>null</code> once the session has been removed from the manager.
+         */
+        volatile Session session;
+        long deadline;
+
+        ExpiryEntry(Session session, long deadline) {
+            this.session = session;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Hierarchical timing wheel of expiry entries, with a resolution of one
+     * second. Each of the {@link #LEVELS} levels has {@link #SLOTS} slots; a
+     * slot of the first level holds the entries due in one tick, and a slot
+     * of each following level holds the entries due in a whole rotation of
+     * the previous level, which are moved down a level when that rotation
+     * starts. Deadlines further away than the span of the wheel are
+     * scheduled at the end of the span. Not thread safe.
+     */
+    private static final class ExpiryWheel {
+        static final long TICK = 1000;
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int LEVELS = 3;
+        private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+        @SuppressWarnings("unchecked")
+        private final List<ExpiryEntry>[][] slots = new List[LEVELS][SLOTS];
+
+        /**
+         * The last tick whose entries have been returned as due.
+         */
+        private long currentTick;
+
+        ExpiryWheel(long timeNow) {
+            currentTick = timeNow / TICK;
+        }
+
+        /**
+         * Schedule an entry at its deadline.
+         *
+         * @param entry The entry
+         * @param due   The list to add the entry to if its deadline has
+         *              already passed, or <code>null</code> to schedule it at
+         *              the next tick
+         */
+        void schedule(ExpiryEntry entry, List<ExpiryEntry> due) {
+            long tick = entry.deadline / TICK;
+            if (tick < Long.MAX_VALUE && entry.deadline % TICK != 0) {
+                tick++;
+            }
+            long delta = tick - currentTick;
+            if (delta <= 0) {
+                if (due != null) {
+                    due.add(entry);
+                    return;
+                }
+                delta = 1;
+            } else if (delta >= SPAN) {
+                // Checked again at the end of the span
+                delta = SPAN - 1;
+                entry.deadline = (currentTick + delta) * TICK;
+            }
+            tick = currentTick + delta;
+            int level = 0;
+            while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            int index = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            List<ExpiryEntry> slot = slots[level][index];
+            if (slot == null) {
+                slot = new ArrayList<>();
+                slots[level][index] = slot;
+            }
+            slot.add(entry);
+        }
+
+        /**
+         * Advance the wheel to the given time.
+         *
+         * @param timeNow The current time
+         * @param due     The list to add the entries whose deadline has
+         *                passed to
+         */
+        void advance(long timeNow, List<ExpiryEntry> due) {
+            long targetTick = timeNow / TICK;
+            while (currentTick < targetTick) {
+                currentTick++;
+                // Start of a rotation of the lower levels: move the entries of
+                // the next slot of the higher levels down, highest first
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                        int index = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                        List<ExpiryEntry> slot = slots[level][index];
+                        if (slot != null) {
+                            slots[level][index] = null;
+                            for (ExpiryEntry entry : slot) {
+                                schedule(entry, due);
+                            }
+                        }
+                    }
+                }
+                int index = (int) (currentTick & (SLOTS - 1));
+                List<ExpiryEntry> slot = slots[0][index];
+                if (slot != null) {
+                    slots[0][index] = null;
+                    due.addAll(slot);
+                }
+            }
+        }
+    }
 }
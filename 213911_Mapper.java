@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -59,6 +60,21 @@ public final class Mapper {
     protected volatile MappedHost[] hosts = new MappedHost[0];
 
 
+    /**
+     * Hash index over {@link #hosts}, keyed by the case-insensitive host
+     * name. Rebuilt and published together with every new hosts array.
+     */
+    private volatile NameIndex<MappedHost> hostIndex =
+            NameIndex.build(new MappedHost[0], true);
+
+
+    /**
+     * Use the compiled host / context / wrapper indexes rather than the
+     * binary searches over the sorted arrays when mapping requests.
+     */
+    private volatile boolean indexedMapping = false;
+
+
     /**
      * Default host name.
      */
@@ -84,6 +100,40 @@ public final class Mapper {
         this.defaultHostName = defaultHostName;
     }
 
+    /**
+     * Is request mapping performed using the compiled indexes?
+     *
+     * @return <code>true</code> if the host hash index and the context and
+     *         wrapper path tries are used to map requests
+     */
+    public boolean getIndexedMapping() {
+        return indexedMapping;
+    }
+
+    /**
+     * Configure whether request mapping uses the compiled indexes. The
+     * indexes are immutable snapshots that are rebuilt whenever a host or
+     * context is added or removed, and for the wrappers of a context when a
+     * request is first mapped after they changed, so a lookup costs a single
+     * hash probe per path segment and never waits for a concurrent
+     * redeployment.
+     *
+     * @param indexedMapping <code>true</code> to map requests using the
+     *                       compiled indexes
+     */
+    public void setIndexedMapping(boolean indexedMapping) {
+        this.indexedMapping = indexedMapping;
+    }
+
+    /**
+     * Publish a new hosts array along with its index. Callers must hold the
+     * lock on this Mapper.
+     */
+    private void setHosts(MappedHost[] newHosts) {
+        hostIndex = NameIndex.build(newHosts, true);
+        hosts = newHosts;
+    }
+
     /**
      * Add a new host to the mapper.
      *
@@ -96,7 +146,7 @@ public final class Mapper {
         MappedHost[] newHosts = new MappedHost[hosts.length + 1];
         MappedHost newHost = new MappedHost(name, host);
         if (insertMap(hosts, newHosts, newHost)) {
-            hosts = newHosts;
+            setHosts(newHosts);
             if (log.isDebugEnabled()) {
                 log.debug(sm.getString("mapper.addHost.success", name));
             }
@@ -147,7 +197,7 @@ public final class Mapper {
                 newHosts[j++] = newHosts[i];
             }
         }
-        hosts = Arrays.copyOf(newHosts, j);
+        setHosts(Arrays.copyOf(newHosts, j));
     }
 
     /**
@@ -171,7 +221,7 @@ public final class Mapper {
     private synchronized boolean addHostAliasImpl(MappedHost newAlias) {
         MappedHost[] newHosts = new MappedHost[hosts.length + 1];
         if (insertMap(hosts, newHosts, newAlias)) {
-            hosts = newHosts;
+            setHosts(newHosts);
             if (log.isDebugEnabled()) {
                 log.debug(sm.getString("mapper.addHostAlias.success",
                         newAlias.name, newAlias.getRealHostName()));
@@ -207,7 +257,7 @@ public final class Mapper {
         }
         MappedHost[] newHosts = new MappedHost[hosts.length - 1];
         if (removeMap(hosts, newHosts, alias)) {
-            hosts = newHosts;
+            setHosts(newHosts);
             hostMapping.getRealHost().removeAlias(hostMapping);
         }
 
@@ -733,9 +783,17 @@ public final class Mapper {
 
         uri.setLimit(-1);
 
+        boolean indexed = indexedMapping;
+
         // Virtual host mapping
         MappedHost[] hosts = this.hosts;
-        MappedHost mappedHost = exactFindIgnoreCase(hosts, host);
+        MappedHost mappedHost;
+        if (indexed) {
+            mappedHost = hostIndex.get(host.getBuffer(), host.getStart(),
+                    host.getEnd());
+        } else {
+            mappedHost = exactFindIgnoreCase(hosts, host);
+        }
         if (mappedHost == null) {
             if (defaultHostName == null) {
                 return;
@@ -750,37 +808,46 @@ public final class Mapper {
         // Context mapping
         ContextList contextList = mappedHost.contextList;
         MappedContext[] contexts = contextList.contexts;
-        int pos = find(contexts, uri);
-        if (pos == -1) {
-            return;
-        }
-
-        int lastSlash = -1;
-        int uriEnd = uri.getEnd();
-        int length = -1;
         boolean found = false;
         MappedContext context = null;
-        while (pos >= 0) {
-            context = contexts[pos];
-            if (uri.startsWith(context.name)) {
-                length = context.name.length();
-                if (uri.getLength() == length) {
-                    found = true;
-                    break;
-                } else if (uri.startsWithIgnoreCase("/", length)) {
-                    found = true;
-                    break;
-                }
+        if (indexed) {
+            if (contexts.length == 0) {
+                return;
             }
-            if (lastSlash == -1) {
-                lastSlash = nthSlash(uri, contextList.nesting + 1);
-            } else {
-                lastSlash = lastSlash(uri);
+            context = contextList.getTrie().longestMatch(uri.getBuffer(),
+                    uri.getStart(), uri.getEnd());
+            found = (context != null);
+        } else {
+            int pos = find(contexts, uri);
+            if (pos == -1) {
+                return;
             }
-            uri.setEnd(lastSlash);
-            pos = find(contexts, uri);
+
+            int lastSlash = -1;
+            int uriEnd = uri.getEnd();
+            int length = -1;
+            while (pos >= 0) {
+                context = contexts[pos];
+                if (uri.startsWith(context.name)) {
+                    length = context.name.length();
+                    if (uri.getLength() == length) {
+                        found = true;
+                        break;
+                    } else if (uri.startsWithIgnoreCase("/", length)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (lastSlash == -1) {
+                    lastSlash = nthSlash(uri, contextList.nesting + 1);
+                } else {
+                    lastSlash = lastSlash(uri);
+                }
+                uri.setEnd(lastSlash);
+                pos = find(contexts, uri);
+            }
+            uri.setEnd(uriEnd);
         }
-        uri.setEnd(uriEnd);
 
         if (!found) {
             if (contexts[0].name.equals("")) {
@@ -851,16 +918,19 @@ public final class Mapper {
 
         path.setOffset(servletPath);
 
+        WrapperIndex wrapperIndex =
+                indexedMapping ? contextVersion.getWrapperIndex() : null;
+
         // Rule 1 -- Exact Match
         MappedWrapper[] exactWrappers = contextVersion.exactWrappers;
-        internalMapExactWrapper(exactWrappers, path, mappingData);
+        internalMapExactWrapper(exactWrappers, wrapperIndex, path, mappingData);
 
         // Rule 2 -- Prefix Match
         boolean checkJspWelcomeFiles = false;
         MappedWrapper[] wildcardWrappers = contextVersion.wildcardWrappers;
         if (mappingData.wrapper == null) {
-            internalMapWildcardWrapper(wildcardWrappers, contextVersion.nesting,
-                                       path, mappingData);
+            internalMapWildcardWrapper(wildcardWrappers, wrapperIndex,
+                    contextVersion.nesting, path, mappingData);
             if (mappingData.wrapper != null && mappingData.jspWildCard) {
                 char[] buf = path.getBuffer();
                 if (buf[pathEnd - 1] == '/') {
@@ -894,8 +964,8 @@ public final class Mapper {
         // Rule 3 -- Extension Match
         MappedWrapper[] extensionWrappers = contextVersion.extensionWrappers;
         if (mappingData.wrapper == null && !checkJspWelcomeFiles) {
-            internalMapExtensionWrapper(extensionWrappers, path, mappingData,
-                    true);
+            internalMapExtensionWrapper(extensionWrappers, wrapperIndex, path,
+                    mappingData, true);
         }
 
         // Rule 4 -- Welcome resources processing for servlets
@@ -915,13 +985,14 @@ public final class Mapper {
                     path.setOffset(servletPath);
 
                     // Rule 4a -- Welcome resources processing for exact macth
-                    internalMapExactWrapper(exactWrappers, path, mappingData);
+                    internalMapExactWrapper(exactWrappers, wrapperIndex, path,
+                            mappingData);
 
                     // Rule 4b -- Welcome resources processing for prefix match
                     if (mappingData.wrapper == null) {
                         internalMapWildcardWrapper
-                            (wildcardWrappers, contextVersion.nesting,
-                             path, mappingData);
+                            (wildcardWrappers, wrapperIndex,
+                             contextVersion.nesting, path, mappingData);
                     }
 
                     // Rule 4c -- Welcome resources processing
@@ -932,8 +1003,8 @@ public final class Mapper {
                         WebResource file =
                                 contextVersion.resources.getResource(pathStr);
                         if (file != null && file.isFile()) {
-                            internalMapExtensionWrapper(extensionWrappers, path,
-                                                        mappingData, true);
+                            internalMapExtensionWrapper(extensionWrappers,
+                                    wrapperIndex, path, mappingData, true);
                             if (mappingData.wrapper == null
                                 && contextVersion.defaultWrapper != null) {
                                 mappingData.wrapper =
@@ -978,8 +1049,8 @@ public final class Mapper {
                     path.append(contextVersion.welcomeResources[i], 0,
                                 contextVersion.welcomeResources[i].length());
                     path.setOffset(servletPath);
-                    internalMapExtensionWrapper(extensionWrappers, path,
-                                                mappingData, false);
+                    internalMapExtensionWrapper(extensionWrappers,
+                            wrapperIndex, path, mappingData, false);
                 }
 
                 path.setOffset(servletPath);
@@ -1028,8 +1099,15 @@ public final class Mapper {
      * Exact mapping.
      */
     private final void internalMapExactWrapper
-        (MappedWrapper[] wrappers, CharChunk path, MappingData mappingData) {
-        MappedWrapper wrapper = exactFind(wrappers, path);
+        (MappedWrapper[] wrappers, WrapperIndex index, CharChunk path,
+         MappingData mappingData) {
+        MappedWrapper wrapper;
+        if (index != null) {
+            wrapper = index.exact.get(path.getBuffer(), path.getStart(),
+                    path.getEnd());
+        } else {
+            wrapper = exactFind(wrappers, path);
+        }
         if (wrapper != null) {
             mappingData.requestPath.setString(wrapper.name);
             mappingData.wrapper = wrapper.object;
@@ -1050,24 +1128,27 @@ public final class Mapper {
      * Wildcard mapping.
      */
     private final void internalMapWildcardWrapper
-        (MappedWrapper[] wrappers, int nesting, CharChunk path,
-         MappingData mappingData) {
+        (MappedWrapper[] wrappers, WrapperIndex index, int nesting,
+         CharChunk path, MappingData mappingData) {
 
-        int pathEnd = path.getEnd();
+        MappedWrapper wrapper = null;
+        if (index != null) {
+            wrapper = index.wildcard.longestMatch(path.getBuffer(),
+                    path.getStart(), path.getEnd());
+        } else {
+            int pathEnd = path.getEnd();
 
-        int lastSlash = -1;
-        int length = -1;
-        int pos = find(wrappers, path);
-        if (pos != -1) {
-            boolean found = false;
+            int lastSlash = -1;
+            int pos = find(wrappers, path);
+            if (pos == -1) {
+                return;
+            }
             while (pos >= 0) {
                 if (path.startsWith(wrappers[pos].name)) {
-                    length = wrappers[pos].name.length();
-                    if (path.getLength() == length) {
-                        found = true;
-                        break;
-                    } else if (path.startsWithIgnoreCase("/", length)) {
-                        found = true;
+                    int length = wrappers[pos].name.length();
+                    if (path.getLength() == length
+                            || path.startsWithIgnoreCase("/", length)) {
+                        wrapper = wrappers[pos];
                         break;
                     }
                 }
@@ -1080,19 +1161,20 @@ public final class Mapper {
                 pos = find(wrappers, path);
             }
             path.setEnd(pathEnd);
-            if (found) {
-                mappingData.wrapperPath.setString(wrappers[pos].name);
-                if (path.getLength() > length) {
-                    mappingData.pathInfo.setChars
-                        (path.getBuffer(),
-                         path.getOffset() + length,
-                         path.getLength() - length);
-                }
-                mappingData.requestPath.setChars
-                    (path.getBuffer(), path.getOffset(), path.getLength());
-                mappingData.wrapper = wrappers[pos].object;
-                mappingData.jspWildCard = wrappers[pos].jspWildCard;
+        }
+        if (wrapper != null) {
+            int length = wrapper.name.length();
+            mappingData.wrapperPath.setString(wrapper.name);
+            if (path.getLength() > length) {
+                mappingData.pathInfo.setChars
+                    (path.getBuffer(),
+                     path.getOffset() + length,
+                     path.getLength() - length);
             }
+            mappingData.requestPath.setChars
+                (path.getBuffer(), path.getOffset(), path.getLength());
+            mappingData.wrapper = wrapper.object;
+            mappingData.jspWildCard = wrapper.jspWildCard;
         }
     }
 
@@ -1101,12 +1183,15 @@ public final class Mapper {
      * Extension mappings.
      *
      * @param wrappers          Set of wrappers to check for matches
+     * @param index             Compiled wrapper index to use instead of the
+     *                          array, or <code>null</code>
      * @param path              Path to map
      * @param mappingData       Mapping data for result
      * @param resourceExpected  Is this mapping expecting to find a resource
      */
     private final void internalMapExtensionWrapper(MappedWrapper[] wrappers,
-            CharChunk path, MappingData mappingData, boolean resourceExpected) {
+            WrapperIndex index, CharChunk path, MappingData mappingData,
+            boolean resourceExpected) {
         char[] buf = path.getBuffer();
         int pathEnd = path.getEnd();
         int servletPath = path.getOffset();
@@ -1126,9 +1211,14 @@ public final class Mapper {
                 }
             }
             if (period >= 0) {
-                path.setOffset(period + 1);
-                path.setEnd(pathEnd);
-                MappedWrapper wrapper = exactFind(wrappers, path);
+                MappedWrapper wrapper;
+                if (index != null) {
+                    wrapper = index.extension.get(buf, period + 1, pathEnd);
+                } else {
+                    path.setOffset(period + 1);
+                    path.setEnd(pathEnd);
+                    wrapper = exactFind(wrappers, path);
+                }
                 if (wrapper != null
                         && (resourceExpected || !wrapper.resourceOnly)) {
                     mappingData.wrapperPath.setChars(buf, servletPath, pathEnd
@@ -1605,6 +1695,7 @@ public final class Mapper {
 
         public final MappedContext[] contexts;
         public final int nesting;
+        private volatile PathTrie<MappedContext> trie = null;
 
         public ContextList() {
             this(new MappedContext[0], 0);
@@ -1615,6 +1706,23 @@ public final class Mapper {
             this.nesting = nesting;
         }
 
+        /**
+         * Return the context trie, building it on first use. Adding and
+         * removing contexts therefore costs nothing when indexed mapping is
+         * disabled, and deploying a batch of contexts builds no intermediate
+         * tries.
+         */
+        public PathTrie<MappedContext> getTrie() {
+            PathTrie<MappedContext> trie = this.trie;
+            if (trie == null) {
+                // Concurrent builds are harmless, the contexts are never
+                // modified once published
+                trie = PathTrie.build(contexts);
+                this.trie = trie;
+            }
+            return trie;
+        }
+
         public ContextList addContext(MappedContext mappedContext,
                 int slashCount) {
             MappedContext[] newContexts = new MappedContext[contexts.length + 1];
@@ -1661,6 +1769,7 @@ public final class Mapper {
         public MappedWrapper[] wildcardWrappers = new MappedWrapper[0];
         public MappedWrapper[] extensionWrappers = new MappedWrapper[0];
         public int nesting = 0;
+        public volatile WrapperIndex wrapperIndex = WrapperIndex.EMPTY;
         private volatile boolean paused;
 
         public ContextVersion(String version, String path, int slashCount,
@@ -1673,6 +1782,28 @@ public final class Mapper {
             this.welcomeResources = welcomeResources;
         }
 
+        /**
+         * Return the wrapper index, compiling it first if the wrapper arrays
+         * have been replaced since it was last compiled. Registering wrappers
+         * therefore costs nothing when indexed mapping is disabled, and the
+         * index is compiled once after a batch of registrations.
+         */
+        public WrapperIndex getWrapperIndex() {
+            MappedWrapper[] exactWrappers = this.exactWrappers;
+            MappedWrapper[] wildcardWrappers = this.wildcardWrappers;
+            MappedWrapper[] extensionWrappers = this.extensionWrappers;
+            WrapperIndex index = wrapperIndex;
+            if (!index.isCompiledFrom(exactWrappers, wildcardWrappers,
+                    extensionWrappers)) {
+                // Concurrent compilations are harmless, the arrays are never
+                // modified once published
+                index = new WrapperIndex(exactWrappers, wildcardWrappers,
+                        extensionWrappers);
+                wrapperIndex = index;
+            }
+            return index;
+        }
+
         public boolean isPaused() {
             return paused;
         }
@@ -1697,4 +1828,235 @@ public final class Mapper {
             this.resourceOnly = resourceOnly;
         }
     }
+
+
+    // -------------------------------------------------- Index Inner Classes
+
+
+    /**
+     * Immutable open addressing hash table that can be probed with a range of
+     * a char array, so that lookups do not allocate.
+     */
+    protected static final class NameIndex<V> {
+
+        private final String[] keys;
+        private final Object[] values;
+        private final int mask;
+        private final boolean ignoreCase;
+
+        private NameIndex(String[] keys, Object[] values, boolean ignoreCase) {
+            this.keys = keys;
+            this.values = values;
+            this.mask = keys.length - 1;
+            this.ignoreCase = ignoreCase;
+        }
+
+        public static <E extends MapElement<?>> NameIndex<E> build(E[] elements,
+                boolean ignoreCase) {
+            NameIndex<E> index = create(elements.length, ignoreCase);
+            for (E element : elements) {
+                index.put(element.name, element);
+            }
+            return index;
+        }
+
+        private static <V> NameIndex<V> create(int size, boolean ignoreCase) {
+            int capacity = 2;
+            while (capacity < size * 2) {
+                capacity <<= 1;
+            }
+            return new NameIndex<>(new String[capacity], new Object[capacity],
+                    ignoreCase);
+        }
+
+        /**
+         * Only used while the index is being built, before it is published.
+         */
+        private void put(String key, V value) {
+            int i = hash(key) & mask;
+            while (keys[i] != null) {
+                if (keys[i].equals(key)) {
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(char[] buf, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + (ignoreCase ? Ascii.toLower(buf[i]) : buf[i]);
+            }
+            int i = spread(h) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (matches(key, buf, start, end)) {
+                    return (V) values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private boolean matches(String key, char[] buf, int start, int end) {
+            int len = end - start;
+            if (key.length() != len) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                char c = buf[start + i];
+                char k = key.charAt(i);
+                if (c != k && (!ignoreCase
+                        || Ascii.toLower(c) != Ascii.toLower(k))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int hash(String key) {
+            int h = 0;
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                h = 31 * h + (ignoreCase ? Ascii.toLower(c) : c);
+            }
+            return spread(h);
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+
+
+    /**
+     * Immutable trie of map elements keyed by the '/' separated segments of
+     * their names. The element named "" is held by the root node. A lookup
+     * returns the element with the longest name that is either equal to the
+     * path or a prefix of it followed by '/', which are the rules applied by
+     * the binary search over the sorted arrays.
+     */
+    protected static final class PathTrie<E extends MapElement<?>> {
+
+        private final E value;
+        private final NameIndex<PathTrie<E>> children;
+
+        private PathTrie(E value, NameIndex<PathTrie<E>> children) {
+            this.value = value;
+            this.children = children;
+        }
+
+        public static <E extends MapElement<?>> PathTrie<E> build(E[] elements) {
+            Builder<E> root = new Builder<>();
+            for (E element : elements) {
+                String name = element.name;
+                Builder<E> node = root;
+                if (name.length() > 0) {
+                    // Names are either "" or start with '/'
+                    int pos = 0;
+                    while (pos < name.length()) {
+                        int next = name.indexOf('/', pos + 1);
+                        if (next == -1) {
+                            next = name.length();
+                        }
+                        node = node.child(name.substring(pos + 1, next));
+                        pos = next;
+                    }
+                }
+                node.value = element;
+            }
+            return root.build();
+        }
+
+        public E longestMatch(char[] buf, int start, int end) {
+            E result = null;
+            if (start == end || buf[start] == '/') {
+                result = value;
+            }
+            PathTrie<E> node = this;
+            int pos = start;
+            while (pos < end && buf[pos] == '/' && node.children != null) {
+                int segmentEnd = pos + 1;
+                while (segmentEnd < end && buf[segmentEnd] != '/') {
+                    segmentEnd++;
+                }
+                node = node.children.get(buf, pos + 1, segmentEnd);
+                if (node == null) {
+                    break;
+                }
+                if (node.value != null) {
+                    result = node.value;
+                }
+                pos = segmentEnd;
+            }
+            return result;
+        }
+
+        private static final class Builder<E extends MapElement<?>> {
+
+            private E value;
+            private final Map<String, Builder<E>> nodes = new HashMap<>();
+
+            private Builder<E> child(String segment) {
+                Builder<E> node = nodes.get(segment);
+                if (node == null) {
+                    node = new Builder<>();
+                    nodes.put(segment, node);
+                }
+                return node;
+            }
+
+            private PathTrie<E> build() {
+                NameIndex<PathTrie<E>> children = null;
+                if (!nodes.isEmpty()) {
+                    children = NameIndex.create(nodes.size(), false);
+                    for (Map.Entry<String, Builder<E>> entry : nodes.entrySet()) {
+                        children.put(entry.getKey(), entry.getValue().build());
+                    }
+                }
+                return new PathTrie<>(value, children);
+            }
+        }
+    }
+
+
+    /**
+     * Compiled exact, prefix and extension tiers of the wrappers of a
+     * ContextVersion.
+     */
+    protected static final class WrapperIndex {
+
+        public static final WrapperIndex EMPTY = new WrapperIndex(
+                new MappedWrapper[0], new MappedWrapper[0], new MappedWrapper[0]);
+
+        public final NameIndex<MappedWrapper> exact;
+        public final PathTrie<MappedWrapper> wildcard;
+        public final NameIndex<MappedWrapper> extension;
+
+        private final MappedWrapper[] exactWrappers;
+        private final MappedWrapper[] wildcardWrappers;
+        private final MappedWrapper[] extensionWrappers;
+
+        public WrapperIndex(MappedWrapper[] exactWrappers,
+                MappedWrapper[] wildcardWrappers,
+                MappedWrapper[] extensionWrappers) {
+            exact = NameIndex.build(exactWrappers, false);
+            wildcard = PathTrie.build(wildcardWrappers);
+            extension = NameIndex.build(extensionWrappers, false);
+            this.exactWrappers = exactWrappers;
+            this.wildcardWrappers = wildcardWrappers;
+            this.extensionWrappers = extensionWrappers;
+        }
+
+        public boolean isCompiledFrom(MappedWrapper[] exactWrappers,
+                MappedWrapper[] wildcardWrappers,
+                MappedWrapper[] extensionWrappers) {
+            return this.exactWrappers == exactWrappers &&
+                    this.wildcardWrappers == wildcardWrappers &&
+                    this.extensionWrappers == extensionWrappers;
+        }
+    }
 }
@@ -18,6 +18,9 @@ package org.apache.catalina.session;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -25,11 +28,26 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 
@@ -43,6 +61,7 @@ import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.threads.TaskThreadFactory;
 
 /**
  * Standard implementation of the <b>Manager</b> interface that provides
@@ -111,6 +130,78 @@ public class StandardManager extends ManagerBase {
     protected String pathname = "SESSIONS.ser";
 
 
+    /**
+     * Identifies a shard file written by {@link #doUnloadShards(File)}.
+     */
+    private static final int SHARD_MAGIC = 0x54534D53;
+
+
+    /**
+     * Version of the record layout within a shard file.
+     */
+    private static final int SHARD_VERSION = 1;
+
+
+    /**
+     * The number of files the sessions are spread across when they are
+     * unloaded. <code>0</code> keeps the single file written with one
+     * <code>ObjectOutputStream</code>. Any other value writes each session as
+     * a length-prefixed record to one of that many shard files (the pathname
+     * followed by <code>.0</code>, <code>.1</code>, ...), which are written
+     * and read in parallel.
+     */
+    private int persistenceShards = 0;
+
+
+    /**
+     * The maximum number of threads used to write or read the shard files.
+     * <code>0</code> uses one thread per available processor.
+     */
+    private int persistenceThreads = 0;
+
+
+    /**
+     * Should sessions loaded from shard files keep their serialized form until
+     * they are first used, so that their attributes are only deserialized and
+     * activated when needed?
+     */
+    private boolean lazyActivation = false;
+
+
+    /**
+     * The number of sessions read or written so far by the current, or last,
+     * load or unload.
+     */
+    private final AtomicInteger persistenceProgress = new AtomicInteger();
+
+
+    /**
+     * The number of sessions the current, or last, load or unload has to
+     * process, as far as it is known. When loading, the count of each file is
+     * added once that file is opened.
+     */
+    private final AtomicInteger persistenceTotal = new AtomicInteger();
+
+
+    /**
+     * The number of bytes read or written so far by the current, or last, load
+     * or unload of shard files.
+     */
+    private final AtomicLong persistenceBytes = new AtomicLong();
+
+
+    /**
+     * The time in milliseconds taken by the last load of persisted sessions.
+     */
+    private volatile long loadTime = 0;
+
+
+    /**
+     * The time in milliseconds taken by the last unload of sessions.
+     */
+    private volatile long unloadTime = 0;
+
+
     // ------------------------------------------------------------- Properties
 
     @Override
@@ -140,6 +231,116 @@ public class StandardManager extends ManagerBase {
     }
 
 
+    /**
+     * @return The number of shard files sessions are unloaded to, or
+     *  <code>0</code> if they are unloaded to a single file.
+     */
+    public int getPersistenceShards() {
+        return persistenceShards;
+    }
+
+
+    /**
+     * Set the number of shard files sessions are unloaded to. Shard files are
+     * always loaded if present, whatever the value of this property.
+     *
+     * @param persistenceShards The number of shard files, or <code>0</code> to
+     *  unload sessions to a single file
+     */
+    public void setPersistenceShards(int persistenceShards) {
+        int oldPersistenceShards = this.persistenceShards;
+        this.persistenceShards = Math.max(0, persistenceShards);
+        support.firePropertyChange("persistenceShards", oldPersistenceShards,
+                this.persistenceShards);
+    }
+
+
+    /**
+     * @return The maximum number of threads used to write or read the shard
+     *  files, or <code>0</code> for one per available processor.
+     */
+    public int getPersistenceThreads() {
+        return persistenceThreads;
+    }
+
+
+    /**
+     * Set the maximum number of threads used to write or read the shard files.
+     *
+     * @param persistenceThreads The maximum number of threads, or
+     *  <code>0</code> for one per available processor
+     */
+    public void setPersistenceThreads(int persistenceThreads) {
+        this.persistenceThreads = Math.max(0, persistenceThreads);
+    }
+
+
+    /**
+     * @return <code>true</code> if sessions loaded from shard files are only
+     *  deserialized and activated when first used
+     */
+    public boolean getLazyActivation() {
+        return lazyActivation;
+    }
+
+
+    /**
+     * Set whether sessions loaded from shard files are only deserialized and
+     * activated when first used, rather than during {@link #load()}. Sessions
+     * which are never used before they are unloaded again are written back
+     * without being deserialized.
+     *
+     * @param lazyActivation <code>true</code> to defer deserialization
+     */
+    public void setLazyActivation(boolean lazyActivation) {
+        this.lazyActivation = lazyActivation;
+    }
+
+
+    /**
+     * @return The number of sessions read or written so far by the current,
+     *  or last, load or unload
+     */
+    public int getPersistenceProgress() {
+        return persistenceProgress.get();
+    }
+
+
+    /**
+     * @return The number of sessions the current, or last, load or unload has
+     *  to process, as far as it is known
+     */
+    public int getPersistenceTotal() {
+        return persistenceTotal.get();
+    }
+
+
+    /**
+     * @return The number of bytes read or written so far by the current, or
+     *  last, load or unload of shard files
+     */
+    public long getPersistenceBytes() {
+        return persistenceBytes.get();
+    }
+
+
+    /**
+     * @return The time in milliseconds taken by the last load of persisted
+     *  sessions
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+
+    /**
+     * @return The time in milliseconds taken by the last unload of sessions
+     */
+    public long getUnloadTime() {
+        return unloadTime;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
     @Override
@@ -186,22 +387,21 @@ public class StandardManager extends ManagerBase {
         if (file == null) {
             return;
         }
+        long start = System.currentTimeMillis();
+        persistenceProgress.set(0);
+        persistenceTotal.set(0);
+        persistenceBytes.set(0);
+
+        // Shard files are loaded whatever the current format, so that no
+        // sessions are lost when it is changed between restarts
+        doLoadShards(file);
+
         if (log.isDebugEnabled()) {
             log.debug(sm.getString("standardManager.loading", pathname));
         }
-        Loader loader = null;
-        ClassLoader classLoader = null;
+        ClassLoader classLoader = getPersistenceClassLoader();
         try (FileInputStream fis = new FileInputStream(file.getAbsolutePath());
                 BufferedInputStream bis = new BufferedInputStream(fis);) {
-            Context c = getContext();
-            loader = c.getLoader();
-            if (loader != null) {
-                classLoader = loader.getClassLoader();
-            }
-            if (classLoader == null) {
-                classLoader = getClass().getClassLoader();
-            }
-
             // Load the previously unloaded active sessions
             synchronized (sessions) {
                 try (ObjectInputStream ois = new CustomObjectInputStream(bis, classLoader)) {
@@ -209,6 +409,7 @@ public class StandardManager extends ManagerBase {
                     int n = count.intValue();
                     if (log.isDebugEnabled())
                         log.debug("Loading " + n + " persisted sessions");
+                    persistenceTotal.addAndGet(n);
                     for (int i = 0; i < n; i++) {
                         StandardSession session = getNewSession();
                         session.readObjectData(ois);
@@ -222,6 +423,7 @@ public class StandardManager extends ManagerBase {
                             session.expire();
                         }
                         sessionCounter++;
+                        persistenceProgress.incrementAndGet();
                     }
                 } finally {
                     // Delete the persistent storage file
@@ -234,7 +436,8 @@ public class StandardManager extends ManagerBase {
             if (log.isDebugEnabled()) {
                 log.debug("No persisted data file found");
             }
-            return;
+        } finally {
+            loadTime = System.currentTimeMillis() - start;
         }
 
         if (log.isDebugEnabled()) {
@@ -243,6 +446,79 @@ public class StandardManager extends ManagerBase {
     }
 
 
+    /**
+     * Load the sessions of the shard files written by
+     * {@link #doUnloadShards(File)}, if any. Each file is memory-mapped and its
+     * records are read by a separate thread. The sessions are then registered
+     * and, unless {@link #getLazyActivation()} is set, activated on the
+     * calling thread. The shard files are deleted once they have been read.
+     *
+     * @param file The single persistence file the shard files are named after
+     *
+     * @exception IOException if an input/output error occurs, or a serialized
+     *  class cannot be found
+     */
+    protected void doLoadShards(File file) throws IOException {
+        List<File> shards = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File shard = shardFile(file, i);
+            if (!shard.exists()) {
+                break;
+            }
+            shards.add(shard);
+        }
+        if (shards.isEmpty()) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("standardManager.loadingShards",
+                    Integer.valueOf(shards.size()), pathname));
+        }
+
+        ClassLoader classLoader = getPersistenceClassLoader();
+        boolean lazy = lazyActivation;
+        List<StandardSession> loaded = new ArrayList<>();
+        ExecutorService executor = createPersistenceExecutor(shards.size());
+        try {
+            List<Future<List<StandardSession>>> results = new ArrayList<>(shards.size());
+            for (File shard : shards) {
+                results.add(executor.submit(new ShardReader(shard, classLoader, lazy)));
+            }
+            for (Future<List<StandardSession>> result : results) {
+                loaded.addAll(getPersistenceResult(result));
+            }
+        } finally {
+            executor.shutdownNow();
+            for (File shard : shards) {
+                // A mapping which is still reachable may prevent the deletion
+                // on some platforms
+                if (shard.exists() && !shard.delete()) {
+                    log.warn(sm.getString("standardManager.deleteShardFail", shard));
+                }
+            }
+        }
+
+        for (StandardSession session : loaded) {
+            sessions.put(session.getIdInternal(), session);
+            if (!lazy) {
+                session.activate();
+            }
+            if (!session.isValidInternal()) {
+                // If session is already invalid,
+                // expire session to prevent memory leak.
+                session.setValid(true);
+                session.expire();
+            }
+            sessionCounter++;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("standardManager.loadedShards",
+                    Integer.valueOf(loaded.size()), Long.valueOf(persistenceBytes.get())));
+        }
+    }
+
+
     @Override
     public void unload() throws IOException {
         if (SecurityUtil.isPackageProtectionEnabled()) {
@@ -289,6 +565,36 @@ public class StandardManager extends ManagerBase {
             log.debug(sm.getString("standardManager.unloading", pathname));
         }
 
+        long start = System.currentTimeMillis();
+        persistenceProgress.set(0);
+        persistenceTotal.set(0);
+        persistenceBytes.set(0);
+        try {
+            if (persistenceShards > 0) {
+                doUnloadShards(file);
+            } else {
+                doUnloadFile(file);
+            }
+        } finally {
+            unloadTime = System.currentTimeMillis() - start;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Unloading complete");
+        }
+    }
+
+
+    /**
+     * Save the active sessions to a single file with one
+     * <code>ObjectOutputStream</code>, then expire them.
+     *
+     * @param file The persistence file
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    private void doUnloadFile(File file) throws IOException {
+
         // Keep a note of sessions that are expired
         ArrayList<StandardSession> list = new ArrayList<>();
 
@@ -301,6 +607,7 @@ public class StandardManager extends ManagerBase {
                     log.debug("Unloading " + sessions.size() + " sessions");
                 }
                 // Write the number of active sessions, followed by the details
+                persistenceTotal.set(sessions.size());
                 oos.writeObject(Integer.valueOf(sessions.size()));
                 Iterator<Session> elements = sessions.values().iterator();
                 while (elements.hasNext()) {
@@ -309,10 +616,86 @@ public class StandardManager extends ManagerBase {
                     list.add(session);
                     session.passivate();
                     session.writeObjectData(oos);
+                    persistenceProgress.incrementAndGet();
                 }
             }
         }
 
+        expirePersisted(list);
+    }
+
+
+    /**
+     * Save the active sessions to {@link #getPersistenceShards()} shard files,
+     * then expire them. The sessions are passivated on the calling thread and
+     * each shard file is written by a separate thread, as a sequence of
+     * length-prefixed records which can be read independently of each other.
+     * Sessions loaded lazily which have not been used since are written back
+     * without being deserialized.
+     *
+     * @param file The single persistence file the shard files are named after
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void doUnloadShards(File file) throws IOException {
+        int shardCount = persistenceShards;
+
+        // Keep a note of sessions that are expired
+        ArrayList<StandardSession> list = new ArrayList<>();
+        List<List<StandardSession>> partitions = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            partitions.add(new ArrayList<StandardSession>());
+        }
+        for (Session s : sessions.values()) {
+            StandardSession session = (StandardSession) s;
+            list.add(session);
+            session.passivate();
+            int shard = (session.getIdInternal().hashCode() & 0x7FFFFFFF) % shardCount;
+            partitions.get(shard).add(session);
+        }
+        persistenceTotal.set(list.size());
+        if (log.isDebugEnabled()) {
+            log.debug(sm.getString("standardManager.unloadingShards",
+                    Integer.valueOf(list.size()), Integer.valueOf(shardCount)));
+        }
+
+        // Remove the shard files left over by an earlier unload which used
+        // more shards, so that they are not loaded again
+        for (int i = shardCount; ; i++) {
+            File stale = shardFile(file, i);
+            if (!stale.exists()) {
+                break;
+            }
+            if (!stale.delete()) {
+                log.warn(sm.getString("standardManager.deleteShardFail", stale));
+            }
+        }
+
+        ExecutorService executor = createPersistenceExecutor(shardCount);
+        try {
+            List<Future<Void>> results = new ArrayList<>(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                results.add(executor.submit(
+                        new ShardWriter(shardFile(file, i), partitions.get(i))));
+            }
+            for (Future<Void> result : results) {
+                getPersistenceResult(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        expirePersisted(list);
+    }
+
+
+    /**
+     * Expire, without notifications, the sessions which have just been
+     * persisted.
+     *
+     * @param list The persisted sessions
+     */
+    private void expirePersisted(List<StandardSession> list) {
         // Expire all the sessions we just wrote
         if (log.isDebugEnabled()) {
             log.debug("Expiring " + list.size() + " persisted sessions");
@@ -328,10 +711,6 @@ public class StandardManager extends ManagerBase {
                 session.recycle();
             }
         }
-
-        if (log.isDebugEnabled()) {
-            log.debug("Unloading complete");
-        }
     }
 
 
@@ -427,4 +806,381 @@ public class StandardManager extends ManagerBase {
         }
         return file;
     }
+
+
+    /**
+     * Return a File object representing one of the shard files the sessions
+     * are unloaded to when {@link #getPersistenceShards()} is set.
+     *
+     * @param file The single persistence file
+     * @param shard The index of the shard
+     * @return the shard file
+     */
+    protected File shardFile(File file, int shard) {
+        return new File(file.getPath() + "." + shard);
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+    private ClassLoader getPersistenceClassLoader() {
+        ClassLoader classLoader = null;
+        Loader loader = getContext().getLoader();
+        if (loader != null) {
+            classLoader = loader.getClassLoader();
+        }
+        if (classLoader == null) {
+            classLoader = getClass().getClassLoader();
+        }
+        return classLoader;
+    }
+
+
+    private ExecutorService createPersistenceExecutor(int tasks) {
+        int threads = persistenceThreads;
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.max(1, Math.min(threads, tasks));
+        return Executors.newFixedThreadPool(threads, new TaskThreadFactory(
+                getContext().getName() + "-sessionPersistence-", true, Thread.NORM_PRIORITY));
+    }
+
+
+    private static <T> T getPersistenceResult(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // ClassNotFoundException
+            throw new IOException(cause);
+        }
+    }
+
+
+    // ---------------------------------------------------------- Inner classes
+
+    /**
+     * Reads the records of one shard file. Each record holds:
+     * <ul>
+     * <li>the length of the rest of the record (<code>int</code>)</li>
+     * <li>the session ID, as a <code>short</code> length followed by the UTF-8
+     *     bytes</li>
+     * <li>the creation, last accessed and this accessed times
+     *     (<code>long</code>)</li>
+     * <li>the maximum inactive interval (<code>int</code>)</li>
+     * <li>the new and valid flags (<code>byte</code>)</li>
+     * <li>the length (<code>int</code>) and bytes of the session as written by
+     *     {@link StandardSession#writeObjectData(ObjectOutputStream)} to its
+     *     own <code>ObjectOutputStream</code></li>
+     * </ul>
+     * The header fields are enough to register and expire a session loaded
+     * lazily, without deserializing it.
+     */
+    private class ShardReader implements Callable<List<StandardSession>> {
+
+        private final File shard;
+        private final ClassLoader classLoader;
+        private final boolean lazy;
+
+        ShardReader(File shard, ClassLoader classLoader, boolean lazy) {
+            this.shard = shard;
+            this.classLoader = classLoader;
+            this.lazy = lazy;
+        }
+
+        @Override
+        public List<StandardSession> call() throws IOException, ClassNotFoundException {
+            try (FileChannel channel = FileChannel.open(shard.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < 12 || size > Integer.MAX_VALUE) {
+                    throw new IOException(sm.getString("standardManager.invalidShard", shard));
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt() != SHARD_MAGIC || buffer.getInt() != SHARD_VERSION) {
+                    throw new IOException(sm.getString("standardManager.invalidShard", shard));
+                }
+                int count = buffer.getInt();
+                persistenceTotal.addAndGet(count);
+                List<StandardSession> result = new ArrayList<>(count);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        int length = buffer.getInt();
+                        int end = buffer.position() + length;
+                        result.add(readSession(buffer));
+                        buffer.position(end);
+                        persistenceProgress.incrementAndGet();
+                        persistenceBytes.addAndGet(4 + length);
+                    }
+                } catch (BufferUnderflowException | IllegalArgumentException e) {
+                    throw new IOException(sm.getString("standardManager.invalidShard", shard), e);
+                }
+                return result;
+            }
+        }
+
+        private StandardSession readSession(ByteBuffer buffer)
+                throws IOException, ClassNotFoundException {
+            byte[] id = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(id);
+            long creationTime = buffer.getLong();
+            long lastAccessedTime = buffer.getLong();
+            long thisAccessedTime = buffer.getLong();
+            int maxInactiveInterval = buffer.getInt();
+            boolean isNew = buffer.get() != 0;
+            boolean isValid = buffer.get() != 0;
+            byte[] data = new byte[buffer.getInt()];
+            buffer.get(data);
+
+            if (lazy) {
+                LazySession session = new LazySession(StandardManager.this, data, classLoader);
+                session.id = new String(id, StandardCharsets.UTF_8);
+                session.creationTime = creationTime;
+                session.lastAccessedTime = lastAccessedTime;
+                session.thisAccessedTime = thisAccessedTime;
+                session.maxInactiveInterval = maxInactiveInterval;
+                session.isNew = isNew;
+                session.isValid = isValid;
+                return session;
+            }
+            StandardSession session = getNewSession();
+            try (ObjectInputStream ois = new CustomObjectInputStream(
+                    new ByteArrayInputStream(data), classLoader)) {
+                session.readObjectData(ois);
+            }
+            session.setManager(StandardManager.this);
+            return session;
+        }
+    }
+
+
+    /**
+     * Writes the records of one shard file, in the layout described by
+     * {@link ShardReader}.
+     */
+    private class ShardWriter implements Callable<Void> {
+
+        private final File shard;
+        private final List<StandardSession> list;
+
+        ShardWriter(File shard, List<StandardSession> list) {
+            this.shard = shard;
+            this.list = list;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(8192);
+            ByteArrayOutputStream data = new ByteArrayOutputStream(8192);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            try (FileOutputStream fos = new FileOutputStream(shard.getAbsolutePath());
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(fos, 64 * 1024))) {
+                out.writeInt(SHARD_MAGIC);
+                out.writeInt(SHARD_VERSION);
+                out.writeInt(list.size());
+                for (StandardSession session : list) {
+                    byte[] serialized = null;
+                    if (session instanceof LazySession) {
+                        serialized = ((LazySession) session).getSerializedData();
+                    }
+                    if (serialized == null) {
+                        data.reset();
+                        try (ObjectOutputStream oos = new ObjectOutputStream(data)) {
+                            session.writeObjectData(oos);
+                        }
+                    }
+
+                    record.reset();
+                    byte[] id = session.getIdInternal().getBytes(StandardCharsets.UTF_8);
+                    recordOut.writeShort(id.length);
+                    recordOut.write(id);
+                    recordOut.writeLong(session.creationTime);
+                    recordOut.writeLong(session.lastAccessedTime);
+                    recordOut.writeLong(session.thisAccessedTime);
+                    recordOut.writeInt(session.maxInactiveInterval);
+                    recordOut.writeByte(session.isNew ? 1 : 0);
+                    recordOut.writeByte(session.isValid ? 1 : 0);
+                    if (serialized != null) {
+                        recordOut.writeInt(serialized.length);
+                        recordOut.write(serialized);
+                    } else {
+                        recordOut.writeInt(data.size());
+                        data.writeTo(recordOut);
+                    }
+                    recordOut.flush();
+
+                    out.writeInt(record.size());
+                    record.writeTo(out);
+                    persistenceProgress.incrementAndGet();
+                    persistenceBytes.addAndGet(4 + record.size());
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * A session loaded from a shard file which keeps its serialized form until
+     * it is first used. The ID, times and flags are restored when it is
+     * loaded, which is enough for it to be found and to expire. Everything
+     * else, the attributes in particular, is deserialized and the session
+     * activated the first time it is accessed or its attributes are needed.
+     */
+    private static class LazySession extends StandardSession {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient volatile byte[] serializedData;
+        private transient ClassLoader classLoader;
+
+        LazySession(StandardManager manager, byte[] serializedData,
+                ClassLoader classLoader) {
+            super(manager);
+            this.serializedData = serializedData;
+            this.classLoader = classLoader;
+        }
+
+        /**
+         * @return The serialized form of the session, or <code>null</code> if
+         *  it has been deserialized
+         */
+        byte[] getSerializedData() {
+            return serializedData;
+        }
+
+        /**
+         * Deserializes and activates the session if it has not been already.
+         *
+         * @return <code>true</code> if this call activated the session
+         */
+        private boolean ensureActivated() {
+            if (serializedData == null) {
+                return false;
+            }
+            synchronized (this) {
+                byte[] data = serializedData;
+                if (data == null) {
+                    return false;
+                }
+                // The serialized times and flags are those of the unload, keep
+                // any update made since the session was loaded
+                long lastAccessedTime = this.lastAccessedTime;
+                long thisAccessedTime = this.thisAccessedTime;
+                int maxInactiveInterval = this.maxInactiveInterval;
+                boolean isNew = this.isNew;
+                boolean isValid = this.isValid;
+                try (ObjectInputStream ois = new CustomObjectInputStream(
+                        new ByteArrayInputStream(data), classLoader)) {
+                    readObjectData(ois);
+                } catch (ClassNotFoundException | IOException e) {
+                    manager.getContext().getLogger().error(
+                            sm.getString("standardManager.lazyActivateFail", id), e);
+                } finally {
+                    this.lastAccessedTime = lastAccessedTime;
+                    this.thisAccessedTime = thisAccessedTime;
+                    this.maxInactiveInterval = maxInactiveInterval;
+                    this.isNew = isNew;
+                    this.isValid = isValid;
+                    serializedData = null;
+                    classLoader = null;
+                }
+                super.activate();
+                return true;
+            }
+        }
+
+        @Override
+        public void access() {
+            ensureActivated();
+            super.access();
+        }
+
+        @Override
+        public void activate() {
+            // Deferred until the session is first used
+            if (serializedData == null) {
+                super.activate();
+            }
+        }
+
+        @Override
+        public void passivate() {
+            // A session which was never activated has nothing to passivate
+            if (serializedData == null) {
+                super.passivate();
+            }
+        }
+
+        @Override
+        public void expire(boolean notify) {
+            if (notify) {
+                ensureActivated();
+            } else {
+                // No listener will see the attributes
+                serializedData = null;
+                classLoader = null;
+            }
+            super.expire(notify);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            ensureActivated();
+            return super.getAttribute(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            ensureActivated();
+            return super.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String name, Object value, boolean notify) {
+            ensureActivated();
+            super.setAttribute(name, value, notify);
+        }
+
+        @Override
+        public void removeAttribute(String name, boolean notify) {
+            ensureActivated();
+            super.removeAttribute(name, notify);
+        }
+
+        @Override
+        protected String[] keys() {
+            ensureActivated();
+            return super.keys();
+        }
+
+        @Override
+        public void writeObjectData(ObjectOutputStream stream) throws IOException {
+            if (ensureActivated()) {
+                // The caller could not write the stored bytes as they are and
+                // skipped the passivation of the inactive session, so that the
+                // listeners see the activation followed by a passivation
+                super.passivate();
+            }
+            super.writeObjectData(stream);
+        }
+
+        @Override
+        public void recycle() {
+            serializedData = null;
+            classLoader = null;
+            super.recycle();
+        }
+    }
 }
@@ -16,12 +16,18 @@
  */
 package org.apache.catalina.startup;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -38,6 +44,11 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletContainerInitializer;
@@ -172,6 +183,26 @@ public class ContextConfig implements LifecycleListener {
     private static final Set<ServletContainerInitializer> EMPTY_SCI_SET = Collections.emptySet();
 
 
+    /**
+     * Version of the format of the annotation index files. Index files of
+     * another version are ignored.
+     */
+    private static final int ANNOTATION_INDEX_VERSION = 1;
+
+
+    /**
+     * The number of threads used to scan JARs for annotations when scanning
+     * in parallel. The pool is shared by every web application, so that
+     * starting several web applications at once does not multiply the number
+     * of scanning threads.
+     */
+    private static final int ANNOTATION_SCANNING_THREADS = Integer.getInteger(
+            "org.apache.catalina.startup.ContextConfig.ANNOTATION_SCANNING_THREADS",
+            Runtime.getRuntime().availableProcessors()).intValue();
+
+    private static volatile ForkJoinPool annotationScanningPool = null;
+
+
     // ----------------------------------------------------- Instance Variables
     /**
      * Custom mappings of login methods to authenticators
@@ -236,6 +267,27 @@ public class ContextConfig implements LifecycleListener {
     protected boolean handlesTypesNonAnnotations = false;
 
 
+    /**
+     * Should the JARs of the web application be scanned for annotations in
+     * parallel?
+     */
+    protected boolean parallelAnnotationScanning = false;
+
+
+    /**
+     * The directory in which the annotation index of each scanned JAR is
+     * stored, or <code>null</code> to scan every JAR on every start.
+     */
+    protected String annotationIndexDir = null;
+
+
+    /**
+     * Time, in milliseconds, spent scanning each JAR for annotations during
+     * the last start, keyed by URL.
+     */
+    protected final Map<String,Long> annotationScanTimes = new ConcurrentHashMap<>();
+
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -263,6 +315,64 @@ public class ContextConfig implements LifecycleListener {
     }
 
 
+    /**
+     * @return <code>true</code> if the JARs of the web application are
+     *         scanned for annotations in parallel
+     */
+    public boolean getParallelAnnotationScanning() {
+        return parallelAnnotationScanning;
+    }
+
+
+    /**
+     * Configure whether the JARs of the web application are scanned for
+     * annotations in parallel. The scanning pool is shared by all web
+     * applications and its size is set with the
+     * <code>org.apache.catalina.startup.ContextConfig.ANNOTATION_SCANNING_THREADS</code>
+     * system property, which defaults to the number of available processors.
+     * {@link HandlesTypes} matches are still resolved on the thread starting
+     * the web application.
+     *
+     * @param parallelAnnotationScanning <code>true</code> to scan the JARs in
+     *                                   parallel
+     */
+    public void setParallelAnnotationScanning(boolean parallelAnnotationScanning) {
+        this.parallelAnnotationScanning = parallelAnnotationScanning;
+    }
+
+
+    /**
+     * @return The directory in which the annotation index of each JAR is
+     *         stored or <code>null</code> if JARs are not indexed
+     */
+    public String getAnnotationIndexDir() {
+        return annotationIndexDir;
+    }
+
+
+    /**
+     * Set the directory in which to store the annotation index of each
+     * scanned JAR. Indexes are keyed by the checksum of the JAR, so that a
+     * JAR which has not changed since it was last scanned is not scanned
+     * again. Only used when scanning in parallel.
+     *
+     * @param annotationIndexDir The index directory. If not absolute, it is
+     *                           relative to CATALINA_BASE.
+     */
+    public void setAnnotationIndexDir(String annotationIndexDir) {
+        this.annotationIndexDir = annotationIndexDir;
+    }
+
+
+    /**
+     * @return The time, in milliseconds, spent scanning each JAR for
+     *         annotations during the last start, keyed by the URL of the JAR
+     */
+    public Map<String,Long> getAnnotationScanTimes() {
+        return Collections.unmodifiableMap(annotationScanTimes);
+    }
+
+
     /**
      * Sets custom mappings of login methods to authenticators.
      *
@@ -1945,6 +2055,11 @@ public class ContextConfig implements LifecycleListener {
 
     protected void processAnnotations(Set<WebXml> fragments,
             boolean handlesTypesOnly, Map<String,JavaClassCacheEntry> javaClassCache) {
+        annotationScanTimes.clear();
+        if (parallelAnnotationScanning) {
+            processAnnotationsInParallel(fragments, handlesTypesOnly, javaClassCache);
+            return;
+        }
         for(WebXml fragment : fragments) {
             // Only need to scan for @HandlesTypes matches if any of the
             // following are true:
@@ -1959,7 +2074,77 @@ public class ContextConfig implements LifecycleListener {
             // no impact on distributable
             annotations.setDistributable(true);
             URL url = fragment.getURL();
+            long t1 = System.currentTimeMillis();
             processAnnotationsUrl(url, annotations, htOnly, javaClassCache);
+            if (url != null) {
+                annotationScanTimes.put(url.toString(),
+                        Long.valueOf(System.currentTimeMillis() - t1));
+            }
+            Set<WebXml> set = new HashSet<>();
+            set.add(annotations);
+            // Merge annotations into fragment - fragment takes priority
+            fragment.merge(set);
+        }
+    }
+
+    /**
+     * Scan the JARs of the given fragments on a fork-join pool. Each JAR is
+     * parsed into its own {@link WebXml} and a summary of its classes. The
+     * summaries are then checked for {@link HandlesTypes} matches and the
+     * results merged into the fragments, in order, on the current thread.
+     * Fragments which are not JARs are processed on the current thread.
+     *
+     * @param fragments         The fragments to process
+     * @param handlesTypesOnly  Should only {@link HandlesTypes} matches be
+     *                          looked for?
+     * @param javaClassCache    The class cache used for {@link HandlesTypes}
+     *                          matching
+     */
+    protected void processAnnotationsInParallel(Set<WebXml> fragments,
+            boolean handlesTypesOnly, Map<String,JavaClassCacheEntry> javaClassCache) {
+        File indexDir = getAnnotationIndexDirectory();
+        boolean summarize = indexDir != null || typeInitializerMap.size() > 0;
+
+        List<WebXml> annotationsList = new ArrayList<>(fragments.size());
+        List<JarScanTask> tasks = new ArrayList<>(fragments.size());
+        ForkJoinPool pool = getAnnotationScanningPool();
+        for (WebXml fragment : fragments) {
+            // See processAnnotations()
+            boolean htOnly = handlesTypesOnly || !fragment.getWebappJar() ||
+                    fragment.isMetadataComplete();
+
+            WebXml annotations = new WebXml();
+            // no impact on distributable
+            annotations.setDistributable(true);
+            annotationsList.add(annotations);
+            URL url = fragment.getURL();
+            if (url != null &&
+                    ("jar".equals(url.getProtocol()) || url.toString().endsWith(".jar"))) {
+                JarScanTask task = new JarScanTask(
+                        url, annotations, htOnly, summarize, indexDir);
+                pool.execute(task);
+                tasks.add(task);
+            } else {
+                tasks.add(null);
+            }
+        }
+
+        int i = 0;
+        for (WebXml fragment : fragments) {
+            WebXml annotations = annotationsList.get(i);
+            JarScanTask task = tasks.get(i++);
+            if (task == null) {
+                boolean htOnly = handlesTypesOnly || !fragment.getWebappJar() ||
+                        fragment.isMetadataComplete();
+                processAnnotationsUrl(fragment.getURL(), annotations, htOnly, javaClassCache);
+            } else {
+                List<ClassSummary> classes = task.join();
+                if (classes != null) {
+                    for (ClassSummary summary : classes) {
+                        checkHandlesTypes(summary, javaClassCache);
+                    }
+                }
+            }
             Set<WebXml> set = new HashSet<>();
             set.add(annotations);
             // Merge annotations into fragment - fragment takes priority
@@ -1967,6 +2152,47 @@ public class ContextConfig implements LifecycleListener {
         }
     }
 
+
+    /**
+     * @return The fork-join pool shared by all web applications to scan JARs
+     *         for annotations in parallel, after creating it if necessary
+     */
+    protected static ForkJoinPool getAnnotationScanningPool() {
+        ForkJoinPool pool = annotationScanningPool;
+        if (pool == null) {
+            synchronized (ContextConfig.class) {
+                pool = annotationScanningPool;
+                if (pool == null) {
+                    pool = new ForkJoinPool(Math.max(1, ANNOTATION_SCANNING_THREADS));
+                    annotationScanningPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+
+    /**
+     * @return The directory in which annotation indexes are stored, after
+     *         creating it if necessary, or <code>null</code> if JARs are not
+     *         indexed
+     */
+    protected File getAnnotationIndexDirectory() {
+        if (annotationIndexDir == null) {
+            return null;
+        }
+        File dir = new File(annotationIndexDir);
+        if (!dir.isAbsolute()) {
+            dir = new File(context.getCatalinaBase(), annotationIndexDir);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.warn(sm.getString("contextConfig.annotationIndex.noDir", dir));
+            return null;
+        }
+        return dir;
+    }
+
+
     protected void processAnnotationsWebResource(WebResource webResource,
             WebXml fragment, boolean handlesTypesOnly,
             Map<String,JavaClassCacheEntry> javaClassCache) {
@@ -2096,6 +2322,18 @@ public class ContextConfig implements LifecycleListener {
             return;
         }
 
+        processClassAnnotations(clazz, fragment);
+    }
+
+
+    /**
+     * Add the servlets, filters and listeners declared by the annotations of
+     * the given class to the given fragment.
+     *
+     * @param clazz     The class
+     * @param fragment  The fragment to add to
+     */
+    protected void processClassAnnotations(JavaClass clazz, WebXml fragment) {
         AnnotationEntry[] annotationsEntries = clazz.getAnnotationEntries();
         if (annotationsEntries != null) {
             String className = clazz.getClassName();
@@ -2129,18 +2367,38 @@ public class ContextConfig implements LifecycleListener {
             return;
         }
 
-        if ((javaClass.getAccessFlags() &
+        checkHandlesTypes(new ClassSummary(null, javaClass), javaClassCache);
+    }
+
+
+    /**
+     * As {@link #checkHandlesTypes(JavaClass, Map)}, for a class which has
+     * been summarized, possibly while scanning a JAR in parallel or when the
+     * JAR was indexed.
+     * @param summary the class to check
+     * @param javaClassCache a class cache
+     */
+    protected void checkHandlesTypes(ClassSummary summary,
+            Map<String,JavaClassCacheEntry> javaClassCache) {
+
+        // Skip this if we can
+        if (typeInitializerMap.size() == 0) {
+            return;
+        }
+
+        if ((summary.getAccessFlags() &
                 org.apache.tomcat.util.bcel.Const.ACC_ANNOTATION) != 0) {
             // Skip annotations.
             return;
         }
 
-        String className = javaClass.getClassName();
+        String className = summary.getClassName();
 
         Class<?> clazz = null;
         if (handlesTypesNonAnnotations) {
             // This *might* be match for a HandlesType.
-            populateJavaClassCache(className, javaClass, javaClassCache);
+            populateJavaClassCache(className, summary.getSuperclassName(),
+                    summary.getInterfaceNames(), javaClassCache);
             JavaClassCacheEntry entry = javaClassCache.get(className);
             if (entry.getSciSet() == null) {
                 try {
@@ -2172,15 +2430,14 @@ public class ContextConfig implements LifecycleListener {
         }
 
         if (handlesTypesAnnotations) {
-            AnnotationEntry[] annotationEntries = javaClass.getAnnotationEntries();
-            if (annotationEntries != null) {
+            String[] annotationTypes = summary.getAnnotationTypes();
+            if (annotationTypes.length > 0) {
                 for (Map.Entry<Class<?>, Set<ServletContainerInitializer>> entry :
                         typeInitializerMap.entrySet()) {
                     if (entry.getKey().isAnnotation()) {
                         String entryClassName = entry.getKey().getName();
-                        for (AnnotationEntry annotationEntry : annotationEntries) {
-                            if (entryClassName.equals(
-                                    getClassName(annotationEntry.getAnnotationType()))) {
+                        for (String annotationType : annotationTypes) {
+                            if (entryClassName.equals(getClassName(annotationType))) {
                                 if (clazz == null) {
                                     clazz = Introspection.loadClass(
                                             context, className);
@@ -2227,18 +2484,18 @@ public class ContextConfig implements LifecycleListener {
         return msg.toString();
     }
 
-    private void populateJavaClassCache(String className, JavaClass javaClass,
-            Map<String,JavaClassCacheEntry> javaClassCache) {
+    private void populateJavaClassCache(String className, String superclassName,
+            String[] interfaceNames, Map<String,JavaClassCacheEntry> javaClassCache) {
         if (javaClassCache.containsKey(className)) {
             return;
         }
 
         // Add this class to the cache
-        javaClassCache.put(className, new JavaClassCacheEntry(javaClass));
+        javaClassCache.put(className, new JavaClassCacheEntry(superclassName, interfaceNames));
 
-        populateJavaClassCache(javaClass.getSuperclassName(), javaClassCache);
+        populateJavaClassCache(superclassName, javaClassCache);
 
-        for (String interfaceName : javaClass.getInterfaceNames()) {
+        for (String interfaceName : interfaceNames) {
             populateJavaClassCache(interfaceName, javaClassCache);
         }
     }
@@ -2253,7 +2510,8 @@ public class ContextConfig implements LifecycleListener {
                 }
                 ClassParser parser = new ClassParser(is);
                 JavaClass clazz = parser.parse();
-                populateJavaClassCache(clazz.getClassName(), clazz, javaClassCache);
+                populateJavaClassCache(clazz.getClassName(), clazz.getSuperclassName(),
+                        clazz.getInterfaceNames(), javaClassCache);
             } catch (ClassFormatException e) {
                 log.debug(sm.getString("contextConfig.invalidSciHandlesTypes",
                         className), e);
@@ -2650,6 +2908,345 @@ public class ContextConfig implements LifecycleListener {
         }
     }
 
+    /**
+     * The information about a class needed to check it for
+     * {@link HandlesTypes} matches, which is also what is stored for each
+     * class in an annotation index.
+     */
+    static class ClassSummary {
+        private static final String[] EMPTY = new String[0];
+
+        private final String entryName;
+        private final String className;
+        private final String superclassName;
+        private final String[] interfaceNames;
+        private final int accessFlags;
+        private final String[] annotationTypes;
+
+        public ClassSummary(String entryName, JavaClass javaClass) {
+            this.entryName = entryName;
+            className = javaClass.getClassName();
+            superclassName = javaClass.getSuperclassName();
+            interfaceNames = javaClass.getInterfaceNames();
+            accessFlags = javaClass.getAccessFlags();
+            AnnotationEntry[] annotationEntries = javaClass.getAnnotationEntries();
+            if (annotationEntries == null || annotationEntries.length == 0) {
+                annotationTypes = EMPTY;
+            } else {
+                annotationTypes = new String[annotationEntries.length];
+                for (int i = 0; i < annotationEntries.length; i++) {
+                    annotationTypes[i] = annotationEntries[i].getAnnotationType();
+                }
+            }
+        }
+
+        private ClassSummary(DataInputStream in) throws IOException {
+            entryName = in.readUTF();
+            className = in.readUTF();
+            superclassName = in.readUTF();
+            accessFlags = in.readInt();
+            interfaceNames = readStrings(in);
+            annotationTypes = readStrings(in);
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getSuperclassName() {
+            return superclassName;
+        }
+
+        public String[] getInterfaceNames() {
+            return interfaceNames;
+        }
+
+        public int getAccessFlags() {
+            return accessFlags;
+        }
+
+        public String[] getAnnotationTypes() {
+            return annotationTypes;
+        }
+
+        /**
+         * @return <code>true</code> if the class has an annotation which
+         *         declares a servlet, a filter or a listener
+         */
+        public boolean hasWebAnnotation() {
+            for (String type : annotationTypes) {
+                if ("Ljavax/servlet/annotation/WebServlet;".equals(type) ||
+                        "Ljavax/servlet/annotation/WebFilter;".equals(type) ||
+                        "Ljavax/servlet/annotation/WebListener;".equals(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(entryName);
+            out.writeUTF(className);
+            out.writeUTF(superclassName);
+            out.writeInt(accessFlags);
+            writeStrings(out, interfaceNames);
+            writeStrings(out, annotationTypes);
+        }
+
+        private static String[] readStrings(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            if (count == 0) {
+                return EMPTY;
+            }
+            String[] result = new String[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = in.readUTF();
+            }
+            return result;
+        }
+
+        private static void writeStrings(DataOutputStream out, String[] strings)
+                throws IOException {
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                out.writeUTF(string);
+            }
+        }
+    }
+
+    /**
+     * Scans a JAR for annotations, or reads the summary of its classes from
+     * the annotation index if it has not changed since it was indexed. The
+     * servlets, filters and listeners are added to a {@link WebXml} that is
+     * only used by this task, and the result is the summary of the classes,
+     * if requested.
+     */
+    protected class JarScanTask extends RecursiveTask<List<ClassSummary>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final URL url;
+        private final WebXml fragment;
+        private final boolean handlesTypesOnly;
+        private final boolean summarize;
+        private final File indexDir;
+
+        public JarScanTask(URL url, WebXml fragment, boolean handlesTypesOnly,
+                boolean summarize, File indexDir) {
+            this.url = url;
+            this.fragment = fragment;
+            this.handlesTypesOnly = handlesTypesOnly;
+            this.summarize = summarize;
+            this.indexDir = indexDir;
+        }
+
+        @Override
+        protected List<ClassSummary> compute() {
+            long t1 = System.currentTimeMillis();
+
+            File indexFile = null;
+            List<ClassSummary> classes = null;
+            if (indexDir != null) {
+                File jarFile = getJarFile(url);
+                if (jarFile != null) {
+                    try {
+                        indexFile = new File(indexDir, checksum(jarFile) + ".idx");
+                    } catch (IOException e) {
+                        log.warn(sm.getString("contextConfig.annotationIndex.checksum", url), e);
+                    }
+                }
+                if (indexFile != null && indexFile.isFile()) {
+                    classes = readIndex(indexFile);
+                }
+            }
+
+            boolean indexed = classes != null;
+            if (indexed) {
+                if (!handlesTypesOnly) {
+                    processIndexedAnnotations(classes);
+                }
+            } else {
+                classes = scan();
+                if (indexFile != null && classes != null) {
+                    writeIndex(indexFile, classes);
+                }
+            }
+
+            long t2 = System.currentTimeMillis();
+            annotationScanTimes.put(url.toString(), Long.valueOf(t2 - t1));
+            if (log.isDebugEnabled()) {
+                log.debug(sm.getString("contextConfig.processAnnotationsJar.time",
+                        url, Long.valueOf(t2 - t1), Boolean.valueOf(indexed)));
+            }
+            return summarize ? classes : null;
+        }
+
+        /*
+         * As processAnnotationsJar() but the HandlesTypes checks are left to
+         * the caller. Returns null if the JAR could not be read.
+         */
+        private List<ClassSummary> scan() {
+            List<ClassSummary> classes = new ArrayList<>();
+            try (Jar jar = JarFactory.newInstance(url)) {
+                if (log.isDebugEnabled()) {
+                    log.debug(sm.getString(
+                            "contextConfig.processAnnotationsJar.debug", url));
+                }
+
+                jar.nextEntry();
+                String entryName = jar.getEntryName();
+                while (entryName != null) {
+                    if (entryName.endsWith(".class")) {
+                        try (InputStream is = jar.getEntryInputStream()) {
+                            ClassParser parser = new ClassParser(is);
+                            JavaClass clazz = parser.parse();
+                            if (summarize) {
+                                classes.add(new ClassSummary(entryName, clazz));
+                            }
+                            if (!handlesTypesOnly) {
+                                processClassAnnotations(clazz, fragment);
+                            }
+                        } catch (IOException e) {
+                            log.error(sm.getString("contextConfig.inputStreamJar",
+                                    entryName, url),e);
+                        } catch (ClassFormatException e) {
+                            log.error(sm.getString("contextConfig.inputStreamJar",
+                                    entryName, url),e);
+                        }
+                    }
+                    jar.nextEntry();
+                    entryName = jar.getEntryName();
+                }
+            } catch (IOException e) {
+                log.error(sm.getString("contextConfig.jarFile", url), e);
+                return null;
+            }
+            return classes;
+        }
+
+        /*
+         * Only the classes with a servlet, filter or listener annotation need
+         * to be parsed.
+         */
+        private void processIndexedAnnotations(List<ClassSummary> classes) {
+            Jar jar = null;
+            try {
+                for (ClassSummary summary : classes) {
+                    if (!summary.hasWebAnnotation()) {
+                        continue;
+                    }
+                    if (jar == null) {
+                        jar = JarFactory.newInstance(url);
+                    }
+                    try (InputStream is = jar.getInputStream(summary.getEntryName())) {
+                        ClassParser parser = new ClassParser(is);
+                        processClassAnnotations(parser.parse(), fragment);
+                    } catch (IOException e) {
+                        log.error(sm.getString("contextConfig.inputStreamJar",
+                                summary.getEntryName(), url),e);
+                    } catch (ClassFormatException e) {
+                        log.error(sm.getString("contextConfig.inputStreamJar",
+                                summary.getEntryName(), url),e);
+                    }
+                }
+            } catch (IOException e) {
+                log.error(sm.getString("contextConfig.jarFile", url), e);
+            } finally {
+                if (jar != null) {
+                    jar.close();
+                }
+            }
+        }
+
+        private List<ClassSummary> readIndex(File indexFile) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(indexFile))))) {
+                if (in.readInt() != ANNOTATION_INDEX_VERSION) {
+                    return null;
+                }
+                int count = in.readInt();
+                List<ClassSummary> classes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    classes.add(new ClassSummary(in));
+                }
+                return classes;
+            } catch (IOException e) {
+                log.warn(sm.getString("contextConfig.annotationIndex.readFail",
+                        indexFile, url), e);
+                return null;
+            }
+        }
+
+        private void writeIndex(File indexFile, List<ClassSummary> classes) {
+            // Write to a temporary file so a partially written index is never
+            // used
+            File tmp = new File(indexFile.getPath() + "." +
+                    Thread.currentThread().getId() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                out.writeInt(ANNOTATION_INDEX_VERSION);
+                out.writeInt(classes.size());
+                for (ClassSummary summary : classes) {
+                    summary.write(out);
+                }
+            } catch (IOException e) {
+                log.warn(sm.getString("contextConfig.annotationIndex.writeFail",
+                        indexFile, url), e);
+                tmp.delete();
+                return;
+            }
+            if (!tmp.renameTo(indexFile)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @return The JAR file the given URL refers to, or <code>null</code> if
+     *         it is not a JAR file on the local file system.
+     */
+    private static File getJarFile(URL url) {
+        String path = url.toString();
+        if (path.startsWith("jar:")) {
+            int separator = path.indexOf("!/");
+            if (separator != path.length() - 2) {
+                // Nested JAR or not the root of the JAR
+                return null;
+            }
+            path = path.substring(4, separator);
+        }
+        if (!path.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return new File(new URI(path));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The CRC-32 of the contents of the given file, followed by its
+     *         length
+     */
+    private static String checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+                length += n;
+            }
+        }
+        return Long.toHexString(crc.getValue()) + "-" + Long.toString(length);
+    }
+
     static class JavaClassCacheEntry {
         public final String superclassName;
 
@@ -2658,8 +3255,12 @@ public class ContextConfig implements LifecycleListener {
         private Set<ServletContainerInitializer> sciSet = null;
 
         public JavaClassCacheEntry(JavaClass javaClass) {
-            superclassName = javaClass.getSuperclassName();
-            interfaceNames = javaClass.getInterfaceNames();
+            this(javaClass.getSuperclassName(), javaClass.getInterfaceNames());
+        }
+
+        public JavaClassCacheEntry(String superclassName, String[] interfaceNames) {
+            this.superclassName = superclassName;
+            this.interfaceNames = interfaceNames;
         }
 
         public String getSuperclassName() {
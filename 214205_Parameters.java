@@ -67,6 +67,45 @@ public final class Parameters {
      */
     private boolean parseFailed = false;
 
+    // -------------------- Lazy parameter index --------------------
+    // In lazy mode the parameters are not decoded while parsing. The
+    // boundaries of each name and value are recorded in a reusable int array
+    // and a name or value is only decoded, in place, when it is first looked
+    // up. The arrays are kept across recycle().
+
+    private static final int INDEX_SOURCE = 0;
+    private static final int INDEX_NAME_START = 1;
+    private static final int INDEX_NAME_END = 2;
+    private static final int INDEX_VALUE_START = 3;
+    private static final int INDEX_VALUE_END = 4;
+    private static final int INDEX_FLAGS = 5;
+    private static final int INDEX_FIELDS = 6;
+
+    private static final int FLAG_DECODE_NAME = 1;
+    private static final int FLAG_DECODE_VALUE = 2;
+    private static final int FLAG_NON_ASCII_NAME = 4;
+    private static final int FLAG_INVALID = 8;
+
+    private boolean lazy = false;
+
+    /**
+     * Set once the indexed parameters have been copied into paramHashValues,
+     * after which all lookups use the map.
+     */
+    private boolean indexMaterialized = false;
+
+    private int[] index = new int[INDEX_FIELDS * 16];
+    private int indexCount = 0;
+
+    /**
+     * Decoded names and values, two per indexed parameter.
+     */
+    private String[] indexStrings = new String[2 * 16];
+
+    private byte[][] sources = new byte[2][];
+    private Charset[] sourceCharsets = new Charset[2];
+    private int sourceCount = 0;
+
     public Parameters() {
         // NO-OP
     }
@@ -105,9 +144,37 @@ public final class Parameters {
         this.parseFailed = parseFailed;
     }
 
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Enable the lazy parameter index. Parameters are then only URL decoded
+     * and converted to Strings when they are looked up, which avoids most of
+     * the per request garbage when only a few of many parameters are read.
+     * The byte arrays passed to {@link #processParameters(byte[], int, int)}
+     * must not be modified until this object is recycled. A decoding failure
+     * is only reported by {@link #isParseFailed()} once the parameter
+     * concerned has been decoded, which {@link #getParameterNames()} does for
+     * all of them.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
     public void recycle() {
         parameterCount = 0;
         paramHashValues.clear();
+        for (int i = 0; i < 2 * indexCount; i++) {
+            indexStrings[i] = null;
+        }
+        indexCount = 0;
+        for (int i = 0; i < sourceCount; i++) {
+            sources[i] = null;
+            sourceCharsets[i] = null;
+        }
+        sourceCount = 0;
+        indexMaterialized = false;
         didQueryParameters=false;
         encoding=null;
         decodedQuery.recycle();
@@ -122,6 +189,7 @@ public final class Parameters {
         if (key == null) {
             return;
         }
+        materializeIndex();
         ArrayList values = (ArrayList) paramHashValues.get(key);
         if (values == null) {
             values = new ArrayList(newValues.length);
@@ -136,6 +204,24 @@ public final class Parameters {
 
     public String[] getParameterValues(String name) {
         handleQueryParameters();
+        if (isIndexed()) {
+            ArrayList values = null;
+            for (int i = 0; i < indexCount; i++) {
+                if (indexedNameEquals(i, name)) {
+                    String value = getIndexedString(i, INDEX_VALUE_START);
+                    if (value != null) {
+                        if (values == null) {
+                            values = new ArrayList(1);
+                        }
+                        values.add(value);
+                    }
+                }
+            }
+            if (values == null) {
+                return null;
+            }
+            return (String[]) values.toArray(new String[values.size()]);
+        }
         // no "facade"
         ArrayList values = (ArrayList) paramHashValues.get(name);
         if (values == null) {
@@ -146,12 +232,24 @@ public final class Parameters {
  
     public Enumeration getParameterNames() {
         handleQueryParameters();
+        materializeIndex();
         return Collections.enumeration(paramHashValues.keySet());
     }
 
     // Shortcut.
     public String getParameter(String name ) {
         handleQueryParameters();
+        if (isIndexed()) {
+            for (int i = 0; i < indexCount; i++) {
+                if (indexedNameEquals(i, name)) {
+                    String value = getIndexedString(i, INDEX_VALUE_START);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            }
+            return null;
+        }
         ArrayList values = (ArrayList) paramHashValues.get(name);
         if (values != null) {
             if(values.size() == 0) {
@@ -252,6 +350,7 @@ public final class Parameters {
             boolean parsingName = true;
             boolean decodeName = false;
             boolean decodeValue = false;
+            boolean nonAsciiName = false;
             boolean parameterComplete = false;
 
             do {
@@ -289,6 +388,9 @@ public final class Parameters {
                         pos ++;
                         break;
                     default:
+                        if (parsingName && bytes[pos] < 0) {
+                            nonAsciiName = true;
+                        }
                         pos ++;
                         break;
                 }
@@ -340,6 +442,22 @@ public final class Parameters {
                 continue;
                 // invalid chunk - it's better to ignore
             }
+
+            if (isIndexed()) {
+                int flags = 0;
+                if (decodeName) {
+                    flags |= FLAG_DECODE_NAME;
+                }
+                if (decodeValue) {
+                    flags |= FLAG_DECODE_VALUE;
+                }
+                if (nonAsciiName) {
+                    flags |= FLAG_NON_ASCII_NAME;
+                }
+                addIndexed(bytes, charset, nameStart, nameEnd, valueStart,
+                        valueEnd, flags);
+                continue;
+            }
             
             tmpName.setBytes(bytes, nameStart, nameEnd - nameStart);
             tmpValue.setBytes(bytes, valueStart, valueEnd - valueStart);
@@ -403,6 +521,150 @@ public final class Parameters {
         }
     }
 
+    private boolean isIndexed() {
+        return lazy && !indexMaterialized;
+    }
+
+    private void addIndexed(byte bytes[], Charset charset, int nameStart,
+            int nameEnd, int valueStart, int valueEnd, int flags) {
+        if (sourceCount == 0 || sources[sourceCount - 1] != bytes
+                || sourceCharsets[sourceCount - 1] != charset) {
+            if (sourceCount == sources.length) {
+                byte[][] newSources = new byte[sourceCount * 2][];
+                System.arraycopy(sources, 0, newSources, 0, sourceCount);
+                sources = newSources;
+                Charset[] newCharsets = new Charset[sourceCount * 2];
+                System.arraycopy(sourceCharsets, 0, newCharsets, 0,
+                        sourceCount);
+                sourceCharsets = newCharsets;
+            }
+            sources[sourceCount] = bytes;
+            sourceCharsets[sourceCount] = charset;
+            sourceCount++;
+        }
+        int base = indexCount * INDEX_FIELDS;
+        if (base == index.length) {
+            int[] newIndex = new int[index.length * 2];
+            System.arraycopy(index, 0, newIndex, 0, base);
+            index = newIndex;
+            String[] newStrings = new String[indexStrings.length * 2];
+            System.arraycopy(indexStrings, 0, newStrings, 0, 2 * indexCount);
+            indexStrings = newStrings;
+        }
+        index[base + INDEX_SOURCE] = sourceCount - 1;
+        index[base + INDEX_NAME_START] = nameStart;
+        index[base + INDEX_NAME_END] = nameEnd;
+        index[base + INDEX_VALUE_START] = valueStart;
+        index[base + INDEX_VALUE_END] = valueEnd;
+        index[base + INDEX_FLAGS] = flags;
+        indexCount++;
+    }
+
+    /**
+     * Compare the name of an indexed parameter with the given name. Plain
+     * ASCII names in an ASCII compatible charset are compared without
+     * decoding them.
+     */
+    private boolean indexedNameEquals(int i, String name) {
+        int base = i * INDEX_FIELDS;
+        int flags = index[base + INDEX_FLAGS];
+        if ((flags & FLAG_INVALID) != 0) {
+            return false;
+        }
+        if (indexStrings[2 * i] == null
+                && (flags & (FLAG_DECODE_NAME | FLAG_NON_ASCII_NAME)) == 0
+                && isAsciiCompatible(sourceCharsets[index[base + INDEX_SOURCE]])) {
+            byte[] bytes = sources[index[base + INDEX_SOURCE]];
+            int start = index[base + INDEX_NAME_START];
+            int len = index[base + INDEX_NAME_END] - start;
+            if (len != name.length()) {
+                return false;
+            }
+            for (int j = 0; j < len; j++) {
+                if (bytes[start + j] != name.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return name.equals(getIndexedString(i, INDEX_NAME_START));
+    }
+
+    /**
+     * Decode, if not already done, the name or value of an indexed
+     * parameter.
+     *
+     * @param i     The parameter index
+     * @param field INDEX_NAME_START or INDEX_VALUE_START
+     * @return the decoded String or <code>null</code> if the parameter could
+     *         not be decoded
+     */
+    private String getIndexedString(int i, int field) {
+        int stringIndex = 2 * i + (field == INDEX_NAME_START ? 0 : 1);
+        String result = indexStrings[stringIndex];
+        if (result != null) {
+            return result;
+        }
+        int base = i * INDEX_FIELDS;
+        int flags = index[base + INDEX_FLAGS];
+        if ((flags & FLAG_INVALID) != 0) {
+            return null;
+        }
+        int start = index[base + field];
+        int end = index[base + field + 1];
+        byte[] bytes = sources[index[base + INDEX_SOURCE]];
+        int decodeFlag = (field == INDEX_NAME_START) ?
+                FLAG_DECODE_NAME : FLAG_DECODE_VALUE;
+        // A parameter without '=' has an empty value
+        tmpValue.setBytes(bytes, start, end - start);
+        try {
+            if ((flags & decodeFlag) != 0) {
+                urlDecode(tmpValue);
+                // Decoding is done in place: remember the new end
+                index[base + field + 1] = tmpValue.getEnd();
+                index[base + INDEX_FLAGS] = flags & ~decodeFlag;
+                if (field == INDEX_NAME_START) {
+                    index[base + INDEX_FLAGS] |= FLAG_NON_ASCII_NAME;
+                }
+            }
+            tmpValue.setCharset(sourceCharsets[index[base + INDEX_SOURCE]]);
+            result = tmpValue.toString();
+            indexStrings[stringIndex] = result;
+        } catch (IOException e) {
+            parseFailed = true;
+            index[base + INDEX_FLAGS] = flags | FLAG_INVALID;
+            if (log.isInfoEnabled()) {
+                log.info(sm.getString("parameters.decodeFail.info",
+                        tmpValue.toString(), ""), e);
+            }
+        }
+        tmpValue.recycle();
+        return result;
+    }
+
+    /**
+     * Decode all the indexed parameters into paramHashValues.
+     */
+    private void materializeIndex() {
+        if (!isIndexed()) {
+            return;
+        }
+        for (int i = 0; i < indexCount; i++) {
+            String name = getIndexedString(i, INDEX_NAME_START);
+            String value = getIndexedString(i, INDEX_VALUE_START);
+            if (name != null && value != null) {
+                addParam(name, value);
+            }
+        }
+        indexMaterialized = true;
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        String name = charset.name();
+        return "ISO-8859-1".equals(name) || "UTF-8".equals(name)
+                || "US-ASCII".equals(name);
+    }
+
     private void urlDecode(ByteChunk bc)
         throws IOException {
         if( urlDec==null ) {
@@ -437,6 +699,7 @@ public final class Parameters {
      * Debug purpose
      */
     public String paramsAsString() {
+        materializeIndex();
         StringBuffer sb = new StringBuffer();
         Iterator it = paramHashValues.entrySet().iterator();
         while (it.hasNext()) {
@@ -95,16 +95,44 @@ public class DigestAuthenticator extends AuthenticatorBase {
 
     /**
      * MD5 message digest provider.
+     *
+     * @deprecated Unused. Digests are computed with a
+     *             <code>MessageDigest</code> per thread, see {@link #md5(String)}.
      */
     protected static MessageDigest md5Helper;
 
 
+    /**
+     * MD5 message digest provider of each thread, so that concurrent requests
+     * don't contend on a single instance.
+     */
+    private static final ThreadLocal<MessageDigest> md5Helpers =
+        new ThreadLocal<MessageDigest>() {
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e.getMessage());
+                }
+            }
+        };
+
+
     /**
      * List of client nonce values currently being tracked
+     *
+     * @deprecated Unused. Client nonces are tracked in
+     *             {@link #cnonceCache}.
      */
     protected Map cnonces;
 
 
+    /**
+     * Client nonce values currently being tracked.
+     */
+    protected CnonceCache cnonceCache;
+
+
     /**
      * Maximum number of client nonces to keep in the cache. If not specified,
      * the default value of 1000 is used.
@@ -112,6 +140,14 @@ public class DigestAuthenticator extends AuthenticatorBase {
     protected int cnonceCacheSize = 1000;
 
 
+    /**
+     * Number of independently locked stripes the client nonce cache is split
+     * into. Rounded up to a power of two. If not specified, the default value
+     * of 16 is used.
+     */
+    protected int cnonceCacheStripes = 16;
+
+
     /**
      * Private key.
      */
@@ -159,6 +195,16 @@ public class DigestAuthenticator extends AuthenticatorBase {
     }
 
 
+    public int getCnonceCacheStripes() {
+        return cnonceCacheStripes;
+    }
+
+
+    public void setCnonceCacheStripes(int cnonceCacheStripes) {
+        this.cnonceCacheStripes = cnonceCacheStripes;
+    }
+
+
     public String getKey() {
         return key;
     }
@@ -261,7 +307,7 @@ public class DigestAuthenticator extends AuthenticatorBase {
         // Validate any credentials already included with this request
         String authorization = request.getHeader("authorization");
         DigestInfo digestInfo = new DigestInfo(getOpaque(), getNonceValidity(),
-                getKey(), cnonces, isValidateUri());
+                getKey(), cnonceCache, isValidateUri());
         if (authorization != null) {
             if (digestInfo.validate(request, authorization, config)) {
                 principal = digestInfo.authenticate(context.getRealm());
@@ -369,12 +415,19 @@ public class DigestAuthenticator extends AuthenticatorBase {
         String ipTimeKey =
             request.getRemoteAddr() + ":" + currentTime + ":" + getKey();
 
-        byte[] buffer;
-        synchronized (md5Helper) {
-            buffer = md5Helper.digest(ipTimeKey.getBytes());
-        }
+        return currentTime + ":" + md5(ipTimeKey);
+    }
+
 
-        return currentTime + ":" + md5Encoder.encode(buffer);
+    /**
+     * Return the hex encoded MD5 digest of the specified string, computed
+     * with the <code>MessageDigest</code> of the current thread.
+     *
+     * @param value String to digest, encoded with the platform default
+     *              encoding
+     */
+    protected static String md5(String value) {
+        return md5Encoder.encode(md5Helpers.get().digest(value.getBytes()));
     }
 
 
@@ -447,38 +500,113 @@ public class DigestAuthenticator extends AuthenticatorBase {
             setOpaque(generateSessionId());
         }
         
-        cnonces = new LinkedHashMap() {
-
-            private static final long serialVersionUID = 1L;
-            private static final long LOG_SUPPRESS_TIME = 5 * 60 * 1000;
-
-            private long lastLog = 0;
-
-            protected boolean removeEldestEntry(Map.Entry eldest) {
-                // This is called from a sync so keep it simple
-                long currentTime = System.currentTimeMillis();
-                if (size() > getCnonceCacheSize()) {
-                    if (lastLog < currentTime && (currentTime -
-                            ((NonceInfo) eldest.getValue()).getTimestamp()) <
-                            getNonceValidity()) {
-                        // Replay attack is possible
-                        log.warn(sm.getString(
-                                "digestAuthenticator.cacheRemove"));
-                        lastLog = currentTime + LOG_SUPPRESS_TIME;
+        cnonceCache = new CnonceCache(getCnonceCacheStripes());
+    }
+
+
+    /**
+     * The client nonces currently being tracked, with the last nonce count
+     * seen for each. The cache is split into stripes, selected by the hash of
+     * the client nonce and each guarded by its own lock, so that requests for
+     * different clients rarely contend. Each stripe holds an equal share of
+     * {@link #getCnonceCacheSize()} entries and evicts in insertion order;
+     * entries last used longer ago than {@link #getNonceValidity()} are
+     * evicted early, since the nonce they were used with can no longer be
+     * accepted.
+     */
+    protected class CnonceCache {
+
+        private static final long LOG_SUPPRESS_TIME = 5 * 60 * 1000;
+
+        private final LinkedHashMap[] stripes;
+        private final int mask;
+
+        private volatile long lastLog = 0;
+
+        public CnonceCache(int stripeCount) {
+            int n = 1;
+            while (n < stripeCount) {
+                n <<= 1;
+            }
+            stripes = new LinkedHashMap[n];
+            mask = n - 1;
+            for (int i = 0; i < n; i++) {
+                stripes[i] = new LinkedHashMap() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    protected boolean removeEldestEntry(Map.Entry eldest) {
+                        return isEvictable((NonceInfo) eldest.getValue(),
+                                size());
                     }
-                    return true;
+                };
+            }
+        }
+
+        /**
+         * Record a use of the specified client nonce. The check against the
+         * last nonce count and the update are atomic, so that a replayed
+         * request can't be accepted twice by concurrent threads.
+         *
+         * @param cnonce Client nonce
+         * @param count Nonce count sent with the client nonce
+         * @param currentTime Time of the request
+         * @return <code>false</code> if the nonce count is not greater than the
+         *         last one seen for this client nonce
+         */
+        public boolean update(String cnonce, long count, long currentTime) {
+            int h = cnonce.hashCode();
+            LinkedHashMap stripe = stripes[(h ^ (h >>> 16)) & mask];
+            synchronized (stripe) {
+                NonceInfo info = (NonceInfo) stripe.get(cnonce);
+                if (info == null) {
+                    info = new NonceInfo();
+                } else if (count <= info.getCount()) {
+                    return false;
                 }
-                return false;
+                info.setCount(count);
+                info.setTimestamp(currentTime);
+                stripe.put(cnonce, info);
             }
-        };
+            return true;
+        }
+
+        public int size() {
+            int size = 0;
+            for (int i = 0; i < stripes.length; i++) {
+                synchronized (stripes[i]) {
+                    size += stripes[i].size();
+                }
+            }
+            return size;
+        }
+
+        private boolean isEvictable(NonceInfo eldest, int size) {
+            // This is called from a sync so keep it simple
+            long currentTime = System.currentTimeMillis();
+            long age = currentTime - eldest.getTimestamp();
+            int capacity = Math.max(1,
+                    (getCnonceCacheSize() + stripes.length - 1) / stripes.length);
+            if (size > capacity) {
+                if (lastLog < currentTime && age < getNonceValidity()) {
+                    // Replay attack is possible
+                    log.warn(sm.getString(
+                            "digestAuthenticator.cacheRemove"));
+                    lastLog = currentTime + LOG_SUPPRESS_TIME;
+                }
+                return true;
+            }
+            return age > getNonceValidity();
+        }
     }
- 
+
+
     private static class DigestInfo {
 
         private String opaque;
         private long nonceValidity;
         private String key;
-        private Map cnonces;
+        private CnonceCache cnonces;
         private boolean validateUri = true;
 
         private String userName = null;
@@ -495,7 +623,7 @@ public class DigestAuthenticator extends AuthenticatorBase {
 
 
         public DigestInfo(String opaque, long nonceValidity, String key,
-                Map cnonces, boolean validateUri) {
+                CnonceCache cnonces, boolean validateUri) {
             this.opaque = opaque;
             this.nonceValidity = nonceValidity;
             this.key = key;
@@ -605,11 +733,7 @@ public class DigestAuthenticator extends AuthenticatorBase {
             }
             String serverIpTimeKey =
                 request.getRemoteAddr() + ":" + nonceTime + ":" + key;
-            byte[] buffer = null;
-            synchronized (md5Helper) {
-                buffer = md5Helper.digest(serverIpTimeKey.getBytes());
-            }
-            String md5ServerIpTimeKey = md5Encoder.encode(buffer);
+            String md5ServerIpTimeKey = md5(serverIpTimeKey);
             if (!md5ServerIpTimeKey.equals(md5clientIpTimeKey)) {
                 return false;
             }
@@ -638,21 +762,8 @@ public class DigestAuthenticator extends AuthenticatorBase {
                 } catch (NumberFormatException nfe) {
                     return false;
                 }
-                NonceInfo info;
-                synchronized (cnonces) {
-                    info = (NonceInfo) cnonces.get(cnonce);
-                }
-                if (info == null) {
-                    info = new NonceInfo();
-                } else {
-                    if (count <= info.getCount()) {
-                        return false;
-                    }
-                }
-                info.setCount(count);
-                info.setTimestamp(currentTime);
-                synchronized (cnonces) {
-                    cnonces.put(cnonce, info);
+                if (!cnonces.update(cnonce, count, currentTime)) {
+                    return false;
                 }
             }
             return true;
@@ -667,11 +778,7 @@ public class DigestAuthenticator extends AuthenticatorBase {
             // MD5(Method + ":" + uri)
             String a2 = method + ":" + uri;
 
-            byte[] buffer;
-            synchronized (md5Helper) {
-                buffer = md5Helper.digest(a2.getBytes());
-            }
-            String md5a2 = md5Encoder.encode(buffer);
+            String md5a2 = md5(a2);
 
             return realm.authenticate(userName, response, nonce, nc, cnonce,
                     qop, realmName, md5a2);
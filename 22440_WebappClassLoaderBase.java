@@ -50,18 +50,25 @@ import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 
 import org.apache.catalina.Container;
@@ -72,6 +79,7 @@ import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.WebResource;
 import org.apache.catalina.WebResourceRoot;
+import org.apache.catalina.WebResourceSet;
 import org.apache.catalina.webresources.TomcatURLStreamHandlerFactory;
 import org.apache.juli.WebappProperties;
 import org.apache.tomcat.InstrumentableClassLoader;
@@ -140,6 +148,7 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
 
     private static final String CLASS_FILE_SUFFIX = ".class";
     private static final String SERVICES_PREFIX = "/META-INF/services/";
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
 
     static {
         ClassLoader.registerAsParallelCapable();
@@ -422,6 +431,50 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
     private volatile LifecycleState state = LifecycleState.NEW;
 
 
+    /**
+     * Should the package index be built when the class loader is started?
+     */
+    private boolean packageIndexEnabled = false;
+
+
+    /**
+     * The paths, with leading and trailing '/', of every directory that
+     * contains a class or resource in /WEB-INF/classes or in a JAR of
+     * /WEB-INF/lib. A lookup of a resource whose directory is not in the index
+     * is known to miss without probing the resources. <code>null</code> if
+     * there is no index.
+     */
+    private volatile Set<String> packageIndex = null;
+
+
+    /**
+     * The maximum number of resource paths remembered as not found, 0 to
+     * remember none.
+     */
+    private volatile int notFoundResourcesMaxSize = 0;
+
+
+    /**
+     * The paths of the resources which were looked up and not found.
+     */
+    private final Map<String, Boolean> notFoundResources =
+            new ConcurrentHashMap<>();
+
+
+    /**
+     * The paths in {@link #notFoundResources}, least recently added first, so
+     * that the eldest path can be evicted once the maximum size is exceeded.
+     */
+    private final Queue<String> notFoundResourcesOrder =
+            new ConcurrentLinkedQueue<>();
+
+
+    private final AtomicLong packageIndexHitCount = new AtomicLong();
+    private final AtomicLong notFoundHitCount = new AtomicLong();
+    private final AtomicLong notFoundMissCount = new AtomicLong();
+    private long packageIndexBuildTime = 0;
+
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -652,6 +705,87 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
     }
 
 
+    /**
+     * Return the packageIndexEnabled flag for this Context.
+     */
+    public boolean getPackageIndexEnabled() {
+        return this.packageIndexEnabled;
+    }
+
+
+    /**
+     * Set the packageIndexEnabled feature for this Context. If enabled, the
+     * directories of /WEB-INF/classes and of the JARs in /WEB-INF/lib are
+     * indexed when the class loader is started, so that lookups of classes
+     * and resources in a package that the web application does not contain
+     * return immediately. Classes added to a new package of /WEB-INF/classes
+     * once the class loader is started will not be found.
+     *
+     * @param packageIndexEnabled The new flag value
+     */
+    public void setPackageIndexEnabled(boolean packageIndexEnabled) {
+        this.packageIndexEnabled = packageIndexEnabled;
+    }
+
+
+    /**
+     * Return the maximum number of resource paths remembered as not found.
+     */
+    public int getNotFoundResourcesMaxSize() {
+        return this.notFoundResourcesMaxSize;
+    }
+
+
+    /**
+     * Set the maximum number of resource paths remembered as not found, so
+     * that repeated lookups of missing classes and resources do not probe the
+     * resources again until the class loader is stopped. Classes added to
+     * /WEB-INF/classes once they have been looked up will not be found.
+     *
+     * @param notFoundResourcesMaxSize The new maximum, 0 to disable
+     */
+    public void setNotFoundResourcesMaxSize(int notFoundResourcesMaxSize) {
+        this.notFoundResourcesMaxSize = notFoundResourcesMaxSize;
+        clearNotFound();
+    }
+
+
+    /**
+     * Return the number of lookups which were not probed because the package
+     * index does not contain their directory.
+     */
+    public long getPackageIndexHitCount() {
+        return packageIndexHitCount.get();
+    }
+
+
+    /**
+     * Return the number of lookups which were not probed because they were
+     * remembered as not found.
+     */
+    public long getNotFoundHitCount() {
+        return notFoundHitCount.get();
+    }
+
+
+    /**
+     * Return the number of lookups which probed the resources and did not find
+     * anything.
+     */
+    public long getNotFoundMissCount() {
+        return notFoundMissCount.get();
+    }
+
+
+    /**
+     * Return the time, in milliseconds, taken to build the package index when
+     * the class loader was last started.
+     */
+    public long getPackageIndexBuildTime() {
+        return packageIndexBuildTime;
+    }
+
+
     // ------------------------------------------------------- Reloader Methods
 
     /**
@@ -714,6 +848,9 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
         base.clearReferencesStopTimerThreads = this.clearReferencesStopTimerThreads;
         base.clearReferencesLogFactoryRelease = this.clearReferencesLogFactoryRelease;
         base.clearReferencesHttpClientKeepAliveThread = this.clearReferencesHttpClientKeepAliveThread;
+        base.packageIndexEnabled = this.packageIndexEnabled;
+        base.packageIndex = this.packageIndex;
+        base.notFoundResourcesMaxSize = this.notFoundResourcesMaxSize;
         base.jarModificationTimes.putAll(this.jarModificationTimes);
         base.permissionList.addAll(this.permissionList);
         base.loaderPC.putAll(this.loaderPC);
@@ -978,10 +1115,12 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
 
         String path = nameToPath(name);
 
-        WebResource[] webResources = resources.getClassLoaderResources(path);
-        for (WebResource webResource : webResources) {
-            if (webResource.exists()) {
-                result.add(webResource.getURL());
+        if (isIndexed(path)) {
+            WebResource[] webResources = resources.getClassLoaderResources(path);
+            for (WebResource webResource : webResources) {
+                if (webResource.exists()) {
+                    result.add(webResource.getURL());
+                }
             }
         }
 
@@ -1489,6 +1628,15 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
             }
         }
 
+        if (packageIndexEnabled) {
+            long t1 = System.currentTimeMillis();
+            packageIndex = buildPackageIndex(jars);
+            packageIndexBuildTime = System.currentTimeMillis() - t1;
+            if (log.isDebugEnabled())
+                log.debug(sm.getString("webappClassLoader.packageIndex",
+                        getContextName(), Long.valueOf(packageIndexBuildTime)));
+        }
+
         state = LifecycleState.STARTING;
 
         String encoding = null;
@@ -1523,6 +1671,8 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
 
         resourceEntries.clear();
         jarModificationTimes.clear();
+        packageIndex = null;
+        clearNotFound();
         resources = null;
 
         permissionList.clear();
@@ -2581,6 +2731,161 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
     }
 
 
+    /**
+     * Index the directories of /WEB-INF/classes and of the given JARs.
+     *
+     * @param jars The JARs of /WEB-INF/lib which are local repositories
+     *
+     * @return the index, or null if the resources cannot be fully indexed
+     */
+    private Set<String> buildPackageIndex(WebResource[] jars) {
+        // Resources which are only visible to the class loader cannot be
+        // listed, so lookups cannot be restricted to what has been indexed
+        if (hasClassLoaderOnlyResources(resources.getPreResources()) ||
+                hasClassLoaderOnlyResources(resources.getJarResources()) ||
+                hasClassLoaderOnlyResources(resources.getPostResources())) {
+            log.info(sm.getString("webappClassLoader.packageIndex.disabled",
+                    getContextName()));
+            return null;
+        }
+
+        Set<String> index = new HashSet<>();
+        index.add("/");
+        indexDirectory("/WEB-INF/classes", index);
+
+        for (WebResource jar : jars) {
+            if (!(jar.getName().endsWith(".jar") && jar.isFile() && jar.canRead())) {
+                continue;
+            }
+            try {
+                String canonicalPath = jar.getCanonicalPath();
+                if (canonicalPath != null) {
+                    try (JarFile jarFile = new JarFile(canonicalPath)) {
+                        Enumeration<JarEntry> entries = jarFile.entries();
+                        while (entries.hasMoreElements()) {
+                            indexEntry(entries.nextElement().getName(), index);
+                        }
+                    }
+                } else {
+                    try (JarInputStream jarIs = new JarInputStream(jar.getInputStream())) {
+                        JarEntry entry;
+                        while ((entry = jarIs.getNextJarEntry()) != null) {
+                            indexEntry(entry.getName(), index);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.warn(sm.getString("webappClassLoader.packageIndex.jarFail",
+                        jar.getName(), getContextName()), e);
+                return null;
+            }
+        }
+
+        return Collections.unmodifiableSet(index);
+    }
+
+
+    private boolean hasClassLoaderOnlyResources(WebResourceSet[] sets) {
+        for (WebResourceSet set : sets) {
+            if (set.getClassLoaderOnly()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private void indexDirectory(String webappPath, Set<String> index) {
+        WebResource[] children = resources.listResources(webappPath);
+        for (WebResource child : children) {
+            if (child.isDirectory()) {
+                String childPath = child.getWebappPath();
+                indexEntry(childPath.substring(
+                        "/WEB-INF/classes/".length()) + '/', index);
+                indexDirectory(childPath, index);
+            }
+        }
+    }
+
+
+    /**
+     * Add the directories containing a JAR entry, or a path relative to
+     * /WEB-INF/classes, to the index.
+     */
+    private void indexEntry(String entryName, Set<String> index) {
+        if (entryName.startsWith(VERSIONS_PREFIX)) {
+            // The entries of a multi-release JAR may replace the base entries
+            int pos = entryName.indexOf('/', VERSIONS_PREFIX.length());
+            if (pos > 0) {
+                indexEntry(entryName.substring(pos + 1), index);
+            }
+        }
+        int end = entryName.lastIndexOf('/');
+        while (end > 0) {
+            // Every ancestor of an indexed directory is indexed
+            if (!index.add("/" + entryName.substring(0, end + 1))) {
+                break;
+            }
+            end = entryName.lastIndexOf('/', end - 1);
+        }
+    }
+
+
+    /**
+     * Can the resource with the given path be present according to the
+     * package index?
+     */
+    private boolean isIndexed(String path) {
+        Set<String> index = packageIndex;
+        if (index == null || path.contains("/.") || path.contains("//")) {
+            // Paths which the resources would need to normalize are not
+            // looked up in the index
+            return true;
+        }
+        if (index.contains(path.substring(0, path.lastIndexOf('/') + 1))) {
+            return true;
+        }
+        packageIndexHitCount.incrementAndGet();
+        return false;
+    }
+
+
+    private boolean isNotFound(String path) {
+        if (notFoundResourcesMaxSize <= 0) {
+            return false;
+        }
+        if (notFoundResources.containsKey(path)) {
+            notFoundHitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+
+    private void addNotFound(String path) {
+        notFoundMissCount.incrementAndGet();
+        if (notFoundResourcesMaxSize <= 0) {
+            return;
+        }
+        if (notFoundResources.putIfAbsent(path, Boolean.TRUE) == null) {
+            notFoundResourcesOrder.offer(path);
+            while (notFoundResources.size() > notFoundResourcesMaxSize) {
+                String eldest = notFoundResourcesOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                notFoundResources.remove(eldest);
+            }
+        }
+    }
+
+
+    private void clearNotFound() {
+        notFoundResources.clear();
+        notFoundResourcesOrder.clear();
+    }
+
+
     /**
      * Find specified resource in local repositories.
      *
@@ -2604,9 +2909,14 @@ public abstract class WebappClassLoaderBase extends URLClassLoader
             return entry;
         }
 
+        if (!isIndexed(path) || isNotFound(path)) {
+            return null;
+        }
+
         resource = resources.getClassLoaderResource(path);
 
         if (!resource.exists()) {
+            addNotFound(path);
             return null;
         }
 
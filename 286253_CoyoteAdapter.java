@@ -810,39 +810,43 @@ public class CoyoteAdapter implements Adapter {
             // Copy the raw URI to the decodedURI
             decodedURI.duplicate(undecodedURI);
 
-            // Parse the path parameters. This will:
-            //   - strip out the path parameters
-            //   - convert the decodedURI to bytes
-            parsePathParameters(req, request);
-
-            // URI decoding
-            // %xx decoding of the URL
-            try {
-                req.getURLDecoder().convert(decodedURI, false);
-            } catch (IOException ioe) {
-                res.setStatus(400);
-                res.setMessage("Invalid URI: " + ioe.getMessage());
-                connector.getService().getContainer().logAccess(
-                        request, response, 0, true);
-                return false;
-            }
-            // Normalization
-            if (!normalize(req.decodedURI())) {
-                res.setStatus(400);
-                res.setMessage("Invalid URI");
-                connector.getService().getContainer().logAccess(
-                        request, response, 0, true);
-                return false;
-            }
-            // Character decoding
-            convertURI(decodedURI, request);
-            // Check that the URI is still normalized
-            if (!checkNormalize(req.decodedURI())) {
-                res.setStatus(400);
-                res.setMessage("Invalid URI character encoding");
-                connector.getService().getContainer().logAccess(
-                        request, response, 0, true);
-                return false;
+            // Most URIs are plain ASCII, without path parameters or anything
+            // to normalize: decode, check and convert them in a single pass
+            if (!canonicalizeURI(decodedURI)) {
+                // Parse the path parameters. This will:
+                //   - strip out the path parameters
+                //   - convert the decodedURI to bytes
+                parsePathParameters(req, request);
+
+                // URI decoding
+                // %xx decoding of the URL
+                try {
+                    req.getURLDecoder().convert(decodedURI, false);
+                } catch (IOException ioe) {
+                    res.setStatus(400);
+                    res.setMessage("Invalid URI: " + ioe.getMessage());
+                    connector.getService().getContainer().logAccess(
+                            request, response, 0, true);
+                    return false;
+                }
+                // Normalization
+                if (!normalize(req.decodedURI())) {
+                    res.setStatus(400);
+                    res.setMessage("Invalid URI");
+                    connector.getService().getContainer().logAccess(
+                            request, response, 0, true);
+                    return false;
+                }
+                // Character decoding
+                convertURI(decodedURI, request);
+                // Check that the URI is still normalized
+                if (!checkNormalize(req.decodedURI())) {
+                    res.setStatus(400);
+                    res.setMessage("Invalid URI character encoding");
+                    connector.getService().getContainer().logAccess(
+                            request, response, 0, true);
+                    return false;
+                }
             }
         } else {
             /* The URI is chars or String, and has been sent using an in-memory
@@ -1246,6 +1250,116 @@ public class CoyoteAdapter implements Adapter {
     }
 
 
+    /**
+     * Decode, check and convert to chars, in a single pass over the bytes and
+     * without allocation, a URI which needs nothing else: one which is ASCII,
+     * once %xx decoded, and has no path parameters, no "\", no null byte, no
+     * "//", no "." or ".." segment and no escaped "/", "\", "." or null byte.
+     * The result is then the same as that of {@link #parsePathParameters},
+     * URI decoding, {@link #normalize}, {@link #convertURI} and
+     * {@link #checkNormalize}. Any other URI is left untouched for them to
+     * process.
+     *
+     * @param uri The URI, as bytes
+     * @return <code>true</code> if the URI has been converted to its decoded,
+     *         normalized chars, <code>false</code> if it has not been modified
+     */
+    protected boolean canonicalizeURI(MessageBytes uri) {
+
+        // ASCII is only mapped to itself by these encodings
+        String enc = connector.getURIEncodingLower();
+        if (enc != null && !"utf-8".equals(enc) && !"iso-8859-1".equals(enc)) {
+            return false;
+        }
+
+        ByteChunk bc = uri.getByteChunk();
+        byte[] b = bc.getBuffer();
+        int start = bc.getStart();
+        int end = bc.getEnd();
+        if (start == end || b[start] != (byte) '/') {
+            return false;
+        }
+
+        CharChunk cc = uri.getCharChunk();
+        cc.allocate(end - start, -1);
+        char[] c = cc.getBuffer();
+        // The bytes are only written back once the whole URI is known to be
+        // acceptable, so that they are intact otherwise
+        int length = 0;
+        int segmentStart = 0;
+        for (int pos = start; pos < end; pos++) {
+            int value = b[pos];
+            if (value == '%') {
+                if (pos + 2 >= end) {
+                    return false;
+                }
+                int high = hexValue(b[pos + 1]);
+                int low = hexValue(b[pos + 2]);
+                if (high < 0 || low < 0) {
+                    return false;
+                }
+                value = (high << 4) + low;
+                if (value == 0 || value >= 0x80 || value == '/' ||
+                        value == '\\' || value == '.') {
+                    return false;
+                }
+                pos += 2;
+            } else if (value == '/') {
+                if (length > 0 && isDotSegment(c, segmentStart, length)) {
+                    return false;
+                }
+                segmentStart = length + 1;
+            } else if (value <= 0 || value == ';' || value == '\\') {
+                return false;
+            }
+            c[length++] = (char) value;
+        }
+        // A trailing "/" is fine, a trailing "." or ".." segment is not
+        if (length > segmentStart && isDotSegment(c, segmentStart, length)) {
+            return false;
+        }
+
+        if (length < end - start) {
+            for (int i = 0; i < length; i++) {
+                b[start + i] = (byte) c[i];
+            }
+            bc.setEnd(start + length);
+        }
+        uri.setChars(c, 0, length);
+        return true;
+    }
+
+
+    /**
+     * @return <code>true</code> if the segment of the URI from start to end is
+     *         empty, "." or ".."
+     */
+    private static boolean isDotSegment(char[] c, int start, int end) {
+        switch (end - start) {
+            case 0:
+                return true;
+            case 1:
+                return c[start] == '.';
+            case 2:
+                return c[start] == '.' && c[start + 1] == '.';
+            default:
+                return false;
+        }
+    }
+
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+
     /**
      * Character conversion of the URI.
      */
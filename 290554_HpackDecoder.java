@@ -47,6 +47,7 @@ import static io.netty.handler.codec.http2.Http2Error.PROTOCOL_ERROR;
 import static io.netty.handler.codec.http2.Http2Exception.connectionError;
 import static io.netty.util.AsciiString.EMPTY_STRING;
 import static io.netty.util.internal.ObjectUtil.checkPositive;
+import static io.netty.util.internal.ObjectUtil.checkPositiveOrZero;
 import static io.netty.util.internal.ThrowableUtil.unknownStackTrace;
 
 final class HpackDecoder {
@@ -79,6 +80,8 @@ final class HpackDecoder {
     private static final byte READ_LITERAL_HEADER_VALUE_LENGTH_PREFIX = 7;
     private static final byte READ_LITERAL_HEADER_VALUE_LENGTH = 8;
     private static final byte READ_LITERAL_HEADER_VALUE = 9;
+    // Huffman encoded values longer than this are never cached
+    private static final int MAX_CACHED_HUFFMAN_LENGTH = 1024;
 
     private final HpackDynamicTable hpackDynamicTable;
     private final HpackHuffmanDecoder hpackHuffmanDecoder;
@@ -87,6 +90,23 @@ final class HpackDecoder {
     private long maxDynamicTableSize;
     private long encoderMaxDynamicTableSize;
     private boolean maxDynamicTableSizeChangeRequired;
+    private boolean zeroCopyLiterals;
+    private boolean metricsEnabled;
+
+    // Copy of the header block being decoded, shared by its literals when zeroCopyLiterals is set
+    private byte[] blockCopy;
+    private int blockCopyOffset;
+
+    // Direct mapped cache of huffman decoded literals, keyed by their encoded bytes
+    private byte[][] huffmanCacheKeys;
+    private AsciiString[] huffmanCacheValues;
+
+    private long decodeNanos;
+    private long decodedBytes;
+    private long staticTableHits;
+    private long dynamicTableHits;
+    private long huffmanCacheHits;
+    private long huffmanCacheMisses;
 
     /**
      * Create a new instance.
@@ -120,6 +140,10 @@ final class HpackDecoder {
      * This method assumes the entire header block is contained in {@code in}.
      */
     public void decode(int streamId, ByteBuf in, Http2Headers headers) throws Http2Exception {
+        final long start = metricsEnabled ? System.nanoTime() : 0;
+        decodedBytes += in.readableBytes();
+        // The block is copied lazily, by the first literal read from it
+        blockCopy = null;
         int index = 0;
         long headersLength = 0;
         int nameLength = 0;
@@ -242,7 +266,7 @@ final class HpackDecoder {
                         throw notEnoughDataException(in);
                     }
 
-                    name = readStringLiteral(in, nameLength, huffmanEncoded);
+                    name = readLiteralName(in, nameLength, huffmanEncoded);
 
                     state = READ_LITERAL_HEADER_VALUE_LENGTH_PREFIX;
                     break;
@@ -307,6 +331,98 @@ final class HpackDecoder {
         if (state != READ_HEADER_REPRESENTATION) {
             throw connectionError(COMPRESSION_ERROR, "Incomplete header block fragment.");
         }
+
+        blockCopy = null;
+        if (metricsEnabled) {
+            decodeNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Set whether literals which are not huffman encoded are returned as {@link AsciiString} views of a single copy
+     * of the header block, made by the first such literal, instead of being copied one by one. The copy is owned by
+     * the decoded headers, so the buffers passed to {@link #decode(int, ByteBuf, Http2Headers)} may be released
+     * as soon as it returns. Literals added to the dynamic table are copied on their own, so that they don't keep
+     * the whole block alive.
+     */
+    public void setZeroCopyLiterals(boolean zeroCopyLiterals) {
+        this.zeroCopyLiterals = zeroCopyLiterals;
+    }
+
+    public boolean isZeroCopyLiterals() {
+        return zeroCopyLiterals;
+    }
+
+    /**
+     * Set the number of huffman decoded literals cached by this decoder, which is rounded up to a power of two.
+     * Values which are sent repeatedly without being indexed, such as cookies or authorization tokens, are then
+     * only decoded once. {@code 0} disables the cache.
+     */
+    public void setHuffmanCacheSize(int huffmanCacheSize) {
+        checkPositiveOrZero(huffmanCacheSize, "huffmanCacheSize");
+        if (huffmanCacheSize == 0) {
+            huffmanCacheKeys = null;
+            huffmanCacheValues = null;
+        } else {
+            int size = Integer.highestOneBit(huffmanCacheSize);
+            if (size < huffmanCacheSize) {
+                size <<= 1;
+            }
+            huffmanCacheKeys = new byte[size][];
+            huffmanCacheValues = new AsciiString[size];
+        }
+    }
+
+    public int getHuffmanCacheSize() {
+        return huffmanCacheKeys == null ? 0 : huffmanCacheKeys.length;
+    }
+
+    /**
+     * Set whether the time spent in {@link #decode(int, ByteBuf, Http2Headers)} is measured. The other counters
+     * are always maintained.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Return the total time spent decoding header blocks while metrics were enabled, in nanoseconds.
+     */
+    public long decodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * Return the total size of the header blocks passed to this decoder.
+     */
+    public long decodedBytes() {
+        return decodedBytes;
+    }
+
+    /**
+     * Return the number of header fields and names resolved from the static table.
+     */
+    public long staticTableHits() {
+        return staticTableHits;
+    }
+
+    /**
+     * Return the number of header fields and names resolved from the dynamic table.
+     */
+    public long dynamicTableHits() {
+        return dynamicTableHits;
+    }
+
+    public long huffmanCacheHits() {
+        return huffmanCacheHits;
+    }
+
+    public long huffmanCacheMisses() {
+        return huffmanCacheMisses;
     }
 
     /**
@@ -389,10 +505,12 @@ final class HpackDecoder {
     private CharSequence readName(int index) throws Http2Exception {
         if (index <= HpackStaticTable.length) {
             HpackHeaderField hpackHeaderField = HpackStaticTable.getEntry(index);
+            staticTableHits++;
             return hpackHeaderField.name;
         }
         if (index - HpackStaticTable.length <= hpackDynamicTable.length()) {
             HpackHeaderField hpackHeaderField = hpackDynamicTable.getEntry(index - HpackStaticTable.length);
+            dynamicTableHits++;
             return hpackHeaderField.name;
         }
         throw READ_NAME_ILLEGAL_INDEX_VALUE;
@@ -401,10 +519,12 @@ final class HpackDecoder {
     private long indexHeader(int index, Http2Headers headers, long headersLength) throws Http2Exception {
         if (index <= HpackStaticTable.length) {
             HpackHeaderField hpackHeaderField = HpackStaticTable.getEntry(index);
+            staticTableHits++;
             return addHeader(headers, hpackHeaderField.name, hpackHeaderField.value, headersLength);
         }
         if (index - HpackStaticTable.length <= hpackDynamicTable.length()) {
             HpackHeaderField hpackHeaderField = hpackDynamicTable.getEntry(index - HpackStaticTable.length);
+            dynamicTableHits++;
             return addHeader(headers, hpackHeaderField.name, hpackHeaderField.value, headersLength);
         }
         throw INDEX_HEADER_ILLEGAL_INDEX_VALUE;
@@ -420,6 +540,11 @@ final class HpackDecoder {
                 break;
 
             case INCREMENTAL:
+                if (zeroCopyLiterals) {
+                    // The dynamic table outlives the header block
+                    name = detach(name);
+                    value = detach(value);
+                }
                 hpackDynamicTable.add(new HpackHeaderField(name, value));
                 break;
 
@@ -440,15 +565,80 @@ final class HpackDecoder {
         return headersLength;
     }
 
+    private CharSequence readLiteralName(ByteBuf in, int length, boolean huffmanEncoded) throws Http2Exception {
+        CharSequence name = readStringLiteral(in, length, huffmanEncoded);
+        // Share the static table instance of well known names
+        int index = HpackStaticTable.getIndex(name);
+        if (index != -1) {
+            return HpackStaticTable.getEntry(index).name;
+        }
+        return name;
+    }
+
     private CharSequence readStringLiteral(ByteBuf in, int length, boolean huffmanEncoded) throws Http2Exception {
         if (huffmanEncoded) {
+            if (huffmanCacheKeys != null && length <= MAX_CACHED_HUFFMAN_LENGTH) {
+                return readCachedHuffmanLiteral(in, length);
+            }
             return hpackHuffmanDecoder.decode(in, length);
         }
+        if (zeroCopyLiterals) {
+            if (blockCopy == null) {
+                // Never a view of the buffer itself, which is released or reused once decoded
+                blockCopyOffset = in.readerIndex();
+                blockCopy = new byte[in.writerIndex() - blockCopyOffset];
+                in.getBytes(blockCopyOffset, blockCopy);
+            }
+            AsciiString view = new AsciiString(blockCopy, in.readerIndex() - blockCopyOffset, length, false);
+            in.skipBytes(length);
+            return view;
+        }
         byte[] buf = new byte[length];
         in.readBytes(buf);
         return new AsciiString(buf, false);
     }
 
+    private CharSequence readCachedHuffmanLiteral(ByteBuf in, int length) throws Http2Exception {
+        final int readerIndex = in.readerIndex();
+        int hash = 0;
+        for (int i = readerIndex; i < readerIndex + length; ++i) {
+            hash = 31 * hash + in.getByte(i);
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (huffmanCacheKeys.length - 1);
+        byte[] key = huffmanCacheKeys[slot];
+        if (key != null && key.length == length) {
+            int i = 0;
+            while (i < length && key[i] == in.getByte(readerIndex + i)) {
+                ++i;
+            }
+            if (i == length) {
+                huffmanCacheHits++;
+                in.skipBytes(length);
+                return huffmanCacheValues[slot];
+            }
+        }
+        huffmanCacheMisses++;
+        key = new byte[length];
+        in.getBytes(readerIndex, key);
+        AsciiString value = hpackHuffmanDecoder.decode(in, length);
+        huffmanCacheKeys[slot] = key;
+        huffmanCacheValues[slot] = value;
+        return value;
+    }
+
+    /**
+     * Return a copy of {@code s} if it is a view of the copy of the header block.
+     */
+    private CharSequence detach(CharSequence s) {
+        if (blockCopy != null && s instanceof AsciiString) {
+            AsciiString ascii = (AsciiString) s;
+            if (ascii.array() == blockCopy) {
+                return new AsciiString(ascii.array(), ascii.arrayOffset(), ascii.length(), true);
+            }
+        }
+        return s;
+    }
+
     private static IllegalArgumentException notEnoughDataException(ByteBuf in) {
         return new IllegalArgumentException("decode only works with an entire header block! " + in);
     }
@@ -38,6 +38,9 @@ import java.util.concurrent.atomic.AtomicLongArray;
  * }
  * }</pre>
  *
+ * <p>When many threads add to the same elements, {@link DoubleAdderArray} avoids the retries of
+ * {@link #getAndAdd} and {@link #addAndGet} on contended elements.
+ *
  * @author Doug Lea
  * @author Martin Buchholz
  * @since 11.0
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2017 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.util.concurrent;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An array of {@code double} sums which many threads may add to concurrently. Unlike {@link
+ * AtomicDoubleArray#addAndGet}, adding to an element never retries on a contended compare-and-set:
+ * an element starts as a single value, and once adds to it collide it is spread over a table of
+ * cells, which doubles on further collisions up to the number of processors. Threads add to
+ * different cells, and {@link #get} sums the value and the cells of the element. Elements which are
+ * never contended take no more space than in an {@link AtomicDoubleArray}.
+ *
+ * <p>This class is preferable to {@link AtomicDoubleArray} when many threads add to the same
+ * elements, for example when accumulating gradients, and the sums are read much less often than
+ * they are updated. The sums are not atomic snapshots: a sum read while adds are in progress may
+ * include only some of them. As the additions happen in an unspecified order, the sums of
+ * non-integral values may also differ slightly between runs.
+ */
+@Beta
+@GwtIncompatible
+public class DoubleAdderArray implements java.io.Serializable {
+  private static final long serialVersionUID = 0L;
+
+  /** The number of CPUs, to bound the size of the cell tables. */
+  private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+  /** The maximum number of cells of an element, the number of CPUs rounded up to a power of two. */
+  private static final int MAX_CELLS = Integer.highestOneBit(Math.max(NCPU * 2 - 1, 1));
+
+  private static final Random RANDOM = new Random();
+
+  /** The probe of each thread, used to pick its cell and changed when its cell is contended. */
+  private static final ThreadLocal<int[]> threadProbe =
+      new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          int probe = RANDOM.nextInt();
+          return new int[] {(probe == 0) ? 1 : probe}; // avoid zero to allow xorShift rehash
+        }
+      };
+
+  // Making these non-final is the lesser evil according to Effective
+  // Java 2nd Edition Item 76: Write readObject methods defensively.
+  private transient AtomicLongArray values;
+  private transient AtomicReferenceArray<Cell[]> cells;
+
+  /**
+   * Creates a new {@code DoubleAdderArray} of the given length, with all elements initially zero.
+   *
+   * @param length the length of the array
+   */
+  public DoubleAdderArray(int length) {
+    this.values = new AtomicLongArray(length);
+    this.cells = new AtomicReferenceArray<Cell[]>(length);
+  }
+
+  /**
+   * Creates a new {@code DoubleAdderArray} with the same length as, and all elements copied from,
+   * the given array.
+   *
+   * @param array the array to copy elements from
+   * @throws NullPointerException if array is null
+   */
+  public DoubleAdderArray(double[] array) {
+    final int len = array.length;
+    long[] longArray = new long[len];
+    for (int i = 0; i < len; i++) {
+      longArray[i] = doubleToRawLongBits(array[i]);
+    }
+    this.values = new AtomicLongArray(longArray);
+    this.cells = new AtomicReferenceArray<Cell[]>(len);
+  }
+
+  /**
+   * Returns the length of the array.
+   *
+   * @return the length of the array
+   */
+  public final int length() {
+    return values.length();
+  }
+
+  /**
+   * Returns the current sum of the element at position {@code i}. Adds made concurrently may or
+   * may not be included.
+   *
+   * @param i the index
+   * @return the sum
+   */
+  public final double get(int i) {
+    double sum = longBitsToDouble(values.get(i));
+    Cell[] table = cells.get(i);
+    if (table != null) {
+      for (Cell cell : table) {
+        sum += longBitsToDouble(cell.get());
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Adds the given value to the element at position {@code i}.
+   *
+   * @param i the index
+   * @param delta the value to add
+   */
+  public final void add(int i, double delta) {
+    Cell[] table = cells.get(i);
+    if (table == null) {
+      long current = values.get(i);
+      if (values.compareAndSet(i, current, next(current, delta))) {
+        return;
+      }
+      table = expand(i, null);
+    }
+
+    int[] holder = threadProbe.get();
+    int probe = holder[0];
+    while (true) {
+      Cell cell = table[probe & (table.length - 1)];
+      long current = cell.get();
+      if (cell.compareAndSet(current, next(current, delta))) {
+        holder[0] = probe;
+        return;
+      }
+      // contended: try another cell, in a larger table if possible
+      probe ^= probe << 13;
+      probe ^= probe >>> 17;
+      probe ^= probe << 5;
+      if (table.length < MAX_CELLS) {
+        table = expand(i, table);
+      }
+    }
+  }
+
+  /**
+   * Adds each of the given values to the element at the same position. Zero values are skipped.
+   *
+   * @param deltas the values to add, as many as the length of this array
+   * @throws IllegalArgumentException if the length of {@code deltas} differs from the length of
+   *     this array
+   */
+  public final void addAll(double[] deltas) {
+    checkArgument(
+        deltas.length == length(),
+        "Expected %s values, but got %s",
+        length(),
+        deltas.length);
+    for (int i = 0; i < deltas.length; i++) {
+      double delta = deltas[i];
+      if (delta != 0.0) {
+        add(i, delta);
+      }
+    }
+  }
+
+  /**
+   * Stores the current sum of each element in the given array, at the same position. Adds made
+   * concurrently may or may not be included.
+   *
+   * @param sums the array in which to store the sums, as long as this array
+   * @throws IllegalArgumentException if the length of {@code sums} differs from the length of this
+   *     array
+   */
+  public final void sumInto(double[] sums) {
+    checkArgument(
+        sums.length == length(), "Expected %s values, but got %s", length(), sums.length);
+    for (int i = 0; i < sums.length; i++) {
+      sums[i] = get(i);
+    }
+  }
+
+  /**
+   * Resets every element to zero. This is only an effective alternative to creating a new array
+   * if there are no concurrent adds. The cell tables are kept, as their elements are likely to be
+   * contended again.
+   */
+  public final void reset() {
+    int length = length();
+    for (int i = 0; i < length; i++) {
+      values.set(i, 0L);
+      Cell[] table = cells.get(i);
+      if (table != null) {
+        for (Cell cell : table) {
+          cell.set(0L);
+        }
+      }
+    }
+  }
+
+  private static long next(long current, double delta) {
+    return doubleToRawLongBits(longBitsToDouble(current) + delta);
+  }
+
+  /**
+   * Replaces the cell table of element {@code i}, if it is still {@code table}, by one twice as
+   * large, or by the initial table if {@code table} is null. Cells of the previous table are kept,
+   * so that no add to them is lost. Returns the current table of the element.
+   */
+  private Cell[] expand(int i, Cell[] table) {
+    int length = (table == null) ? Math.min(2, MAX_CELLS) : Math.min(table.length << 1, MAX_CELLS);
+    Cell[] expanded = new Cell[length];
+    if (table != null) {
+      System.arraycopy(table, 0, expanded, 0, table.length);
+    }
+    for (int j = 0; j < expanded.length; j++) {
+      if (expanded[j] == null) {
+        expanded[j] = new Cell();
+      }
+    }
+    if (cells.compareAndSet(i, table, expanded)) {
+      return expanded;
+    }
+    return cells.get(i);
+  }
+
+  /**
+   * A cell holding part of the sum of an element, as the raw bits of a {@code double}. The padding
+   * keeps the cells of an element, which are allocated together, on different cache lines.
+   */
+  @SuppressWarnings("unused")
+  static final class Cell extends AtomicLong {
+    long p1, p2, p3, p4, p5, p6, p7;
+  }
+
+  /**
+   * Returns the String representation of the current sums of the array.
+   *
+   * @return the String representation of the current sums of the array
+   */
+  public String toString() {
+    int iMax = length() - 1;
+    if (iMax == -1) {
+      return "[]";
+    }
+
+    // Double.toString(Math.PI).length() == 17
+    StringBuilder b = new StringBuilder((17 + 2) * (iMax + 1));
+    b.append('[');
+    for (int i = 0; ; i++) {
+      b.append(get(i));
+      if (i == iMax) {
+        return b.append(']').toString();
+      }
+      b.append(',').append(' ');
+    }
+  }
+
+  /**
+   * Saves the state to a stream (that is, serializes it).
+   *
+   * @serialData The length of the array is emitted (int), followed by the sums of all of its
+   *     elements (each a {@code double}) in the proper order.
+   */
+  private void writeObject(java.io.ObjectOutputStream s) throws java.io.IOException {
+    s.defaultWriteObject();
+
+    // Write out array length
+    int length = length();
+    s.writeInt(length);
+
+    // Write out all sums in the proper order.
+    for (int i = 0; i < length; i++) {
+      s.writeDouble(get(i));
+    }
+  }
+
+  /** Reconstitutes the instance from a stream (that is, deserializes it). */
+  private void readObject(java.io.ObjectInputStream s)
+      throws java.io.IOException, ClassNotFoundException {
+    s.defaultReadObject();
+
+    // Read in array length and allocate arrays
+    int length = s.readInt();
+    this.values = new AtomicLongArray(length);
+    this.cells = new AtomicReferenceArray<Cell[]>(length);
+
+    // Read in all sums in the proper order.
+    for (int i = 0; i < length; i++) {
+      values.set(i, doubleToRawLongBits(s.readDouble()));
+    }
+  }
+}
@@ -106,6 +106,77 @@ public class DefaultHttp2HeadersDecoder implements Http2HeadersDecoder, Http2Hea
         return hpackDecoder.getMaxHeaderListSizeGoAway();
     }
 
+    /**
+     * Set whether literals which are not huffman encoded share a single copy of each header block instead of
+     * being copied one by one.
+     */
+    public void zeroCopyLiterals(boolean zeroCopyLiterals) {
+        hpackDecoder.setZeroCopyLiterals(zeroCopyLiterals);
+    }
+
+    public boolean zeroCopyLiterals() {
+        return hpackDecoder.isZeroCopyLiterals();
+    }
+
+    /**
+     * Set the number of huffman decoded literals cached for this connection, rounded up to a power of two.
+     * {@code 0} disables the cache.
+     */
+    public void huffmanCacheSize(int huffmanCacheSize) {
+        hpackDecoder.setHuffmanCacheSize(huffmanCacheSize);
+    }
+
+    public int huffmanCacheSize() {
+        return hpackDecoder.getHuffmanCacheSize();
+    }
+
+    /**
+     * Set whether the time spent decoding header blocks is measured.
+     */
+    public void metricsEnabled(boolean metricsEnabled) {
+        hpackDecoder.setMetricsEnabled(metricsEnabled);
+    }
+
+    public boolean metricsEnabled() {
+        return hpackDecoder.isMetricsEnabled();
+    }
+
+    /**
+     * Return the total time spent decoding header blocks while metrics were enabled, in nanoseconds.
+     */
+    public long decodeNanos() {
+        return hpackDecoder.decodeNanos();
+    }
+
+    /**
+     * Return the total size of the header blocks decoded for this connection.
+     */
+    public long decodedBytes() {
+        return hpackDecoder.decodedBytes();
+    }
+
+    /**
+     * Return the number of header fields and names resolved from the static table.
+     */
+    public long staticTableHits() {
+        return hpackDecoder.staticTableHits();
+    }
+
+    /**
+     * Return the number of header fields and names resolved from the dynamic table.
+     */
+    public long dynamicTableHits() {
+        return hpackDecoder.dynamicTableHits();
+    }
+
+    public long huffmanCacheHits() {
+        return hpackDecoder.huffmanCacheHits();
+    }
+
+    public long huffmanCacheMisses() {
+        return hpackDecoder.huffmanCacheMisses();
+    }
+
     @Override
     public Configuration configuration() {
         return this;
@@ -60,13 +60,16 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractQueue;
 import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
@@ -76,9 +79,13 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -119,10 +126,29 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
    * and accesses that were performed on the map. The queue is drained on writes and when it exceeds
    * its capacity threshold.
    *
+   * If a maintenance executor is specified, reads are instead recorded in striped, bounded ring
+   * buffers which drop the read when full, as the recency ordering is a heuristic. A full buffer
+   * schedules the draining of the segment on the executor, so that reads neither allocate nor
+   * acquire the segment lock.
+   *
+   * If a value codec is specified, values are stored off-heap: each value is encoded into a block
+   * of a per-segment slab allocator of direct memory, and decoded on every read. The weight of an
+   * entry is then the size of its encoded value. The block is returned to the allocator once the
+   * value is removed from the map and no read is decoding it, which is tracked by reference
+   * counting.
+   *
    * The Least Recently Used page replacement algorithm was chosen due to its simplicity, high hit
    * rate, and ability to be implemented with O(1) time complexity. The initial LRU implementation
    * operates per-segment rather than globally for increased implementation simplicity. We expect
    * the cache hit rate to be similar to that of a global LRU algorithm.
+   *
+   * LRU lets a burst of entries which are never read again, such as a scan, flush the entries
+   * which are read often. The Window TinyLFU policy may be selected instead. New entries are kept
+   * in a small LRU admission window, about 1% of the segment. Once the segment is full, the
+   * least recently used entry of the window is only admitted to the main LRU space if it was used
+   * more often than the main space's least recently used entry, which is evicted in its place.
+   * Otherwise the window's entry is evicted. Use counts are estimated by a per-segment count-min
+   * sketch of 4-bit counters, which are halved periodically so that the estimates age.
    */
 
   // Constants
@@ -156,6 +182,28 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
   // TODO(fry): empirically optimize this
   static final int DRAIN_MAX = 16;
 
+  /**
+   * Number of reads which can be recorded by each stripe of a read buffer. This must be a power of
+   * two.
+   */
+  static final int READ_BUFFER_SIZE = 16;
+
+  /**
+   * Maximum number of read buffer stripes of the whole cache, shared among its segments. This must
+   * be a power of two.
+   */
+  static final int MAX_READ_BUFFER_STRIPES =
+      Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), 64);
+
+  /** Drain status of a segment: nothing to drain. */
+  static final int DRAIN_IDLE = 0;
+
+  /** Drain status of a segment: a read buffer is full and should be drained. */
+  static final int DRAIN_REQUIRED = 1;
+
+  /** Drain status of a segment: a drain has been scheduled on the maintenance executor. */
+  static final int DRAIN_PROCESSING = 2;
+
   // Fields
 
   static final Logger logger = Logger.getLogger(LocalCache.class.getName());
@@ -196,6 +244,13 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
   /** Weigher to weigh cache entries. */
   final Weigher<K, V> weigher;
 
+  /** Whether size-based eviction uses Window TinyLFU rather than LRU. */
+  final boolean windowTinyLfu;
+
+  /** Codec of the values stored off-heap, or null if values are referenced on the heap. */
+  @Nullable
+  final ValueCodec<V> valueCodec;
+
   /** How long after the last access to an entry the map will retain that entry. */
   final long expireAfterAccessNanos;
 
@@ -205,6 +260,25 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
   /** How long after the last write an entry becomes a candidate for refresh. */
   final long refreshNanos;
 
+  /**
+   * How long before an entry becomes a candidate for refresh a read may already refresh it, so that
+   * the refreshed value is usually loaded before the entry becomes stale.
+   */
+  final long refreshAheadNanos;
+
+  /**
+   * Coalesces refreshes into bulk loads, or null if each key is reloaded on its own.
+   */
+  @Nullable
+  final RefreshBatcher<K, V> refreshBatcher;
+
+  /**
+   * Executes the draining of full read buffers, or null if reads are recorded in an unbounded queue
+   * drained by the reading threads.
+   */
+  @Nullable
+  final Executor maintenanceExecutor;
+
   /** Entries waiting to be consumed by the removal listener. */
   // TODO(fry): define a new type which creates event objects and automates the clear logic
   final Queue<RemovalNotification<K, V>> removalNotificationQueue;
@@ -248,9 +322,15 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
     maxWeight = builder.getMaximumWeight();
     weigher = builder.getWeigher();
+    windowTinyLfu = builder.isWindowTinyLfu() && evictsBySize();
+    valueCodec = builder.getValueCodec();
+    checkState(valueCodec == null || valueStrength == Strength.STRONG,
+        "Values stored off-heap cannot be weak or soft");
     expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
     expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
     refreshNanos = builder.getRefreshNanos();
+    refreshAheadNanos = builder.getRefreshAheadNanos();
+    maintenanceExecutor = builder.getMaintenanceExecutor();
 
     removalListener = builder.getRemovalListener();
     removalNotificationQueue = (removalListener == NullListener.INSTANCE)
@@ -261,6 +341,12 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     entryFactory = EntryFactory.getFactory(keyStrength, usesAccessEntries(), usesWriteEntries());
     globalStatsCounter = builder.getStatsCounterSupplier().get();
     defaultLoader = loader;
+    int refreshBatchSize = builder.getRefreshBatchSize();
+    checkState(refreshBatchSize <= 1 || maintenanceExecutor != null,
+        "Refreshes can only be batched on a maintenance executor");
+    refreshBatcher = (refreshes() && loader != null && refreshBatchSize > 1)
+        ? new RefreshBatcher<K, V>(this, refreshBatchSize, builder.getRefreshBatchLingerNanos())
+        : null;
 
     int initialCapacity = Math.min(builder.getInitialCapacity(), MAXIMUM_CAPACITY);
     if (evictsBySize() && !customWeigher()) {
@@ -318,7 +404,12 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
   }
 
   boolean customWeigher() {
-    return weigher != OneWeigher.INSTANCE;
+    // off-heap values weigh their encoded size
+    return weigher != OneWeigher.INSTANCE || storesOffHeap();
+  }
+
+  boolean storesOffHeap() {
+    return valueCodec != null;
   }
 
   boolean expires() {
@@ -341,6 +432,14 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     return expiresAfterAccess() || evictsBySize();
   }
 
+  boolean usesWindowTinyLfu() {
+    return windowTinyLfu;
+  }
+
+  boolean drainsAsynchronously() {
+    return maintenanceExecutor != null;
+  }
+
   boolean usesWriteQueue() {
     return expiresAfterWrite();
   }
@@ -1785,6 +1884,227 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     }
   }
 
+  /**
+   * References a value stored off-heap, which is decoded on every call to {@link #get}. The weight
+   * is the size of the encoded value. Copies for other entries share the block.
+   */
+  static final class OffHeapValueReference<K, V> implements ValueReference<K, V> {
+    final ValueCodec<V> codec;
+    final OffHeapBlock block;
+    final ReferenceEntry<K, V> entry;
+
+    OffHeapValueReference(ValueCodec<V> codec, OffHeapBlock block, ReferenceEntry<K, V> entry) {
+      this.codec = codec;
+      this.block = block;
+      this.entry = entry;
+    }
+
+    @Override
+    public V get() {
+      if (!block.acquire()) {
+        // removed concurrently; the entry may hold a newer value
+        ValueReference<K, V> current = entry.getValueReference();
+        return (current != this) ? current.get() : null;
+      }
+      try {
+        return codec.decode(block.contents());
+      } finally {
+        block.release();
+      }
+    }
+
+    @Override
+    public int getWeight() {
+      return block.length;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> getEntry() {
+      return entry;
+    }
+
+    @Override
+    public ValueReference<K, V> copyFor(
+        ReferenceQueue<V> queue, V value, ReferenceEntry<K, V> entry) {
+      return new OffHeapValueReference<K, V>(codec, block, entry);
+    }
+
+    @Override
+    public boolean isLoading() {
+      return false;
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public V waitForValue() {
+      return get();
+    }
+
+    @Override
+    public void notifyNewValue(V newValue) {}
+  }
+
+  /**
+   * A block of direct memory holding an encoded value. The state counts the reads decoding the
+   * block, shifted left by one, and its lowest bit is set while the value is in the map. The block
+   * is freed once both are gone.
+   */
+  static final class OffHeapBlock extends AtomicInteger {
+    final SlabAllocator allocator;
+    final ByteBuffer buffer;
+    final int offset;
+    final int length;
+    /** Locates the block in the allocator's slabs, or -1 if it has a buffer of its own. */
+    final long handle;
+
+    OffHeapBlock(SlabAllocator allocator, ByteBuffer buffer, int offset, int length, long handle) {
+      super(1);
+      this.allocator = allocator;
+      this.buffer = buffer;
+      this.offset = offset;
+      this.length = length;
+      this.handle = handle;
+    }
+
+    /** Returns a new buffer of the block, positioned at zero and limited to the length. */
+    ByteBuffer contents() {
+      ByteBuffer contents = buffer.duplicate();
+      contents.limit(offset + length);
+      contents.position(offset);
+      return contents.slice();
+    }
+
+    /** Starts a read, unless the value was removed from the map. */
+    boolean acquire() {
+      for (;;) {
+        int state = get();
+        if ((state & 1) == 0) {
+          return false;
+        }
+        if (compareAndSet(state, state + 2)) {
+          return true;
+        }
+      }
+    }
+
+    /** Ends a read started by {@link #acquire}. */
+    void release() {
+      if (addAndGet(-2) == 0) {
+        allocator.free(this);
+      }
+    }
+
+    /** Records that the value was removed from the map. Later calls have no effect. */
+    void retire() {
+      for (;;) {
+        int state = get();
+        if ((state & 1) == 0) {
+          return;
+        }
+        if (compareAndSet(state, state - 1)) {
+          if (state == 1) {
+            allocator.free(this);
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Allocates the blocks of a segment's off-heap values from slabs of direct memory. Blocks are
+   * rounded up to a power of two of at least {@link #MIN_BLOCK_SIZE} bytes, and freed blocks are
+   * kept on a free list per size for reuse. Slabs are never released. Values larger than a slab
+   * get a direct buffer of their own, which is reclaimed by the garbage collector. Blocks may be
+   * freed by reading threads, so the allocator synchronizes on itself.
+   */
+  static final class SlabAllocator {
+    static final int SLAB_SHIFT = 20;
+    static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    static final int MIN_BLOCK_SHIFT = 4;
+    static final int MIN_BLOCK_SIZE = 1 << MIN_BLOCK_SHIFT;
+    static final int SIZE_CLASSES = SLAB_SHIFT - MIN_BLOCK_SHIFT + 1;
+
+    final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    /** The handles of the free blocks of each size class, as stacks. */
+    final long[][] freeBlocks = new long[SIZE_CLASSES][];
+    final int[] freeCounts = new int[SIZE_CLASSES];
+    /** The offset of the unused end of the last slab. */
+    int slabOffset = SLAB_SIZE;
+    long reservedBytes;
+
+    /** Encodes {@code value} into a newly allocated block. */
+    <V> OffHeapBlock store(ValueCodec<V> codec, V value) {
+      int length = codec.encodedSize(value);
+      checkState(length >= 0, "Encoded sizes must be non-negative");
+      OffHeapBlock block = allocate(length);
+      ByteBuffer target = block.contents();
+      try {
+        codec.encode(value, target);
+        checkState(target.position() == length,
+            "Codec wrote %s bytes, expected %s", target.position(), length);
+      } catch (RuntimeException e) {
+        free(block);
+        throw e;
+      } catch (Error e) {
+        free(block);
+        throw e;
+      }
+      return block;
+    }
+
+    synchronized OffHeapBlock allocate(int length) {
+      if (length > SLAB_SIZE) {
+        return new OffHeapBlock(this, ByteBuffer.allocateDirect(length), 0, length, -1);
+      }
+      int sizeClass = sizeClass(length);
+      long handle;
+      if (freeCounts[sizeClass] > 0) {
+        handle = freeBlocks[sizeClass][--freeCounts[sizeClass]];
+      } else {
+        int blockSize = MIN_BLOCK_SIZE << sizeClass;
+        if (slabOffset + blockSize > SLAB_SIZE) {
+          slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+          reservedBytes += SLAB_SIZE;
+          slabOffset = 0;
+        }
+        handle = ((long) (slabs.size() - 1) << SLAB_SHIFT) | slabOffset;
+        slabOffset += blockSize;
+      }
+      ByteBuffer slab = slabs.get((int) (handle >>> SLAB_SHIFT));
+      return new OffHeapBlock(this, slab, (int) handle & (SLAB_SIZE - 1), length, handle);
+    }
+
+    synchronized void free(OffHeapBlock block) {
+      if (block.handle < 0) {
+        return;
+      }
+      int sizeClass = sizeClass(block.length);
+      long[] stack = freeBlocks[sizeClass];
+      if (stack == null) {
+        stack = freeBlocks[sizeClass] = new long[16];
+      } else if (freeCounts[sizeClass] == stack.length) {
+        stack = freeBlocks[sizeClass] = Arrays.copyOf(stack, stack.length * 2);
+      }
+      stack[freeCounts[sizeClass]++] = block.handle;
+    }
+
+    synchronized long reservedBytes() {
+      return reservedBytes;
+    }
+
+    static int sizeClass(int length) {
+      if (length <= MIN_BLOCK_SIZE) {
+        return 0;
+      }
+      return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_BLOCK_SHIFT;
+    }
+  }
+
   /**
    * Applies a supplemental hash function to a given hash code, which defends against poor quality
    * hash functions. This is critical when the concurrent hash map uses power-of-two length hash
@@ -2073,6 +2393,16 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      */
     final AtomicInteger readCount = new AtomicInteger();
 
+    /**
+     * Whether the read buffer has to be drained on the maintenance executor. Only used when the
+     * map drains asynchronously.
+     */
+    final AtomicInteger drainStatus = new AtomicInteger(DRAIN_IDLE);
+
+    /** Allocates the memory of the values stored off-heap, or null if values are on the heap. */
+    @Nullable
+    final SlabAllocator slabAllocator;
+
     /**
      * A queue of elements currently in the map, ordered by write time. Elements are added to the
      * tail of the queue on write.
@@ -2097,23 +2427,35 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
       this.statsCounter = checkNotNull(statsCounter);
       initTable(newEntryArray(initialCapacity));
 
+      slabAllocator = map.storesOffHeap() ? new SlabAllocator() : null;
+
       keyReferenceQueue = map.usesKeyReferences()
            ? new ReferenceQueue<K>() : null;
 
       valueReferenceQueue = map.usesValueReferences()
            ? new ReferenceQueue<V>() : null;
 
-      recencyQueue = map.usesAccessQueue()
-          ? new ConcurrentLinkedQueue<ReferenceEntry<K, V>>()
-          : LocalCache.<ReferenceEntry<K, V>>discardingQueue();
+      if (map.drainsAsynchronously()) {
+        // also used without an access queue, so that reads trigger the cleanup of expired entries
+        int stripes = Math.max(1, MAX_READ_BUFFER_STRIPES / map.segments.length);
+        recencyQueue = new ReadBuffer<K, V>(stripes);
+      } else if (map.usesAccessQueue()) {
+        recencyQueue = new ConcurrentLinkedQueue<ReferenceEntry<K, V>>();
+      } else {
+        recencyQueue = LocalCache.<ReferenceEntry<K, V>>discardingQueue();
+      }
 
       writeQueue = map.usesWriteQueue()
           ? new WriteQueue<K, V>()
           : LocalCache.<ReferenceEntry<K, V>>discardingQueue();
 
-      accessQueue = map.usesAccessQueue()
-          ? new AccessQueue<K, V>()
-          : LocalCache.<ReferenceEntry<K, V>>discardingQueue();
+      if (!map.usesAccessQueue()) {
+        accessQueue = LocalCache.<ReferenceEntry<K, V>>discardingQueue();
+      } else if (map.usesWindowTinyLfu()) {
+        accessQueue = new WindowTinyLfuQueue<K, V>(this);
+      } else {
+        accessQueue = new AccessQueue<K, V>();
+      }
     }
 
     AtomicReferenceArray<ReferenceEntry<K, V>> newEntryArray(int size) {
@@ -2146,28 +2488,44 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
       }
 
       ValueReference<K, V> valueReference = original.getValueReference();
-      V value = valueReference.get();
-      if ((value == null) && valueReference.isActive()) {
-        // value collected
-        return null;
+      V value = null;
+      // off-heap values are never collected, and don't need to be decoded to be copied
+      if (!map.storesOffHeap()) {
+        value = valueReference.get();
+        if ((value == null) && valueReference.isActive()) {
+          // value collected
+          return null;
+        }
       }
 
       ReferenceEntry<K, V> newEntry = map.entryFactory.copyEntry(this, original, newNext);
       newEntry.setValueReference(valueReference.copyFor(this.valueReferenceQueue, value, newEntry));
+      if (map.usesWindowTinyLfu()) {
+        // the copy took the place of the original in the access order
+        ((WindowTinyLfuQueue<K, V>) accessQueue).replace(original, newEntry);
+      }
       return newEntry;
     }
 
     /**
      * Sets a new value of an entry. Adds newly created entries at the end of the access queue.
+     * Callers enqueue the notification of the previous value only after this returns, so that an
+     * off-heap value is not released if the new one cannot be encoded.
      */
     @GuardedBy("this")
     void setValue(ReferenceEntry<K, V> entry, K key, V value, long now) {
       ValueReference<K, V> previous = entry.getValueReference();
-      int weight = map.weigher.weigh(key, value);
-      checkState(weight >= 0, "Weights must be non-negative");
-
-      ValueReference<K, V> valueReference =
-          map.valueStrength.referenceValue(this, entry, value, weight);
+      ValueReference<K, V> valueReference;
+      int weight;
+      if (map.storesOffHeap()) {
+        OffHeapBlock block = slabAllocator.store(map.valueCodec, value);
+        valueReference = new OffHeapValueReference<K, V>(map.valueCodec, block, entry);
+        weight = block.length;
+      } else {
+        weight = map.weigher.weigh(key, value);
+        checkState(weight >= 0, "Weights must be non-negative");
+        valueReference = map.valueStrength.referenceValue(this, entry, value, weight);
+      }
       entry.setValueReference(valueReference);
       recordWrite(entry, weight, now);
       previous.notifyNewValue(value);
@@ -2301,6 +2659,10 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
       }
 
       checkState(!Thread.holdsLock(e), "Recursive load of: %s", key);
+      if (map.refreshBatcher != null) {
+        // a refresh still waiting for its batch may not be loaded before this thread runs cleanup
+        map.refreshBatcher.loadNow(valueReference);
+      }
       // don't consider expiration as we're concurrent with loading
       try {
         V value = valueReference.waitForValue();
@@ -2366,8 +2728,13 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
     V scheduleRefresh(ReferenceEntry<K, V> entry, K key, int hash, V oldValue, long now,
         CacheLoader<? super K, V> loader) {
-      if (map.refreshes() && (now - entry.getWriteTime() > map.refreshNanos)
+      if (map.refreshes()
+          && (now - entry.getWriteTime() > map.refreshNanos - map.refreshAheadNanos)
           && !entry.getValueReference().isLoading()) {
+        if (map.refreshBatcher != null && loader == map.defaultLoader) {
+          scheduleBatchedRefresh(key, hash, now);
+          return oldValue;
+        }
         V newValue = refresh(key, hash, loader, true);
         if (newValue != null) {
           return newValue;
@@ -2376,6 +2743,24 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
       return oldValue;
     }
 
+    /**
+     * Adds the refresh of {@code key} to the next batch of the map's {@link RefreshBatcher}, unless
+     * another thread is already refreshing it.
+     */
+    void scheduleBatchedRefresh(K key, int hash, long now) {
+      LoadingValueReference<K, V> loadingValueReference =
+          insertLoadingValueReference(key, hash, true);
+      if (loadingValueReference == null) {
+        return;
+      }
+      if (!loadingValueReference.isActive()) {
+        // the entry was removed meanwhile, so readers would wait for the batch
+        loadAsync(key, hash, loadingValueReference, map.defaultLoader);
+        return;
+      }
+      map.refreshBatcher.add(new PendingRefresh<K, V>(key, hash, loadingValueReference), now);
+    }
+
     /**
      * Refreshes the value associated with {@code key}, unless another thread is already doing so.
      * Returns the newly refreshed value associated with {@code key} if it was refreshed inline, or
@@ -2427,7 +2812,8 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
             ValueReference<K, V> valueReference = e.getValueReference();
             if (valueReference.isLoading()
-                || (checkTime && (now - e.getWriteTime() < map.refreshNanos))) {
+                || (checkTime
+                    && (now - e.getWriteTime() < map.refreshNanos - map.refreshAheadNanos))) {
               // refresh is a no-op if loading is pending
               // if checkTime, we want to check *after* acquiring the lock if refresh still needs
               // to be scheduled
@@ -2545,7 +2931,10 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
       if (map.recordsAccess()) {
         entry.setAccessTime(now);
       }
-      recencyQueue.add(entry);
+      if (!recencyQueue.offer(entry)) {
+        // the read buffer is full and the read was dropped
+        drainStatus.compareAndSet(DRAIN_IDLE, DRAIN_REQUIRED);
+      }
     }
 
     /**
@@ -2655,6 +3044,15 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
         RemovalNotification<K, V> notification = RemovalNotification.create(key, value, cause);
         map.removalNotificationQueue.offer(notification);
       }
+      if (map.storesOffHeap()) {
+        // the value is no longer in the map
+        if (valueReference instanceof LoadingValueReference) {
+          valueReference = ((LoadingValueReference<K, V>) valueReference).getOldValue();
+        }
+        if (valueReference instanceof OffHeapValueReference) {
+          ((OffHeapValueReference<K, V>) valueReference).block.retire();
+        }
+      }
     }
 
     /**
@@ -2690,6 +3088,9 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     // TODO(fry): instead implement this with an eviction head
     @GuardedBy("this")
     ReferenceEntry<K, V> getNextEvictable() {
+      if (map.usesWindowTinyLfu()) {
+        return ((WindowTinyLfuQueue<K, V>) accessQueue).getNextEvictable();
+      }
       for (ReferenceEntry<K, V> e : accessQueue) {
         int weight = e.getValueReference().getWeight();
         if (weight > 0) {
@@ -2865,8 +3266,9 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             if (entryValue == null) {
               ++modCount;
               if (valueReference.isActive()) {
-                enqueueNotification(key, hash, valueReference, RemovalCause.COLLECTED);
+                // install the new value before the old one is released
                 setValue(e, key, value, now);
+                enqueueNotification(key, hash, valueReference, RemovalCause.COLLECTED);
                 newCount = this.count; // count remains unchanged
               } else {
                 setValue(e, key, value, now);
@@ -2884,8 +3286,9 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             } else {
               // clobber existing entry, count remains unchanged
               ++modCount;
-              enqueueNotification(key, hash, valueReference, RemovalCause.REPLACED);
+              // install the new value before the old one is released
               setValue(e, key, value, now);
+              enqueueNotification(key, hash, valueReference, RemovalCause.REPLACED);
               evictEntries(e);
               return entryValue;
             }
@@ -3011,8 +3414,8 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
 
             if (map.valueEquivalence.equivalent(oldValue, entryValue)) {
               ++modCount;
-              enqueueNotification(key, hash, valueReference, RemovalCause.REPLACED);
               setValue(e, key, newValue, now);
+              enqueueNotification(key, hash, valueReference, RemovalCause.REPLACED);
               evictEntries(e);
               return true;
             } else {
@@ -3063,8 +3466,8 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             }
 
             ++modCount;
-            enqueueNotification(key, hash, valueReference, RemovalCause.REPLACED);
             setValue(e, key, newValue, now);
+            enqueueNotification(key, hash, valueReference, RemovalCause.REPLACED);
             evictEntries(e);
             return entryValue;
           }
@@ -3151,13 +3554,13 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
             if (oldValueReference == valueReference
                 || (entryValue == null && valueReference != UNSET)) {
               ++modCount;
+              setValue(e, key, newValue, now);
               if (oldValueReference.isActive()) {
                 RemovalCause cause =
                     (entryValue == null) ? RemovalCause.COLLECTED : RemovalCause.REPLACED;
                 enqueueNotification(key, hash, oldValueReference, cause);
                 newCount--;
               }
-              setValue(e, key, newValue, now);
               this.count = newCount; // write-volatile
               evictEntries(e);
               return true;
@@ -3428,7 +3831,46 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
      * is not observed after a sufficient number of reads, try cleaning up from the read thread.
      */
     void postReadCleanup() {
-      if ((readCount.incrementAndGet() & DRAIN_THRESHOLD) == 0) {
+      if (map.drainsAsynchronously()) {
+        if (drainStatus.get() == DRAIN_REQUIRED) {
+          scheduleDrain();
+        }
+      } else if ((readCount.incrementAndGet() & DRAIN_THRESHOLD) == 0) {
+        cleanUp();
+      }
+    }
+
+    /**
+     * Submits the draining of the read buffer to the maintenance executor, unless it is already
+     * scheduled. If the executor rejects it, the calling thread tries to clean up instead.
+     */
+    void scheduleDrain() {
+      int status = drainStatus.get();
+      if (status == DRAIN_PROCESSING || !drainStatus.compareAndSet(status, DRAIN_PROCESSING)) {
+        return;
+      }
+      try {
+        map.maintenanceExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              long now = map.ticker.read();
+              lock();
+              try {
+                drainReferenceQueues();
+                expireEntries(now); // calls drainRecencyQueue
+              } finally {
+                unlock();
+              }
+              runUnlockedCleanup();
+            } finally {
+              drainStatus.compareAndSet(DRAIN_PROCESSING, DRAIN_IDLE);
+            }
+          }
+        });
+      } catch (Throwable t) {
+        logger.log(Level.WARNING, "Exception thrown when submitting maintenance task", t);
+        drainStatus.compareAndSet(DRAIN_PROCESSING, DRAIN_IDLE);
         cleanUp();
       }
     }
@@ -3473,6 +3915,9 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
       // locked cleanup may generate notifications we can send unlocked
       if (!isHeldByCurrentThread()) {
         map.processPendingNotifications();
+        if (map.refreshBatcher != null) {
+          map.refreshBatcher.flushIfLingered();
+        }
       }
     }
 
@@ -3870,8 +4315,625 @@ class LocalCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
     }
   }
 
+  /**
+   * The access queue of a segment using the Window TinyLFU policy. Entries are first added to an
+   * admission window, and moved to the main space either when the window is over capacity and the
+   * segment has room, or when they win the admission against the main space's eviction candidate.
+   * Both spaces are kept in access order. Every access is recorded in the frequency sketch.
+   *
+   * <p>As the entries can't be marked, the entries of the window are tracked by identity, and
+   * {@link Segment#copyEntry} must report the copies it makes through {@link #replace}.
+   */
+  static final class WindowTinyLfuQueue<K, V> extends AbstractQueue<ReferenceEntry<K, V>> {
+    final Segment<K, V> segment;
+    final AccessQueue<K, V> window = new AccessQueue<K, V>();
+    final AccessQueue<K, V> main = new AccessQueue<K, V>();
+    final Set<ReferenceEntry<K, V>> windowEntries = Sets.newIdentityHashSet();
+    final FrequencySketch sketch;
+
+    WindowTinyLfuQueue(Segment<K, V> segment) {
+      this.segment = segment;
+      // grown by offer as the segment fills up, rather than sized for the maximum upfront
+      this.sketch = new FrequencySketch(16);
+    }
+
+    int windowCapacity() {
+      return Math.max(1, segment.count / 100);
+    }
+
+    /** Moves the least recently used entry of the window to the main space. */
+    void promote(ReferenceEntry<K, V> entry) {
+      windowEntries.remove(entry);
+      main.offer(entry);
+    }
+
+    void replace(ReferenceEntry<K, V> original, ReferenceEntry<K, V> copy) {
+      if (windowEntries.remove(original)) {
+        windowEntries.add(copy);
+      }
+    }
+
+    /**
+     * Returns the entry to evict. If the window is over capacity, its least recently used entry
+     * competes with the least recently used entry of the main space: the one used less often is
+     * evicted, and the window's entry is moved to the main space if it wins.
+     */
+    ReferenceEntry<K, V> getNextEvictable() {
+      ReferenceEntry<K, V> candidate =
+          (windowEntries.size() > windowCapacity()) ? firstEvictable(window) : null;
+      ReferenceEntry<K, V> victim = firstEvictable(main);
+      if (candidate == null) {
+        if (victim == null) {
+          victim = firstEvictable(window);
+          if (victim == null) {
+            throw new AssertionError();
+          }
+        }
+        return victim;
+      }
+      if (victim == null) {
+        return candidate;
+      }
+      if (sketch.frequency(candidate.getHash()) > sketch.frequency(victim.getHash())) {
+        promote(candidate);
+        return victim;
+      }
+      return candidate;
+    }
+
+    @Nullable
+    static <K, V> ReferenceEntry<K, V> firstEvictable(AccessQueue<K, V> queue) {
+      for (ReferenceEntry<K, V> e : queue) {
+        if (e.getValueReference().getWeight() > 0) {
+          return e;
+        }
+      }
+      return null;
+    }
+
+    // implements Queue
+
+    @Override
+    public boolean offer(ReferenceEntry<K, V> entry) {
+      if (segment.count > sketch.capacity()) {
+        sketch.ensureCapacity(2L * segment.count);
+      }
+      sketch.increment(entry.getHash());
+      if (windowEntries.contains(entry)) {
+        window.offer(entry);
+      } else if (main.contains(entry)) {
+        main.offer(entry);
+      } else {
+        window.offer(entry);
+        windowEntries.add(entry);
+        // while the segment has room there is nothing to compete with
+        while (windowEntries.size() > windowCapacity()
+            && segment.totalWeight <= segment.maxSegmentWeight) {
+          promote(window.peek());
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> peek() {
+      // the least recently accessed of both heads, for expiration
+      ReferenceEntry<K, V> windowHead = window.peek();
+      ReferenceEntry<K, V> mainHead = main.peek();
+      if (windowHead == null) {
+        return mainHead;
+      } else if (mainHead == null) {
+        return windowHead;
+      }
+      return (windowHead.getAccessTime() - mainHead.getAccessTime() < 0) ? windowHead : mainHead;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> poll() {
+      ReferenceEntry<K, V> next = peek();
+      if (next != null) {
+        remove(next);
+      }
+      return next;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return windowEntries.remove(o) ? window.remove(o) : main.remove(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return windowEntries.contains(o) || main.contains(o);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return window.isEmpty() && main.isEmpty();
+    }
+
+    @Override
+    public int size() {
+      return window.size() + main.size();
+    }
+
+    @Override
+    public void clear() {
+      window.clear();
+      main.clear();
+      windowEntries.clear();
+    }
+
+    @Override
+    public Iterator<ReferenceEntry<K, V>> iterator() {
+      return Iterators.concat(main.iterator(), window.iterator());
+    }
+  }
+
+  /**
+   * A count-min sketch estimating how often each entry hash was used recently, with four 4-bit
+   * counters per hash. Every counter is halved once the number of increments reaches ten times
+   * the capacity, so that the estimates favor recent use.
+   */
+  static final class FrequencySketch {
+    static final long[] SEED = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    static final long RESET_MASK = 0x7777777777777777L;
+    static final long ONE_MASK = 0x1111111111111111L;
+
+    long[] table;
+    int tableMask;
+    int sampleSize;
+    int size;
+
+    FrequencySketch(long capacity) {
+      ensureCapacity(capacity);
+    }
+
+    int capacity() {
+      return table.length;
+    }
+
+    /** Resizes the sketch, discarding the counts, if it is smaller than {@code capacity}. */
+    void ensureCapacity(long capacity) {
+      int maximum = (int) Math.min(Math.max(capacity, 1), MAXIMUM_CAPACITY);
+      if (table != null && table.length >= maximum) {
+        return;
+      }
+      int length = 1;
+      while (length < maximum) {
+        length <<= 1;
+      }
+      table = new long[length];
+      tableMask = length - 1;
+      sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+      size = 0;
+    }
+
+    int frequency(int hash) {
+      int h = spread(hash);
+      int start = (h & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(h, i);
+        int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    void increment(int hash) {
+      int h = spread(hash);
+      int start = (h & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        added |= incrementAt(indexOf(h, i), start + i);
+      }
+      if (added && (++size == sampleSize)) {
+        reset();
+      }
+    }
+
+    boolean incrementAt(int i, int j) {
+      int offset = j << 2;
+      long mask = 0xfL << offset;
+      if ((table[i] & mask) != mask) {
+        table[i] += 1L << offset;
+        return true;
+      }
+      return false;
+    }
+
+    void reset() {
+      int odd = 0;
+      for (int i = 0; i < table.length; i++) {
+        odd += Long.bitCount(table[i] & ONE_MASK);
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      size = (size >>> 1) - (odd >>> 2);
+    }
+
+    int indexOf(int item, int i) {
+      long hash = (item + SEED[i]) * SEED[i];
+      hash += hash >>> 32;
+      return ((int) hash) & tableMask;
+    }
+
+    /**
+     * The entry hashes of a segment share their upper bits, which select the segment, so they are
+     * mixed again.
+     */
+    static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+  }
+
+  /**
+   * A lossy queue recording the reads of a segment, striped by thread to reduce contention. Each
+   * stripe is a bounded ring buffer: {@link #offer} never blocks nor allocates, and returns false
+   * when the read was dropped because the stripe is full. A contended offer drops the read too,
+   * but returns true. Elements must only be removed while holding the segment lock.
+   */
+  static final class ReadBuffer<K, V> extends AbstractQueue<ReferenceEntry<K, V>> {
+    static final int MASK = READ_BUFFER_SIZE - 1;
+
+    final Stripe<K, V>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    ReadBuffer(int stripeCount) {
+      stripes = new Stripe[Integer.highestOneBit(stripeCount)];
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new Stripe<K, V>();
+      }
+    }
+
+    Stripe<K, V> stripe() {
+      // thread ids are sequential, which spreads well enough after mixing the upper bits
+      long id = Thread.currentThread().getId();
+      int h = (int) (id ^ (id >>> 32));
+      h ^= (h >>> 16);
+      return stripes[h & (stripes.length - 1)];
+    }
+
+    @Override
+    public boolean offer(ReferenceEntry<K, V> entry) {
+      Stripe<K, V> stripe = stripe();
+      long tail = stripe.writeCount.get();
+      if (tail - stripe.readCount.get() >= READ_BUFFER_SIZE) {
+        return false;
+      }
+      if (stripe.writeCount.compareAndSet(tail, tail + 1)) {
+        stripe.buffer.lazySet((int) tail & MASK, entry);
+      }
+      return true;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> poll() {
+      for (Stripe<K, V> stripe : stripes) {
+        long head = stripe.readCount.get();
+        if (head != stripe.writeCount.get()) {
+          int index = (int) head & MASK;
+          ReferenceEntry<K, V> e = stripe.buffer.get(index);
+          // null if the writer has not stored its element yet
+          if (e != null) {
+            stripe.buffer.lazySet(index, null);
+            stripe.readCount.lazySet(head + 1);
+            return e;
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public ReferenceEntry<K, V> peek() {
+      for (Stripe<K, V> stripe : stripes) {
+        long head = stripe.readCount.get();
+        if (head != stripe.writeCount.get()) {
+          ReferenceEntry<K, V> e = stripe.buffer.get((int) head & MASK);
+          if (e != null) {
+            return e;
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public int size() {
+      int size = 0;
+      for (Stripe<K, V> stripe : stripes) {
+        size += (int) (stripe.writeCount.get() - stripe.readCount.get());
+      }
+      return size;
+    }
+
+    @Override
+    public Iterator<ReferenceEntry<K, V>> iterator() {
+      // a snapshot of the published elements
+      ArrayList<ReferenceEntry<K, V>> elements = new ArrayList<ReferenceEntry<K, V>>();
+      for (Stripe<K, V> stripe : stripes) {
+        long tail = stripe.writeCount.get();
+        for (long i = stripe.readCount.get(); i < tail; i++) {
+          ReferenceEntry<K, V> e = stripe.buffer.get((int) i & MASK);
+          if (e != null) {
+            elements.add(e);
+          }
+        }
+      }
+      return Iterators.unmodifiableIterator(elements.iterator());
+    }
+
+    static final class Stripe<K, V> {
+      final AtomicLong writeCount = new AtomicLong();
+      final AtomicLong readCount = new AtomicLong();
+      final AtomicReferenceArray<ReferenceEntry<K, V>> buffer =
+          new AtomicReferenceArray<ReferenceEntry<K, V>>(READ_BUFFER_SIZE);
+    }
+  }
+
+  /**
+   * A refresh waiting in a {@link RefreshBatcher}. The entry already holds the loading value
+   * reference, so that it isn't refreshed twice, and keeps returning its old value meanwhile.
+   * Whoever first claims the refresh, the batch or a thread waiting for the value, loads it.
+   */
+  static final class PendingRefresh<K, V> {
+    final K key;
+    final int hash;
+    final LoadingValueReference<K, V> loadingValueReference;
+    final AtomicBoolean claimed = new AtomicBoolean();
+
+    PendingRefresh(K key, int hash, LoadingValueReference<K, V> loadingValueReference) {
+      this.key = key;
+      this.hash = hash;
+      this.loadingValueReference = loadingValueReference;
+    }
+  }
+
+  /**
+   * Coalesces the refreshes of the map into calls to {@link CacheLoader#loadAll} of at most
+   * {@code batchSize} keys. A batch is loaded as soon as it is full, or once its oldest refresh
+   * has waited for {@code lingerNanos}, which is checked during the cleanup following a cache
+   * operation and by a task on the maintenance executor. Batches are loaded on the maintenance
+   * executor, which batching requires, and only on the thread flushing them if it rejects them. If
+   * the loader doesn't implement {@code loadAll}, the keys of the batch are reloaded one by one. A
+   * thread which has to wait for the value of a pending refresh takes it out of the batch and loads
+   * it itself.
+   *
+   * <p>The pending count and the start of the linger are maintained without locking, so batches
+   * may be slightly smaller or flushed slightly later than configured.
+   */
+  static final class RefreshBatcher<K, V> {
+    final LocalCache<K, V> map;
+    final int batchSize;
+    final long lingerNanos;
+    final Queue<PendingRefresh<K, V>> pending =
+        new ConcurrentLinkedQueue<PendingRefresh<K, V>>();
+    final ConcurrentMap<ValueReference<K, V>, PendingRefresh<K, V>> pendingByReference =
+        Maps.newConcurrentMap();
+    final AtomicInteger pendingCount = new AtomicInteger();
+    final AtomicBoolean lingerCheckScheduled = new AtomicBoolean();
+    volatile long lingerStart;
+
+    final AtomicLong batchCount = new AtomicLong();
+    final AtomicLong batchedKeyCount = new AtomicLong();
+    final AtomicLong batchLoadNanos = new AtomicLong();
+
+    RefreshBatcher(LocalCache<K, V> map, int batchSize, long lingerNanos) {
+      this.map = map;
+      this.batchSize = batchSize;
+      this.lingerNanos = lingerNanos;
+    }
+
+    void add(PendingRefresh<K, V> refresh, long now) {
+      pendingByReference.put(refresh.loadingValueReference, refresh);
+      pending.add(refresh);
+      int count = pendingCount.incrementAndGet();
+      if (count == 1) {
+        lingerStart = now;
+      }
+      if (count >= batchSize) {
+        flush();
+      } else {
+        scheduleLingerCheck();
+      }
+    }
+
+    /**
+     * Takes the refresh of {@code valueReference} out of its batch, if it is still pending, and
+     * loads it on the calling thread.
+     */
+    void loadNow(ValueReference<K, V> valueReference) {
+      PendingRefresh<K, V> refresh = pendingByReference.remove(valueReference);
+      if (refresh != null && refresh.claimed.compareAndSet(false, true)) {
+        pendingCount.decrementAndGet();
+        map.segmentFor(refresh.hash).loadAsync(
+            refresh.key, refresh.hash, refresh.loadingValueReference, map.defaultLoader);
+      }
+    }
+
+    void flushIfLingered() {
+      if (pendingCount.get() > 0 && map.ticker.read() - lingerStart >= lingerNanos) {
+        flush();
+      }
+    }
+
+    /**
+     * Submits a check of the linger to the maintenance executor, unless one is already pending, so
+     * that batches are flushed even if the map sees no further activity. The check waits until the
+     * linger of the pending refreshes has elapsed, then only flushes: the batch is loaded by another
+     * task of the executor.
+     */
+    void scheduleLingerCheck() {
+      if (!lingerCheckScheduled.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        map.maintenanceExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              long remainingNanos;
+              while (pendingCount.get() > 0
+                  && (remainingNanos = lingerNanos - (map.ticker.read() - lingerStart)) > 0) {
+                LockSupport.parkNanos(this, remainingNanos);
+                if (Thread.currentThread().isInterrupted()) {
+                  // the executor is shutting down
+                  return;
+                }
+              }
+            } finally {
+              lingerCheckScheduled.set(false);
+            }
+            flushIfLingered();
+            if (pendingCount.get() > 0) {
+              // added while this check was finishing
+              scheduleLingerCheck();
+            }
+          }
+        });
+      } catch (Throwable t) {
+        lingerCheckScheduled.set(false);
+        logger.log(Level.WARNING, "Exception thrown when scheduling refresh batch", t);
+      }
+    }
+
+    void flush() {
+      final List<PendingRefresh<K, V>> batch = new ArrayList<PendingRefresh<K, V>>(batchSize);
+      PendingRefresh<K, V> refresh;
+      while (batch.size() < batchSize && (refresh = pending.poll()) != null) {
+        // skip the refreshes already loaded by a waiting thread
+        if (refresh.claimed.compareAndSet(false, true)) {
+          pendingByReference.remove(refresh.loadingValueReference);
+          batch.add(refresh);
+        }
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      if (pendingCount.addAndGet(-batch.size()) > 0) {
+        lingerStart = map.ticker.read();
+        scheduleLingerCheck();
+      }
+
+      try {
+        map.maintenanceExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            load(batch);
+          }
+        });
+      } catch (Throwable t) {
+        logger.log(Level.WARNING, "Exception thrown when submitting refresh batch", t);
+        load(batch);
+      }
+    }
+
+    void load(List<PendingRefresh<K, V>> batch) {
+      Set<K> keys = Sets.newLinkedHashSet();
+      for (PendingRefresh<K, V> refresh : batch) {
+        keys.add(refresh.key);
+      }
+
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      Map<K, V> result;
+      try {
+        @SuppressWarnings("unchecked") // safe since all keys extend K
+        Map<K, V> loaded = (Map<K, V>) map.defaultLoader.loadAll(keys);
+        if (loaded == null) {
+          throw new InvalidCacheLoadException(
+              map.defaultLoader + " returned null map from loadAll");
+        }
+        result = loaded;
+      } catch (UnsupportedLoadingOperationException e) {
+        // loadAll not implemented, fallback to reload
+        for (PendingRefresh<K, V> refresh : batch) {
+          map.segmentFor(refresh.hash).loadAsync(
+              refresh.key, refresh.hash, refresh.loadingValueReference, map.defaultLoader);
+        }
+        return;
+      } catch (Throwable t) {
+        if (t instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        }
+        map.globalStatsCounter.recordLoadException(stopwatch.elapsed(NANOSECONDS));
+        logger.log(Level.WARNING, "Exception thrown during refresh", t);
+        for (PendingRefresh<K, V> refresh : batch) {
+          refresh.loadingValueReference.setException(t);
+          map.segmentFor(refresh.hash).removeLoadingValue(
+              refresh.key, refresh.hash, refresh.loadingValueReference);
+        }
+        return;
+      }
+
+      long elapsedNanos = stopwatch.elapsed(NANOSECONDS);
+      batchCount.incrementAndGet();
+      batchedKeyCount.addAndGet(batch.size());
+      batchLoadNanos.addAndGet(elapsedNanos);
+
+      boolean valuesMissing = false;
+      for (PendingRefresh<K, V> refresh : batch) {
+        Segment<K, V> segment = map.segmentFor(refresh.hash);
+        V value = result.get(refresh.key);
+        if (value == null) {
+          // keep the old value
+          valuesMissing = true;
+          refresh.loadingValueReference.setException(new InvalidCacheLoadException(
+              "loadAll failed to return a value for " + refresh.key));
+          segment.removeLoadingValue(refresh.key, refresh.hash, refresh.loadingValueReference);
+        } else {
+          refresh.loadingValueReference.set(value);
+          segment.storeLoadedValue(refresh.key, refresh.hash, refresh.loadingValueReference, value);
+        }
+      }
+
+      if (valuesMissing) {
+        map.globalStatsCounter.recordLoadException(elapsedNanos);
+        logger.log(Level.WARNING,
+            map.defaultLoader + " returned no value for some keys of a refresh");
+      } else {
+        map.globalStatsCounter.recordLoadSuccess(elapsedNanos);
+      }
+    }
+  }
+
   // Cache support
 
+  /** Returns the number of bulk loads of refresh batches which returned a map. */
+  long refreshBatchCount() {
+    return (refreshBatcher == null) ? 0 : refreshBatcher.batchCount.get();
+  }
+
+  /**
+   * Returns the number of keys refreshed by bulk loads. Divided by {@link #refreshBatchCount}, this
+   * is the number of refreshes coalesced into each load.
+   */
+  long refreshBatchedKeyCount() {
+    return (refreshBatcher == null) ? 0 : refreshBatcher.batchedKeyCount.get();
+  }
+
+  /** Returns the total time spent in bulk loads of refresh batches which returned a map. */
+  long refreshBatchLoadNanos() {
+    return (refreshBatcher == null) ? 0 : refreshBatcher.batchLoadNanos.get();
+  }
+
+  /**
+   * Returns the bytes of direct memory reserved by the off-heap values of this map, including
+   * freed blocks kept for reuse.
+   */
+  long offHeapReservedBytes() {
+    long sum = 0;
+    if (storesOffHeap()) {
+      for (Segment<K, V> segment : segments) {
+        sum += segment.slabAllocator.reservedBytes();
+      }
+    }
+    return sum;
+  }
+
   public void cleanUp() {
     for (Segment<?, ?> segment : segments) {
       segment.cleanUp();
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 The Guava Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.common.cache;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.GwtIncompatible;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts cache values to and from the bytes stored outside of the Java heap by a cache with
+ * off-heap values. Each value is encoded once when stored, and decoded on every read, so a read
+ * returns a new instance equal to the stored value.
+ *
+ * <p>Implementations must be thread-safe, and should not retain the buffers they are given.
+ *
+ * @param <V> the type of the values
+ */
+@Beta
+@GwtIncompatible("java.nio.ByteBuffer")
+public interface ValueCodec<V> {
+
+  /**
+   * Returns the number of bytes {@link #encode} writes for {@code value}. This is the weight of the
+   * entry holding {@code value}.
+   */
+  int encodedSize(V value);
+
+  /**
+   * Writes exactly {@link #encodedSize encodedSize(value)} bytes representing {@code value} to
+   * {@code target}, starting at its position.
+   */
+  void encode(V value, ByteBuffer target);
+
+  /**
+   * Reads the value from the remaining bytes of {@code source}, which are those written by
+   * {@link #encode}. The buffer is only valid until this method returns.
+   *
+   * @return the decoded value; must not be null
+   */
+  V decode(ByteBuffer source);
+}
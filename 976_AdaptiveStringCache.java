@@ -0,0 +1,485 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.struts2.util.tomcat.buf;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A String cache for ByteChunk and CharChunk which, unlike
+ * {@link StringCache}, keeps its state per instance so that each connector
+ * can own one, and keeps adapting to the strings it is asked for instead of
+ * being trained once.
+ * <p>
+ * Cached strings live in open addressing tables that are read without
+ * locking. Every lookup is recorded in a frequency sketch of bounded size
+ * whose counters are periodically halved, and a string that is not cached
+ * replaces the least frequent entry of its probe sequence only if it has
+ * been seen more often than that entry. The sketch and the tables are
+ * updated without synchronization: a lost update only costs a miss.
+ * <p>
+ * The statistics are exposed through {@link AdaptiveStringCacheMBean}, so an
+ * instance can be registered directly with an MBean server.
+ */
+public class AdaptiveStringCache implements AdaptiveStringCacheMBean {
+
+
+    /**
+     * Number of consecutive slots examined for a lookup or an insertion.
+     */
+    protected static final int PROBE_LENGTH = 8;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    protected volatile boolean byteEnabled;
+
+
+    protected volatile boolean charEnabled;
+
+
+    protected final int cacheSize;
+
+
+    protected final int maxStringSize;
+
+
+    private final int mask;
+
+
+    /**
+     * Cache for byte chunk.
+     */
+    private final AtomicReferenceArray<ByteEntry> bcCache;
+
+
+    /**
+     * Cache for char chunk.
+     */
+    private final AtomicReferenceArray<CharEntry> ccCache;
+
+
+    /**
+     * Access frequency of recently requested strings, cached or not.
+     */
+    private final FrequencySketch sketch;
+
+
+    private final LongAdder accessCount = new LongAdder();
+
+
+    private final LongAdder hitCount = new LongAdder();
+
+
+    private final LongAdder evictionCount = new LongAdder();
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Create a cache configured from the same system properties as
+     * {@link StringCache}.
+     */
+    public AdaptiveStringCache() {
+        this(StringCache.cacheSize, StringCache.maxStringSize);
+        this.byteEnabled = StringCache.byteEnabled;
+        this.charEnabled = StringCache.charEnabled;
+    }
+
+
+    /**
+     * Create an enabled cache.
+     *
+     * @param cacheSize     Maximum number of strings cached for each of byte
+     *                      and char chunks, rounded up to a power of two
+     * @param maxStringSize Chunks of this length or longer are never cached
+     */
+    public AdaptiveStringCache(int cacheSize, int maxStringSize) {
+        int size = PROBE_LENGTH;
+        while (size < cacheSize) {
+            size <<= 1;
+        }
+        this.cacheSize = size;
+        this.maxStringSize = maxStringSize;
+        this.mask = size - 1;
+        this.bcCache = new AtomicReferenceArray<ByteEntry>(size);
+        this.ccCache = new AtomicReferenceArray<CharEntry>(size);
+        this.sketch = new FrequencySketch(size);
+        this.byteEnabled = true;
+        this.charEnabled = true;
+    }
+
+
+    // ------------------------------------------------------------ Properties
+
+
+    @Override
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+
+    @Override
+    public boolean getByteEnabled() {
+        return byteEnabled;
+    }
+
+
+    @Override
+    public void setByteEnabled(boolean byteEnabled) {
+        this.byteEnabled = byteEnabled;
+    }
+
+
+    @Override
+    public boolean getCharEnabled() {
+        return charEnabled;
+    }
+
+
+    @Override
+    public void setCharEnabled(boolean charEnabled) {
+        this.charEnabled = charEnabled;
+    }
+
+
+    @Override
+    public int getMaxStringSize() {
+        return maxStringSize;
+    }
+
+
+    @Override
+    public long getAccessCount() {
+        return accessCount.sum();
+    }
+
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+
+    @Override
+    public long getMissCount() {
+        // The two counters are not read atomically
+        return Math.max(0, accessCount.sum() - hitCount.sum());
+    }
+
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < cacheSize; i++) {
+            bcCache.set(i, null);
+            ccCache.set(i, null);
+        }
+        sketch.clear();
+        accessCount.reset();
+        hitCount.reset();
+        evictionCount.reset();
+    }
+
+
+    public String toString(ByteChunk bc) {
+        int start = bc.getStart();
+        int end = bc.getEnd();
+        if (!byteEnabled || (end - start) >= maxStringSize) {
+            return bc.toStringInternal();
+        }
+        byte[] buf = bc.getBuffer();
+        Charset charset = bc.getCharset();
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        accessCount.increment();
+        sketch.increment(hash);
+
+        int index = hash & mask;
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            ByteEntry entry = bcCache.get((index + i) & mask);
+            if (entry != null && entry.hash == hash
+                    && entry.matches(buf, start, end, charset)) {
+                hitCount.increment();
+                return entry.value;
+            }
+        }
+
+        String value = bc.toStringInternal();
+        int slot = findVictim(bcCache, index, hash);
+        if (slot >= 0) {
+            byte[] name = new byte[end - start];
+            System.arraycopy(buf, start, name, 0, end - start);
+            if (bcCache.getAndSet(slot,
+                    new ByteEntry(hash, value, name, charset)) != null) {
+                evictionCount.increment();
+            }
+        }
+        return value;
+    }
+
+
+    public String toString(CharChunk cc) {
+        int start = cc.getStart();
+        int end = cc.getEnd();
+        if (!charEnabled || (end - start) >= maxStringSize) {
+            return cc.toStringInternal();
+        }
+        char[] buf = cc.getBuffer();
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        accessCount.increment();
+        sketch.increment(hash);
+
+        int index = hash & mask;
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            CharEntry entry = ccCache.get((index + i) & mask);
+            if (entry != null && entry.hash == hash
+                    && entry.matches(buf, start, end)) {
+                hitCount.increment();
+                return entry.value;
+            }
+        }
+
+        String value = cc.toStringInternal();
+        int slot = findVictim(ccCache, index, hash);
+        if (slot >= 0) {
+            if (ccCache.getAndSet(slot,
+                    new CharEntry(hash, value, value.toCharArray())) != null) {
+                evictionCount.increment();
+            }
+        }
+        return value;
+    }
+
+
+    // ----------------------------------------------------- Protected Methods
+
+
+    /**
+     * Select the slot a string with the given hash should be stored in. An
+     * empty slot is used if the string has been requested at least twice
+     * recently, so that one-off strings do not fill the cache; otherwise the
+     * least frequently requested entry of the probe sequence is replaced if
+     * the new string is more frequent.
+     *
+     * @return the slot to use or -1 if the string should not be cached
+     */
+    protected int findVictim(AtomicReferenceArray<? extends Entry> cache,
+            int index, int hash) {
+        int candidateFrequency = sketch.frequency(hash);
+        int victim = -1;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int slot = (index + i) & mask;
+            Entry entry = cache.get(slot);
+            if (entry == null) {
+                return (candidateFrequency > 1) ? slot : -1;
+            }
+            int frequency = sketch.frequency(entry.hash);
+            if (frequency < victimFrequency) {
+                victim = slot;
+                victimFrequency = frequency;
+            }
+        }
+        return (candidateFrequency > victimFrequency) ? victim : -1;
+    }
+
+
+    // ------------------------------------------------------ Entry Inner Class
+
+
+    protected abstract static class Entry {
+
+        protected final int hash;
+        protected final String value;
+
+        protected Entry(int hash, String value) {
+            this.hash = hash;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+
+    }
+
+
+    private static final class ByteEntry extends Entry {
+
+        private final byte[] name;
+        private final Charset charset;
+
+        private ByteEntry(int hash, String value, byte[] name, Charset charset) {
+            super(hash, value);
+            this.name = name;
+            this.charset = charset;
+        }
+
+        private boolean matches(byte[] buf, int start, int end,
+                Charset charset) {
+            if (name.length != end - start || !this.charset.equals(charset)) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+
+    private static final class CharEntry extends Entry {
+
+        private final char[] name;
+
+        private CharEntry(int hash, String value, char[] name) {
+            super(hash, value);
+            this.name = name;
+        }
+
+        private boolean matches(char[] buf, int start, int end) {
+            if (name.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+
+    // ---------------------------------------------- FrequencySketch Inner Class
+
+
+    /**
+     * Count-min sketch of 4-bit counters, four per long, used to estimate
+     * how often a string hash has been seen. Once the number of increments
+     * reaches ten times the table size every counter is halved, so that the
+     * estimates follow the current traffic rather than the whole history.
+     */
+    protected static final class FrequencySketch {
+
+        private static final long[] SEED = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final long ONE_MASK = 0x1111111111111111L;
+
+        private final AtomicLongArray table;
+        private final int tableMask;
+        private final int sampleSize;
+        private final AtomicInteger size = new AtomicInteger();
+
+        protected FrequencySketch(int capacity) {
+            table = new AtomicLongArray(capacity);
+            tableMask = capacity - 1;
+            sampleSize = 10 * capacity;
+        }
+
+        protected int frequency(int hash) {
+            int h = spread(hash);
+            int start = (h & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                long value = table.get(indexOf(h, i));
+                int count = (int) ((value >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        protected void increment(int hash) {
+            int h = spread(hash);
+            int start = (h & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(h, i), start + i);
+            }
+            if (added && size.incrementAndGet() == sampleSize) {
+                age();
+            }
+        }
+
+        protected void clear() {
+            for (int i = 0; i < table.length(); i++) {
+                table.set(i, 0);
+            }
+            size.set(0);
+        }
+
+        private boolean incrementAt(int i, int j) {
+            int offset = j << 2;
+            long mask = (0xfL << offset);
+            long value = table.get(i);
+            if ((value & mask) != mask) {
+                // Lossy: a concurrent increment of the same long may be lost
+                table.lazySet(i, value + (1L << offset));
+                return true;
+            }
+            return false;
+        }
+
+        private void age() {
+            int count = 0;
+            for (int i = 0; i < table.length(); i++) {
+                long value = table.get(i);
+                count += Long.bitCount(value & ONE_MASK);
+                table.lazySet(i, (value >>> 1) & RESET_MASK);
+            }
+            size.set((sampleSize >>> 1) - (count >>> 2));
+        }
+
+        private int indexOf(int item, int i) {
+            long hash = (item + SEED[i]) * SEED[i];
+            hash += (hash >>> 32);
+            return ((int) hash) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
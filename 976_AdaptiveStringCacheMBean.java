@@ -0,0 +1,46 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.apache.struts2.util.tomcat.buf;
+
+/**
+ * Management interface of {@link AdaptiveStringCache}.
+ */
+public interface AdaptiveStringCacheMBean {
+
+    public int getCacheSize();
+
+    public boolean getByteEnabled();
+
+    public void setByteEnabled(boolean byteEnabled);
+
+    public boolean getCharEnabled();
+
+    public void setCharEnabled(boolean charEnabled);
+
+    public int getMaxStringSize();
+
+    public long getAccessCount();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public long getEvictionCount();
+
+    public void reset();
+
+}